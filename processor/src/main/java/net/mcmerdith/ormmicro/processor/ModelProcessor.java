@@ -0,0 +1,187 @@
+package net.mcmerdith.ormmicro.processor;
+
+import javax.annotation.processing.AbstractProcessor;
+import javax.annotation.processing.RoundEnvironment;
+import javax.annotation.processing.SupportedAnnotationTypes;
+import javax.lang.model.SourceVersion;
+import javax.lang.model.element.AnnotationMirror;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.ElementKind;
+import javax.lang.model.element.ExecutableElement;
+import javax.lang.model.element.Modifier;
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.element.VariableElement;
+import javax.lang.model.util.ElementFilter;
+import javax.tools.Diagnostic;
+import javax.tools.JavaFileObject;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+/**
+ * Generates a <code>GeneratedModel</code> for every class annotated with <code>@Model</code>
+ * <p>The generated class lists the model's columns and accesses its fields and constructor directly, so the
+ * runtime doesn't have to find them by reflection. Fields and constructors the generated class can't reach
+ * (private ones, and final fields for writing) are left to the runtime. Private models are skipped entirely</p>
+ */
+@SupportedAnnotationTypes(ModelProcessor.MODEL)
+public class ModelProcessor extends AbstractProcessor {
+    static final String MODEL = "net.mcmerdith.ormmicro.annotations.Model";
+    private static final String TRANSIENT = "net.mcmerdith.ormmicro.annotations.Transient";
+    private static final String GENERATED_MODEL = "net.mcmerdith.ormmicro.modeling.GeneratedModel";
+
+    /**
+     * Must match <code>GeneratedModel.SUFFIX</code>
+     */
+    private static final String SUFFIX = "_OrmMicro";
+
+    @Override
+    public SourceVersion getSupportedSourceVersion() {
+        return SourceVersion.latestSupported();
+    }
+
+    @Override
+    public boolean process(Set<? extends TypeElement> annotations, RoundEnvironment roundEnv) {
+        for (TypeElement annotation : annotations) {
+            for (Element element : roundEnv.getElementsAnnotatedWith(annotation)) {
+                if (element.getKind() != ElementKind.CLASS) continue;
+
+                TypeElement model = (TypeElement) element;
+                if (!isReachable(model)) {
+                    note(model, "can't be referenced from its package, its metadata will be reflected at runtime");
+                    continue;
+                }
+
+                try {
+                    generate(model);
+                } catch (IOException e) {
+                    processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR, "Failed to generate metadata: " + e.getMessage(), model);
+                }
+            }
+        }
+
+        // Other processors may handle @Model too
+        return false;
+    }
+
+    private void generate(TypeElement model) throws IOException {
+        String packageName = processingEnv.getElementUtils().getPackageOf(model).getQualifiedName().toString();
+        String binaryName = processingEnv.getElementUtils().getBinaryName(model).toString();
+        String generatedName = (packageName.isEmpty() ? binaryName : binaryName.substring(packageName.length() + 1)).replace('$', '_') + SUFFIX;
+
+        String type = processingEnv.getTypeUtils().erasure(model.asType()).toString();
+
+        List<VariableElement> fields = ElementFilter.fieldsIn(model.getEnclosedElements()).stream()
+                .filter(field -> !isAnnotated(field, TRANSIENT) && !field.getModifiers().contains(Modifier.STATIC))
+                .collect(Collectors.toList());
+
+        List<String> getters = new ArrayList<>();
+        List<String> setters = new ArrayList<>();
+
+        for (VariableElement field : fields) {
+            Set<Modifier> modifiers = field.getModifiers();
+            if (modifiers.contains(Modifier.PRIVATE)) continue;
+
+            String name = field.getSimpleName().toString();
+            String target = "((" + type + ") o)";
+
+            getters.add(String.format("            case \"%s\": return o -> %s.%s;", name, target, name));
+
+            if (modifiers.contains(Modifier.FINAL)) continue;
+
+            String fieldType = processingEnv.getTypeUtils().erasure(field.asType()).toString();
+            setters.add(String.format("            case \"%s\": return (o, v) -> %s.%s = (%s) v;", name, target, name, fieldType));
+        }
+
+        JavaFileObject file = processingEnv.getFiler().createSourceFile(
+                packageName.isEmpty() ? generatedName : packageName + "." + generatedName,
+                model
+        );
+
+        try (Writer writer = file.openWriter()) {
+            if (!packageName.isEmpty()) writer.write("package " + packageName + ";\n\n");
+
+            writer.write("@javax.annotation.processing.Generated(\"" + ModelProcessor.class.getName() + "\")\n");
+            writer.write("@SuppressWarnings({\"unchecked\", \"rawtypes\"})\n");
+            writer.write("public final class " + generatedName + " implements " + GENERATED_MODEL + "<" + type + "> {\n");
+
+            writer.write("    private static final java.util.List<String> FIELDS = java.util.List.of(");
+            writer.write(fields.stream().map(field -> "\"" + field.getSimpleName() + "\"").collect(Collectors.joining(", ")));
+            writer.write(");\n\n");
+
+            writer.write("    @Override\n");
+            writer.write("    public java.util.List<String> getFieldNames() {\n");
+            writer.write("        return FIELDS;\n");
+            writer.write("    }\n\n");
+
+            writer.write("    @Override\n");
+            writer.write("    public java.util.function.Supplier<" + type + "> getConstructor() {\n");
+            writer.write("        return " + (isConstructible(model) ? type + "::new" : "null") + ";\n");
+            writer.write("    }\n\n");
+
+            writer.write("    @Override\n");
+            writer.write("    public java.util.function.Function<Object, Object> getGetter(String field) {\n");
+            writeSwitch(writer, getters);
+            writer.write("    }\n\n");
+
+            writer.write("    @Override\n");
+            writer.write("    public java.util.function.BiConsumer<Object, Object> getSetter(String field) {\n");
+            writeSwitch(writer, setters);
+            writer.write("    }\n");
+
+            writer.write("}\n");
+        }
+    }
+
+    private static void writeSwitch(Writer writer, List<String> cases) throws IOException {
+        writer.write("        switch (field) {\n");
+        for (String line : cases) {
+            writer.write(line + "\n");
+        }
+        writer.write("            default: return null;\n");
+        writer.write("        }\n");
+    }
+
+    /**
+     * Check if code in the model's package can refer to the model
+     */
+    private static boolean isReachable(TypeElement model) {
+        for (Element element = model; element instanceof TypeElement; element = element.getEnclosingElement()) {
+            if (element.getModifiers().contains(Modifier.PRIVATE)) return false;
+
+            // Inner classes need an instance of their enclosing class
+            boolean nested = element.getEnclosingElement() instanceof TypeElement;
+            if (nested && !element.getModifiers().contains(Modifier.STATIC)) return false;
+        }
+
+        return true;
+    }
+
+    /**
+     * Check if the generated class can call the model's no-argument constructor
+     */
+    private static boolean isConstructible(TypeElement model) {
+        if (model.getModifiers().contains(Modifier.ABSTRACT)) return false;
+
+        for (ExecutableElement constructor : ElementFilter.constructorsIn(model.getEnclosedElements())) {
+            if (constructor.getParameters().isEmpty()) return !constructor.getModifiers().contains(Modifier.PRIVATE);
+        }
+
+        return false;
+    }
+
+    private static boolean isAnnotated(Element element, String annotation) {
+        for (AnnotationMirror mirror : element.getAnnotationMirrors()) {
+            if (mirror.getAnnotationType().toString().equals(annotation)) return true;
+        }
+
+        return false;
+    }
+
+    private void note(Element element, String message) {
+        processingEnv.getMessager().printMessage(Diagnostic.Kind.NOTE, element.getSimpleName() + " " + message, element);
+    }
+}
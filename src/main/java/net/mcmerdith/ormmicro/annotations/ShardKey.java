@@ -0,0 +1,16 @@
+package net.mcmerdith.ormmicro.annotations;
+
+import java.lang.annotation.*;
+
+/**
+ * Specify that this column decides which shard stores the model
+ * <p>Only one column of a model may be the shard key. Models without one are stored on the first shard.
+ * The key must be stored as a type with value equality, such as a string, number or UUID, arrays and collections can't be shard keys</p>
+ *
+ * @see net.mcmerdith.ormmicro.internal.SessionFactory.Builder#addShard(com.zaxxer.hikari.HikariConfig)
+ */
+@Documented
+@Target({ElementType.FIELD})
+@Retention(RetentionPolicy.RUNTIME)
+public @interface ShardKey {
+}
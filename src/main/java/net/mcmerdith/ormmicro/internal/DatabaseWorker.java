@@ -1,90 +1,1263 @@
 package net.mcmerdith.ormmicro.internal;
 
 import net.mcmerdith.ormmicro.OrmMicroLogger;
-import net.mcmerdith.ormmicro.query.SqlQuery;
+import net.mcmerdith.ormmicro.modeling.MappedSqlModel;
+import net.mcmerdith.ormmicro.query.ModelStatements;
+import net.mcmerdith.ormmicro.query.ParameterizedStatement;
 import net.mcmerdith.ormmicro.util.SqlUtil;
 
+import javax.management.JMException;
+import javax.management.MalformedObjectNameException;
+import javax.management.ObjectName;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
 import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.sql.Savepoint;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.List;
-import java.util.TimerTask;
-import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+/**
+ * Execute statements asynchronously on dedicated threads
+ * <p>Tasks are routed to a lane by key. Each lane sleeps until a task is queued, then drains its queue on its own session</p>
+ */
+public class DatabaseWorker {
+    /**
+     * Process the results of an async query
+     * <p>Called on the worker thread while the statement is still open, the {@link ResultSet} is not valid
+     * after this method returns</p>
+     *
+     * @param <R> The type produced from the results
+     */
+    @FunctionalInterface
+    public interface ResultHandler<R> {
+        /**
+         * @param session   The session the query was executed on, may be used for follow-up queries
+         * @param resultSet The results of the query, or null if the statement did not produce any
+         * @return The processed result
+         */
+        R handle(Session session, ResultSet resultSet) throws SQLException;
+    }
 
-public class DatabaseWorker extends TimerTask {
     private static class DatabaseTask {
-        public final String statement;
-        public final List<Object> parameters;
-        public final Consumer<ResultSet> receiver;
-        public final Consumer<Integer> updateReceiver;
+        public String statement;
+        public List<Object> parameters;
+        /**
+         * Builds the statement when the task is executed, null if the statement was known when queued
+         */
+        public final Supplier<ParameterizedStatement> deferred;
+        /**
+         * Supplies the entity to save when the task is executed, null if the task isn't a save
+         */
+        public final Supplier<MappedSqlModel<?>> save;
+        /**
+         * The entity whose identifier is generated by the insert, null if the statement doesn't generate one
+         */
+        public MappedSqlModel<?> generatedIdTarget;
+        /**
+         * Null for updates
+         */
+        public final ResultHandler<?> handler;
+        public final TaskPriority priority;
+        public final CompletableFuture<Object> future = new CompletableFuture<>();
+        /**
+         * {@link System#nanoTime()} when the task was queued
+         */
+        public final long queuedAt = System.nanoTime();
+        /**
+         * {@link System#nanoTime()} when the task was started, 0 until then
+         */
+        public long startedAt;
+        /**
+         * Time spent in the result handler
+         */
+        public long handlerNanos;
+        /**
+         * The write journal record, -1 if the task isn't journaled
+         */
+        public long journalId = -1;
+        /**
+         * The shard the task runs on
+         */
+        public int shard = 0;
 
-        public DatabaseTask(String statement, List<Object> parameters, Consumer<ResultSet> receiver, Consumer<Integer> updateReceiver) {
+        public DatabaseTask(TaskPriority priority, String statement, List<Object> parameters, ResultHandler<?> handler) {
             this.statement = statement;
             this.parameters = parameters;
-            this.receiver = receiver;
-            this.updateReceiver = updateReceiver;
+            this.deferred = null;
+            this.save = null;
+            this.handler = handler;
+            this.priority = priority;
+        }
+
+        public DatabaseTask(TaskPriority priority, Supplier<ParameterizedStatement> deferred) {
+            this.deferred = deferred;
+            this.save = null;
+            this.handler = null;
+            this.priority = priority;
+        }
+
+        /**
+         * @param save Supplies the entity to save, the insert or update is decided when the task is executed
+         */
+        public DatabaseTask(Supplier<MappedSqlModel<?>> save) {
+            this.deferred = null;
+            this.save = save;
+            this.handler = null;
+            this.priority = TaskPriority.NORMAL;
+        }
+
+        /**
+         * Build a deferred statement, once
+         */
+        public void resolve(PersistenceContext persistenceContext) {
+            if (statement != null) return;
+
+            ParameterizedStatement resolved;
+            if (save != null) {
+                MappedSqlModel<?> model = save.get();
+                resolved = persistenceContext.buildSave(model);
+                if (model.needsGeneratedId()) generatedIdTarget = model;
+            } else if (deferred != null) {
+                resolved = deferred.get();
+            } else {
+                return;
+            }
+
+            this.statement = resolved.getStatement();
+            this.parameters = resolved.getParameters();
+        }
+    }
+
+    /**
+     * A long-running loop with its own queue, occupying one executor thread
+     * <p>Each drain is executed on a session (and connection) owned by this lane, so lanes run in parallel</p>
+     */
+    private class Lane implements Runnable {
+        private final BlockingQueue<DatabaseTask> taskQueue = new LinkedBlockingQueue<>();
+
+        /**
+         * Tasks taken from the queue but not yet drained, by priority. Only used by the lane thread
+         */
+        private final List<ArrayDeque<DatabaseTask>> waiting = new ArrayList<>();
+
+        private Lane() {
+            for (int i = 0; i < TaskPriority.values().length; i++) {
+                waiting.add(new ArrayDeque<>());
+            }
+        }
+
+        /**
+         * The thread running this lane, so it can be woken for shutdown
+         */
+        private volatile Thread thread;
+
+        /**
+         * Set by whichever runs the lane first, the executor or {@link DatabaseWorker#shutdown()}
+         */
+        private final AtomicBoolean claimed = new AtomicBoolean();
+
+        /**
+         * The session kept open between drains while there is work queued, only used if sessions are thread bound
+         */
+        private Session session;
+
+        @Override
+        public void run() {
+            if (!claimed.compareAndSet(false, true)) return;
+
+            try {
+                thread = Thread.currentThread();
+                started.countDown();
+                process();
+            } finally {
+                stopped.countDown();
+            }
+        }
+
+        private void process() {
+            while (running) {
+                try {
+                    if (isIdle()) {
+                        // Don't hold a connection while there is nothing to do
+                        release();
+
+                        // Sleep until there is work to do
+                        accept(taskQueue.take());
+
+                        // Give the caller a chance to queue related work so it is run in the same drain
+                        long deadline = System.nanoTime() + lingerNanos;
+                        long remaining;
+                        while ((remaining = deadline - System.nanoTime()) > 0) {
+                            DatabaseTask next = taskQueue.poll(remaining, TimeUnit.NANOSECONDS);
+                            if (next == null) break;
+                            accept(next);
+                        }
+                    }
+                } catch (InterruptedException ignored) {
+                    // Shutting down, anything left is drained below
+                }
+
+                acceptQueued();
+                hold();
+                execute(nextDrain());
+            }
+
+            // Don't drop work that was queued before shutdown
+            // Clear the interrupt first, if it arrived mid-drain the pool would refuse to hand out a connection
+            Thread.interrupted();
+            acceptQueued();
+            while (!isIdle()) {
+                hold();
+                execute(nextDrain());
+            }
+            release();
+        }
+
+        /**
+         * Bind a session to the lane thread, so each drain reuses it instead of checking out a connection
+         */
+        private void hold() {
+            if (session != null || !sessionFactory.getSessionOptions().threadBound) return;
+
+            try {
+                session = sessionFactory.getCurrentSession();
+            } catch (RuntimeException ignored) {
+                // Reported by the drain when it can't open a session either
+            }
+        }
+
+        private void release() {
+            if (session == null) return;
+
+            session.close();
+            session = null;
+        }
+
+        private boolean isIdle() {
+            for (ArrayDeque<DatabaseTask> tasks : waiting) {
+                if (!tasks.isEmpty()) return false;
+            }
+
+            return true;
+        }
+
+        private void accept(DatabaseTask task) {
+            waiting.get(task.priority.ordinal()).add(task);
+        }
+
+        private void acceptQueued() {
+            DatabaseTask task;
+            while ((task = taskQueue.poll()) != null) {
+                accept(task);
+            }
+        }
+
+        /**
+         * Take the tasks for the next drain, highest priority first
+         * <p>Lower priority tasks that have waited past the starvation threshold are taken first, up to a quarter of the drain</p>
+         */
+        private List<DatabaseTask> nextDrain() {
+            List<DatabaseTask> drain = new ArrayList<>();
+
+            int limit = drainLimit > 0 ? drainLimit : Integer.MAX_VALUE;
+            int starvedLimit = Math.max(1, limit / 4);
+            long now = System.nanoTime();
+
+            for (int priority = 1; priority < waiting.size(); priority++) {
+                ArrayDeque<DatabaseTask> tasks = waiting.get(priority);
+                while (drain.size() < starvedLimit && !tasks.isEmpty() && now - tasks.peek().queuedAt >= starvationNanos) {
+                    drain.add(tasks.poll());
+                }
+            }
+
+            for (ArrayDeque<DatabaseTask> tasks : waiting) {
+                while (drain.size() < limit && !tasks.isEmpty()) {
+                    drain.add(tasks.poll());
+                }
+            }
+
+            return drain;
         }
     }
 
     private final SessionFactory sessionFactory;
 
-    private final ConcurrentLinkedQueue<DatabaseTask> taskQueue = new ConcurrentLinkedQueue<>();
+    private final Lane[] lanes;
+
+    private final ExecutorService executor;
+
+    /**
+     * If the executor was created by this worker, and should be shut down with it
+     */
+    private final boolean ownsExecutor;
+
+    private final CountDownLatch started;
+    private final CountDownLatch stopped;
+
+    /**
+     * Merges pending saves of the same entity, null if write-behind is disabled
+     */
+    private final WriteBehindBuffer writeBehind;
+
+    /**
+     * Wrap each drain in transactions, see {@link SessionFactory.Builder#setGroupCommit(int, long)}
+     */
+    private final boolean groupCommit;
+    private final int groupCommitMaxTasks;
+    private final long groupCommitNanos;
+
+    private final WorkerMetrics metrics = new WorkerMetrics();
+
+    /**
+     * Records queued writes until they are committed, null if journaling is disabled
+     */
+    private final WriteJournal journal;
+
+    /**
+     * Where the metrics are registered with JMX, null if they aren't
+     */
+    private final ObjectName jmxName;
+
+    /**
+     * Delivers callbacks, null if they run on the worker thread
+     */
+    private final ResultDispatcher resultDispatcher;
+
+    /**
+     * Distributes tasks without a routing key
+     */
+    private final AtomicInteger nextLane = new AtomicInteger();
+
+    /**
+     * How long a lane waits for more tasks after waking before it starts draining
+     */
+    private final long lingerNanos;
+
+    /**
+     * The most tasks run in one drain, 0 for no limit
+     */
+    private final int drainLimit;
+
+    /**
+     * How long a lower priority task waits before it is guaranteed a place in a drain
+     */
+    private final long starvationNanos;
+
+    private volatile boolean running = true;
 
     public DatabaseWorker(SessionFactory sessionFactory) {
+        this(sessionFactory, new WorkerOptions());
+    }
+
+    DatabaseWorker(SessionFactory sessionFactory, WorkerOptions options) {
         this.sessionFactory = sessionFactory;
+        this.lingerNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(0, options.lingerMillis));
+        this.drainLimit = options.drainLimit;
+        this.starvationNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(0, options.starvationMillis));
+
+        this.lanes = new Lane[Math.max(1, options.lanes)];
+        for (int i = 0; i < lanes.length; i++) {
+            lanes[i] = new Lane();
+        }
+        this.started = new CountDownLatch(lanes.length);
+        this.stopped = new CountDownLatch(lanes.length);
+        this.writeBehind = options.writeBehind ? new WriteBehindBuffer(this, sessionFactory.getPersistenceContext()) : null;
+        this.groupCommit = options.groupCommit;
+        this.groupCommitMaxTasks = options.groupCommitMaxTasks;
+        this.groupCommitNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(0, options.groupCommitMaxMillis));
+        this.jmxName = jmxName(options.jmxName);
+
+        if (options.journalFile != null) {
+            try {
+                this.journal = new WriteJournal(options.journalFile, options.journalSync);
+            } catch (IOException e) {
+                throw new RuntimeException("Could not open write journal " + options.journalFile, e);
+            }
+        } else {
+            this.journal = null;
+        }
+        this.resultDispatcher = options.resultDispatch ? new ResultDispatcher(options.resultExecutor, options.resultBudgetMillis) : null;
+
+        if (options.executor != null) {
+            this.executor = options.executor;
+            this.ownsExecutor = false;
+        } else if (options.virtualThreads && VirtualThreads.isSupported()) {
+            this.executor = VirtualThreads.newThreadPerTaskExecutor(THREAD_NAME);
+            this.ownsExecutor = true;
+        } else {
+            if (options.virtualThreads) {
+                OrmMicroLogger.DATABASE_WORKER.info("Virtual threads require Java 21, using platform threads");
+            }
+
+            this.executor = newPlatformExecutor(lanes.length);
+            this.ownsExecutor = true;
+        }
     }
 
-    @Override
-    public void run() {
-        if (taskQueue.isEmpty()) return;
+    private static final String THREAD_NAME = "OrmMicro Database Worker #";
 
-        Connection connection = sessionFactory.getCurrentSession().getConnection();
+    /**
+     * One platform thread per lane
+     */
+    private static ExecutorService newPlatformExecutor(int lanes) {
+        AtomicInteger threadNumber = new AtomicInteger();
+        return Executors.newFixedThreadPool(lanes, r -> new Thread(r, THREAD_NAME + threadNumber.getAndIncrement()));
+    }
+
+    /**
+     * How long a supplied executor may take to start every lane
+     */
+    private static final long LANE_START_TIMEOUT_MILLIS = 2000;
+
+    /**
+     * Start processing queued tasks
+     *
+     * @throws IllegalStateException If a supplied executor doesn't start a thread for every lane
+     */
+    public void start() {
+        // Writes left over from the last run go first
+        if (journal != null) journal.replay(sessionFactory);
+
+        for (Lane lane : lanes) {
+            executor.execute(lane);
+        }
 
-        while(!taskQueue.isEmpty()) {
-            DatabaseTask currentTask = taskQueue.poll();
-            if (currentTask == null) continue;
+        // A supplied executor with fewer threads than lanes would never run the tasks queued on the other lanes
+        if (!ownsExecutor) awaitLanes();
 
-            PreparedStatement statement;
-            boolean results;
+        if (jmxName != null) {
             try {
-                statement = connection.prepareStatement(currentTask.statement);
-                SqlUtil.insertParametersInto(statement, currentTask.parameters);
+                ManagementFactory.getPlatformMBeanServer().registerMBean(metrics, jmxName);
+            } catch (JMException e) {
+                OrmMicroLogger.DATABASE_WORKER.exception(e, "Failed to register worker metrics as " + jmxName);
+            }
+        }
+    }
 
-                results = statement.execute();
-            } catch (SQLException e) {
-                OrmMicroLogger.DATABASE_WORKER.exception(e, "Failed to execute async statement `" + currentTask.statement + "`");
-                if (currentTask.receiver != null) currentTask.receiver.accept(null);
-                if (currentTask.updateReceiver != null) currentTask.updateReceiver.accept(-1);
-                continue;
+    private void awaitLanes() {
+        boolean allStarted;
+        try {
+            allStarted = started.await(LANE_START_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            allStarted = started.getCount() == 0;
+        }
+        if (allStarted) return;
+
+        long waiting = started.getCount();
+        shutdown();
+        throw OrmMicroLogger.DATABASE_WORKER.exception(null, String.format(
+                "The worker executor started %d of %d lanes, it must be able to run a thread for every lane",
+                lanes.length - waiting, lanes.length
+        ), true);
+    }
+
+    /**
+     * Stop the worker
+     * <p>Tasks already in the queue are executed before the lanes exit.
+     * An executor supplied through {@link SessionFactory.Builder#setWorkerExecutor(ExecutorService)} is not shut down</p>
+     */
+    public void shutdown() {
+        running = false;
+
+        for (Lane lane : lanes) {
+            // Lanes that haven't started yet will see running == false
+            Thread thread = lane.thread;
+            if (thread != null) thread.interrupt();
+        }
+
+        // Lanes the executor never started drain their queues here, instead of being waited on forever
+        boolean interrupted = Thread.currentThread().isInterrupted();
+        for (Lane lane : lanes) {
+            lane.run();
+        }
+        if (interrupted) Thread.currentThread().interrupt();
+
+        try {
+            stopped.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        if (ownsExecutor) executor.shutdown();
+
+        if (journal != null) journal.close();
+
+        if (jmxName != null) {
+            try {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(jmxName);
+            } catch (JMException ignored) {
+                // Never registered
+            }
+        }
+    }
+
+    private static ObjectName jmxName(String name) {
+        if (name == null) return null;
+
+        try {
+            return new ObjectName("net.mcmerdith.ormmicro:type=DatabaseWorker,name=" + ObjectName.quote(name));
+        } catch (MalformedObjectNameException e) {
+            OrmMicroLogger.DATABASE_WORKER.exception(e, "Invalid JMX name `" + name + "`, metrics will not be registered");
+            return null;
+        }
+    }
+
+    /**
+     * Get the queue, wait, execution and callback metrics of this worker
+     */
+    public WorkerMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Get the dispatcher delivering callbacks
+     *
+     * @return The dispatcher, or null if callbacks run on the worker thread
+     */
+    public ResultDispatcher getResultDispatcher() {
+        return resultDispatcher;
+    }
+
+    /**
+     * Get the executor callbacks should be delivered on
+     * <p>Use with the async methods of {@link CompletionStage}, e.g.
+     * <code>stage.thenAcceptAsync(callback, worker.getResultExecutor())</code></p>
+     *
+     * @return The result dispatcher, or an executor running callbacks on the completing thread
+     */
+    public Executor getResultExecutor() {
+        return resultDispatcher != null ? resultDispatcher : Runnable::run;
+    }
+
+    /**
+     * Get the number of lanes tasks are distributed across
+     */
+    public int getLaneCount() {
+        return lanes.length;
+    }
+
+    /**
+     * Find the lane responsible for a routing key
+     * <p>Tasks with the same key always land on the same lane and are executed in the order they were queued.
+     * Tasks without a key are spread across all lanes</p>
+     */
+    private Lane laneFor(Object key) {
+        if (lanes.length == 1) return lanes[0];
+
+        int hash = (key == null) ? nextLane.getAndIncrement() : key.hashCode();
+
+        // Spread the high bits, table names and sequential ids tend to differ only in the low bits
+        hash ^= (hash >>> 16);
+
+        return lanes[Math.floorMod(hash, lanes.length)];
+    }
+
+    private void execute(List<DatabaseTask> tasks) {
+        if (tasks.isEmpty()) return;
+
+        Session session;
+        try {
+            session = sessionFactory.getCurrentSession();
+        } catch (RuntimeException e) {
+            OrmMicroLogger.DATABASE_WORKER.exception(e, "Failed to open a session for " + tasks.size() + " async statement(s)");
+
+            SQLException failure = new SQLException("Could not open a session for async statement", e);
+            for (DatabaseTask currentTask : tasks) {
+                fail(currentTask, failure);
             }
+            return;
+        }
 
+        try (session) {
+            // Keep one connection for the whole drain, even if connections are lazy
+            session.pin();
             try {
-                if (currentTask.receiver != null) {
-                    if (results) currentTask.receiver.accept(statement.getResultSet());
-                    else currentTask.receiver.accept(null);
+                execute(session, tasks);
+            } finally {
+                session.unpin();
+            }
+        }
+    }
+
+    private void execute(Session session, List<DatabaseTask> tasks) {
+        int next = 0;
+
+        if (groupCommit) {
+            while (next < tasks.size()) {
+                int groupEnd = executeGroup(session.forShard(tasks.get(next).shard), tasks, next);
+
+                // The transaction couldn't be started, run the rest on their own
+                if (groupEnd == next) break;
+
+                next = groupEnd;
+            }
+        }
+
+        while (next < tasks.size()) {
+            int batchEnd = batchEnd(tasks, next, tasks.size());
+            Session shardSession = session.forShard(tasks.get(next).shard);
+
+            if (batchEnd - next > 1 && executeBatch(shardSession, tasks.subList(next, batchEnd))) {
+                next = batchEnd;
+                continue;
+            }
+
+            for (; next < batchEnd; next++) {
+                DatabaseTask currentTask = tasks.get(next);
+                if (currentTask.future.isDone()) continue;
+
+                try {
+                    complete(currentTask, execute(shardSession, currentTask));
+                } catch (Exception e) {
+                    fail(currentTask, e);
                 }
-            } catch (SQLException ignored) {
-                currentTask.receiver.accept(null);
             }
+        }
+    }
 
-            try {
-                if (currentTask.updateReceiver != null) {
-                    if (results) currentTask.updateReceiver.accept(-1);
-                    else currentTask.updateReceiver.accept(statement.getUpdateCount());
+    /**
+     * Execute tasks in a single transaction, starting at <code>from</code>, until the group is full or the next task
+     * is for another shard
+     * <p>Each task (or batch) runs inside its own savepoint, a failure is rolled back without affecting the rest of the group.
+     * Successful tasks are completed once the transaction commits</p>
+     *
+     * @return The index of the first task not in the group, or <code>from</code> if the transaction could not be started
+     */
+    private int executeGroup(Session session, List<DatabaseTask> tasks, int from) {
+        try {
+            session.beginTransaction();
+        } catch (RuntimeException e) {
+            OrmMicroLogger.DATABASE_WORKER.exception(e, "Failed to start group commit, executing in auto-commit mode");
+            return from;
+        }
+
+        Connection connection = session.getConnection();
+        long deadline = System.nanoTime() + groupCommitNanos;
+        int limit = groupCommitMaxTasks <= 0 ? tasks.size() : (int) Math.min(tasks.size(), (long) from + groupCommitMaxTasks);
+
+        // A transaction can't span shards
+        for (int i = from + 1; i < limit; i++) {
+            if (tasks.get(i).shard != tasks.get(from).shard) {
+                limit = i;
+                break;
+            }
+        }
+
+        List<DatabaseTask> succeeded = new ArrayList<>();
+        List<Object> results = new ArrayList<>();
+
+        int next = from;
+        do {
+            int batchEnd = batchEnd(tasks, next, limit);
+
+            if (batchEnd - next > 1) {
+                List<DatabaseTask> batch = tasks.subList(next, batchEnd);
+
+                Savepoint savepoint = null;
+                try {
+                    savepoint = connection.setSavepoint();
+                    int[] counts = executeBatch(session, batch.get(0).statement, batch);
+                    connection.releaseSavepoint(savepoint);
+
+                    succeeded.addAll(batch);
+                    for (int count : counts) results.add(count);
+
+                    next = batchEnd;
+                    continue;
+                } catch (SQLException e) {
+                    // Undo the partial batch, its tasks are retried one at a time below
+                    if (savepoint != null && !rollback(connection, savepoint, batch.get(0))) {
+                        for (DatabaseTask currentTask : batch) fail(currentTask, e);
+
+                        next = batchEnd;
+                        continue;
+                    }
                 }
-            } catch (SQLException ignored) {
-                currentTask.updateReceiver.accept(-1);
             }
+
+            for (; next < batchEnd; next++) {
+                DatabaseTask currentTask = tasks.get(next);
+                if (currentTask.future.isDone()) continue;
+
+                Savepoint savepoint = null;
+                try {
+                    savepoint = connection.setSavepoint();
+                    Object result = execute(session, currentTask);
+                    connection.releaseSavepoint(savepoint);
+
+                    succeeded.add(currentTask);
+                    results.add(result);
+                } catch (Exception e) {
+                    // Undo only this task, the rest of the group is unaffected
+                    rollback(connection, savepoint, currentTask);
+
+                    fail(currentTask, e);
+                }
+            }
+        } while (next < limit && (groupCommitNanos <= 0 || System.nanoTime() < deadline));
+
+        try {
+            session.commitTransaction();
+        } catch (RuntimeException e) {
+            OrmMicroLogger.DATABASE_WORKER.exception(e, "Failed to commit " + succeeded.size() + " async statement(s)");
+
+            try {
+                session.rollbackTransaction();
+            } catch (RuntimeException ignored) {
+            }
+
+            SQLException failure = (e.getCause() instanceof SQLException) ? (SQLException) e.getCause()
+                    : new SQLException("Failed to commit async statement", e);
+            for (DatabaseTask currentTask : succeeded) {
+                fail(currentTask, failure);
+            }
+
+            return next;
         }
+
+        for (int i = 0; i < succeeded.size(); i++) {
+            complete(succeeded.get(i), results.get(i));
+        }
+
+        return next;
+    }
+
+    /**
+     * Roll back to a savepoint
+     *
+     * @return If the rollback succeeded
+     */
+    private boolean rollback(Connection connection, Savepoint savepoint, DatabaseTask currentTask) {
+        if (savepoint == null) return false;
+
+        try {
+            connection.rollback(savepoint);
+            return true;
+        } catch (SQLException rollbackFailure) {
+            OrmMicroLogger.DATABASE_WORKER.exception(rollbackFailure, "Failed to roll back async statement `" + currentTask.statement + "`");
+            return false;
+        }
+    }
+
+    /**
+     * Find the run of updates starting at <code>from</code> that share the same statement and shard, resolving them as needed
+     * <p>Tasks whose statement could not be built are completed exceptionally and end the run</p>
+     *
+     * @return The index of the first task not in the run
+     */
+    private int batchEnd(List<DatabaseTask> tasks, int from, int limit) {
+        DatabaseTask first = tasks.get(from);
+        // Generated keys can't be read back from a batch reliably
+        if (first.handler != null || !resolve(first) || first.generatedIdTarget != null) return from + 1;
+
+        int end = from + 1;
+        while (end < limit) {
+            DatabaseTask currentTask = tasks.get(end);
+            if (currentTask.handler != null || currentTask.shard != first.shard) break;
+            if (!resolve(currentTask) || currentTask.generatedIdTarget != null || !first.statement.equals(currentTask.statement)) break;
+
+            end++;
+        }
+
+        return end;
+    }
+
+    /**
+     * Resolve a task, failing it if the statement can't be built
+     *
+     * @return If the task has a statement to execute
+     */
+    private boolean resolve(DatabaseTask currentTask) {
+        if (currentTask.future.isDone()) return false;
+
+        try {
+            currentTask.resolve(sessionFactory.getPersistenceContext());
+            return true;
+        } catch (RuntimeException e) {
+            OrmMicroLogger.DATABASE_WORKER.exception(e, "Failed to build deferred async statement");
+            fail(currentTask, e);
+            return false;
+        }
+    }
+
+    /**
+     * Execute a batch in its own transaction, completing each task with its update count
+     * <p>Drivers differ in how much of a failed batch is applied, so a failed batch is rolled back
+     * and left for the caller to retry one task at a time</p>
+     *
+     * @return If the tasks were completed
+     */
+    private boolean executeBatch(Session session, List<DatabaseTask> batch) {
+        try {
+            session.beginTransaction();
+        } catch (RuntimeException e) {
+            OrmMicroLogger.DATABASE_WORKER.exception(e, "Failed to start transaction for batch, executing individually");
+            return false;
+        }
+
+        int[] counts;
+        try {
+            counts = executeBatch(session, batch.get(0).statement, batch);
+            session.commitTransaction();
+        } catch (SQLException | RuntimeException e) {
+            try {
+                session.rollbackTransaction();
+            } catch (RuntimeException rollbackFailure) {
+                // The batch may be partially applied, retrying could apply rows twice
+                OrmMicroLogger.DATABASE_WORKER.exception(rollbackFailure, "Failed to roll back batch `" + batch.get(0).statement + "`");
+                for (DatabaseTask currentTask : batch) fail(currentTask, e);
+                return true;
+            }
+
+            return false;
+        }
+
+        for (int i = 0; i < batch.size(); i++) {
+            complete(batch.get(i), counts[i]);
+        }
+
+        return true;
+    }
+
+    /**
+     * Execute updates sharing one statement as a JDBC batch
+     *
+     * @return The update count of each task
+     * @throws SQLException The failure, already logged
+     */
+    private int[] executeBatch(Session session, String statement, List<DatabaseTask> batch) throws SQLException {
+        long start = System.nanoTime();
+        for (DatabaseTask currentTask : batch) started(currentTask, start);
+
+        // Not cached, some drivers (sqlite-jdbc) can't execute a statement on its own once it has run a batch.
+        // One prepare per batch is cheap anyway
+        try (PreparedStatement prepared = session.getConnection().prepareStatement(statement)) {
+            for (DatabaseTask currentTask : batch) {
+                SqlUtil.insertParametersInto(prepared, currentTask.parameters);
+                prepared.addBatch();
+            }
+
+            int[] counts = prepared.executeBatch();
+
+            long share = (System.nanoTime() - start) / batch.size();
+            for (int i = 0; i < batch.size(); i++) metrics.executed(share);
+
+            return counts;
+        } catch (SQLException e) {
+            OrmMicroLogger.DATABASE_WORKER.exception(e, "Failed to execute batch of " + batch.size() + " async statement(s) `" + statement + "`");
+            throw e;
+        }
+    }
+
+    /**
+     * Execute a single task
+     *
+     * @return The update count, or the value produced by the task's handler
+     * @throws Exception The failure, already logged
+     */
+    private Object execute(Session session, DatabaseTask currentTask) throws Exception {
+        if (!resolve(currentTask)) {
+            // Already failed while being resolved
+            throw new IllegalStateException("Async statement could not be built");
+        }
+
+        long start = System.nanoTime();
+        started(currentTask, start);
+
+        if (currentTask.generatedIdTarget != null) {
+            int inserted;
+            try {
+                inserted = session.executeInsert(new ParameterizedStatement(currentTask.statement, currentTask.parameters), currentTask.generatedIdTarget);
+            } catch (SQLException e) {
+                OrmMicroLogger.DATABASE_WORKER.exception(e, "Failed to execute async statement `" + currentTask.statement + "`");
+                throw e;
+            }
+
+            metrics.executed(System.nanoTime() - start);
+            return inserted;
+        }
+
+        PreparedStatement statement = null;
+        boolean results;
+        try {
+            // Queries go to the read replica, unless they are part of a group commit
+            statement = currentTask.handler == null
+                    ? session.prepareStatement(currentTask.statement)
+                    : session.prepareReadStatement(currentTask.statement);
+            SqlUtil.insertParametersInto(statement, currentTask.parameters);
+
+            results = statement.execute();
+        } catch (SQLException e) {
+            if (statement != null) session.releaseStatement(statement);
+            OrmMicroLogger.DATABASE_WORKER.exception(e, "Failed to execute async statement `" + currentTask.statement + "`");
+            throw e;
+        }
+
+        long executed = System.nanoTime();
+        metrics.executed(executed - start);
+
+        if (currentTask.handler == null) {
+            try {
+                return results ? -1 : statement.getUpdateCount();
+            } finally {
+                session.releaseStatement(statement);
+            }
+        }
+
+        ResultSet resultSet = null;
+        try {
+            if (results) {
+                resultSet = statement.getResultSet();
+                // Queries the handler runs with the same SQL must not reuse the statement
+                session.resultsOpened(currentTask.statement, statement, resultSet);
+            }
+
+            return currentTask.handler.handle(session, resultSet);
+        } catch (Exception e) {
+            // A misbehaving handler must not take the worker thread down with it
+            OrmMicroLogger.DATABASE_WORKER.exception(e, "Failed to process results of async statement `" + currentTask.statement + "`");
+            throw e;
+        } finally {
+            // The statement is cached, close the results so it can be reused
+            if (resultSet != null) resultSet.close();
+            else session.releaseStatement(statement);
+
+            currentTask.handlerNanos = System.nanoTime() - executed;
+        }
+    }
+
+    /**
+     * Mark a task as started, once
+     */
+    private void started(DatabaseTask task, long now) {
+        if (task.startedAt != 0) return;
+
+        task.startedAt = now;
+        metrics.started(now - task.queuedAt);
+    }
+
+    /**
+     * Complete a task, running any callbacks waiting on it
+     */
+    private void complete(DatabaseTask task, Object result) {
+        long start = System.nanoTime();
+        started(task, start);
+
+        journalDone(task.journalId);
+        metrics.completed(true);
+        task.future.complete(result);
+        metrics.calledBack(task.handlerNanos + System.nanoTime() - start);
+    }
+
+    /**
+     * Fail a task, running any callbacks waiting on it
+     */
+    private void fail(DatabaseTask task, Throwable failure) {
+        long start = System.nanoTime();
+        started(task, start);
+
+        journalDone(task.journalId);
+        metrics.completed(false);
+        task.future.completeExceptionally(failure);
+        metrics.calledBack(task.handlerNanos + System.nanoTime() - start);
+    }
+
+    /**
+     * Journal a save, see {@link WriteJournal#appendSave(int, ParameterizedStatement, ParameterizedStatement)}
+     *
+     * @return The id of the record, -1 if journaling is disabled
+     */
+    long journalSave(MappedSqlModel<?> model) {
+        if (journal == null) return -1;
+
+        return journal.appendSave(sessionFactory.getShard(model), ModelStatements.update(model), ModelStatements.insert(model));
+    }
+
+    /**
+     * Mark a journaled write as finished
+     *
+     * @param id The id of the record, ignored if -1
+     */
+    void journalDone(long id) {
+        if (journal != null) journal.done(id);
+    }
+
+    /**
+     * Get the shard a task for a routing key runs on, updates keyed by a model run on the model's shard
+     */
+    private int shardOf(Object key) {
+        return key instanceof MappedSqlModel ? sessionFactory.getShard((MappedSqlModel<?>) key) : 0;
+    }
+
+    private void enqueue(Object key, DatabaseTask task) {
+        metrics.queued();
+        laneFor(key).taskQueue.add(task);
+    }
+
+    /**
+     * Queue an update
+     *
+     * @param key        The routing key, updates sharing a key (ex. the table name or a {@link net.mcmerdith.ormmicro.modeling.MappedSqlModel})
+     *                   are executed in order. May be null if ordering does not matter
+     * @param statement  The statement to execute
+     * @param parameters The statement parameters
+     * @return A stage completed with the update count, or completed exceptionally with the {@link SQLException}
+     * that caused the update to fail
+     */
+    public CompletionStage<Integer> submitUpdate(Object key, String statement, List<Object> parameters) {
+        return submitUpdate(key, TaskPriority.NORMAL, statement, parameters);
+    }
+
+    /**
+     * Queue an update
+     *
+     * @param key        The routing key, see {@link DatabaseWorker#submitUpdate(Object, String, List)}
+     * @param priority   How urgently the update should run
+     * @param statement  The statement to execute
+     * @param parameters The statement parameters
+     * @return A stage completed with the update count, or completed exceptionally with the {@link SQLException}
+     * that caused the update to fail
+     */
+    @SuppressWarnings("unchecked") // Updates always complete with an Integer
+    public CompletionStage<Integer> submitUpdate(Object key, TaskPriority priority, String statement, List<Object> parameters) {
+        DatabaseTask task = new DatabaseTask(priority, statement, parameters, null);
+        task.shard = shardOf(key);
+        if (journal != null) task.journalId = journal.append(task.shard, statement, parameters);
+        enqueue(key, task);
+        return (CompletionStage<Integer>) (CompletionStage<?>) task.future;
+    }
+
+    /**
+     * Queue an update that is built when it is executed
+     * <p>Use when the statement depends on the state of earlier tasks for the same key</p>
+     *
+     * @param key       The routing key, see {@link DatabaseWorker#submitUpdate(Object, String, List)}
+     * @param statement Builds the statement on the worker thread
+     * @return A stage completed with the update count, or completed exceptionally with the {@link SQLException}
+     * that caused the update to fail
+     */
+    public CompletionStage<Integer> submitUpdate(Object key, Supplier<ParameterizedStatement> statement) {
+        return submitUpdate(key, statement, -1);
+    }
+
+    /**
+     * Queue an update that is built when it is executed
+     *
+     * @param journalId The write journal record of the update, marked done when the update completes
+     */
+    @SuppressWarnings("unchecked") // Updates always complete with an Integer
+    CompletionStage<Integer> submitUpdate(Object key, Supplier<ParameterizedStatement> statement, long journalId) {
+        DatabaseTask task = new DatabaseTask(TaskPriority.NORMAL, statement);
+        task.shard = shardOf(key);
+        task.journalId = journalId;
+        enqueue(key, task);
+        return (CompletionStage<Integer>) (CompletionStage<?>) task.future;
+    }
+
+    /**
+     * Queue a save of a mapped model
+     * <p>Whether the model is inserted or updated is decided when the save is executed, after any earlier saves
+     * of the same entity have completed</p>
+     * <p>With write-behind enabled ({@link SessionFactory.Builder#setWriteBehind(boolean)}), a save that is still
+     * waiting in the queue absorbs later saves of the same entity and only writes the latest state</p>
+     *
+     * @param model The model to save
+     * @return A stage completed with the number of rows affected by the write that included this save,
+     * or completed exceptionally with the {@link SQLException} that caused the save to fail
+     */
+    public CompletionStage<Integer> submitSave(MappedSqlModel<?> model) {
+        if (writeBehind != null) return writeBehind.save(model);
+
+        return submitSave(model, () -> model, journalSave(model)).thenApply(updated -> {
+            sessionFactory.getPersistenceContext().trackSaved(model);
+            return updated;
+        });
+    }
+
+    /**
+     * Queue a save whose state is taken when it is executed
+     * <p>Inserts read the identifier generated by the database back into the model</p>
+     *
+     * @param key       The routing key, see {@link DatabaseWorker#submitUpdate(Object, String, List)}
+     * @param save      Supplies the mapped state to write, on the worker thread
+     * @param journalId The write journal record of the save, marked done when the save completes
+     */
+    @SuppressWarnings("unchecked") // Updates always complete with an Integer
+    CompletionStage<Integer> submitSave(Object key, Supplier<MappedSqlModel<?>> save, long journalId) {
+        DatabaseTask task = new DatabaseTask(save);
+        task.shard = shardOf(key);
+        task.journalId = journalId;
+        enqueue(key, task);
+        return (CompletionStage<Integer>) (CompletionStage<?>) task.future;
+    }
+
+    /**
+     * Queue a delete of a mapped model
+     * <p>Ordered after any pending saves of the same entity</p>
+     *
+     * @param model The model to remove
+     * @return A stage completed with the number of rows affected, or completed exceptionally with the
+     * {@link SQLException} that caused the delete to fail
+     */
+    public CompletionStage<Integer> submitRemove(MappedSqlModel<?> model) {
+        // Saves requested after this must not be merged into one queued before it
+        if (writeBehind != null) writeBehind.seal(model);
+
+        ParameterizedStatement statement = ModelStatements.delete(model);
+
+        return submitUpdate(model, statement.getStatement(), statement.getParameters()).thenApply(removed -> {
+            sessionFactory.getPersistenceContext().untrack(model);
+            return removed;
+        });
+    }
+
+    /**
+     * Queue a query
+     * <p>Queries are executed on a read replica if there are any, so they may not see updates queued before them
+     * until the replica catches up</p>
+     *
+     * @param key        The routing key, queries sharing a key are executed in order with updates for the same key.
+     *                   May be null if ordering does not matter
+     * @param statement  The statement to execute
+     * @param parameters The statement parameters
+     * @param handler    Processes the results on the worker thread
+     * @param <R>        The type produced by the handler
+     * @return A stage completed with the value produced by the handler, or completed exceptionally with the
+     * {@link SQLException} that caused the query to fail
+     */
+    public <R> CompletionStage<R> submitQuery(Object key, String statement, List<Object> parameters, ResultHandler<R> handler) {
+        return submitQuery(key, TaskPriority.NORMAL, statement, parameters, handler);
+    }
+
+    /**
+     * Queue a query
+     *
+     * @param key        The routing key, see {@link DatabaseWorker#submitQuery(Object, String, List, ResultHandler)}
+     * @param priority   How urgently the query should run
+     * @param statement  The statement to execute
+     * @param parameters The statement parameters
+     * @param handler    Processes the results on the worker thread
+     * @param <R>        The type produced by the handler
+     * @return A stage completed with the value produced by the handler, or completed exceptionally with the
+     * {@link SQLException} that caused the query to fail
+     */
+    public <R> CompletionStage<R> submitQuery(Object key, TaskPriority priority, String statement, List<Object> parameters, ResultHandler<R> handler) {
+        return submitQuery(key, priority, 0, statement, parameters, handler);
+    }
+
+    /**
+     * Queue a query on a shard
+     * <p>Queries on shards other than the first don't use read replicas</p>
+     *
+     * @param key        The routing key, see {@link DatabaseWorker#submitQuery(Object, String, List, ResultHandler)}
+     * @param priority   How urgently the query should run
+     * @param shard      The shard to query, see {@link SessionFactory#getShardCount()}
+     * @param statement  The statement to execute
+     * @param parameters The statement parameters
+     * @param handler    Processes the results on the worker thread
+     * @param <R>        The type produced by the handler
+     * @return A stage completed with the value produced by the handler, or completed exceptionally with the
+     * {@link SQLException} that caused the query to fail
+     */
+    @SuppressWarnings("unchecked") // The future is only ever completed by the handler
+    public <R> CompletionStage<R> submitQuery(Object key, TaskPriority priority, int shard, String statement, List<Object> parameters, ResultHandler<R> handler) {
+        DatabaseTask task = new DatabaseTask(priority, statement, parameters, handler);
+        task.shard = shard;
+        enqueue(key, task);
+        return (CompletionStage<R>) task.future;
     }
 
     public void executeUpdateAsync(String statement, List<Object> parameters, Consumer<Integer> receiver) {
-        taskQueue.add(new DatabaseTask(statement, parameters, null, receiver));
+        executeUpdateAsync(null, statement, parameters, receiver);
+    }
+
+    /**
+     * Queue an update
+     *
+     * @param key        The routing key, see {@link DatabaseWorker#submitUpdate(Object, String, List)}
+     * @param statement  The statement to execute
+     * @param parameters The statement parameters
+     * @param receiver   Receives the update count, or -1 on failure, on the {@link DatabaseWorker#getResultExecutor() result executor}
+     */
+    public void executeUpdateAsync(Object key, String statement, List<Object> parameters, Consumer<Integer> receiver) {
+        executeUpdateAsync(key, TaskPriority.NORMAL, statement, parameters, receiver);
+    }
+
+    /**
+     * Queue an update
+     *
+     * @param key        The routing key, see {@link DatabaseWorker#submitUpdate(Object, String, List)}
+     * @param priority   How urgently the update should run
+     * @param statement  The statement to execute
+     * @param parameters The statement parameters
+     * @param receiver   Receives the update count, or -1 on failure, on the {@link DatabaseWorker#getResultExecutor() result executor}.
+     *                   May be null if the result isn't needed
+     */
+    public void executeUpdateAsync(Object key, TaskPriority priority, String statement, List<Object> parameters, Consumer<Integer> receiver) {
+        CompletionStage<Integer> update = submitUpdate(key, priority, statement, parameters);
+        if (receiver == null) return;
+
+        update.whenCompleteAsync((count, e) -> receiver.accept(e == null ? count : -1), getResultExecutor());
     }
 
     public void executeQueryAsync(String statement, List<Object> parameters, Consumer<ResultSet> receiver) {
-        taskQueue.add(new DatabaseTask(statement, parameters, receiver, null));
+        executeQueryAsync(null, statement, parameters, receiver);
+    }
+
+    /**
+     * Queue a query
+     *
+     * @param key        The routing key, see {@link DatabaseWorker#submitQuery(Object, String, List, ResultHandler)}
+     * @param statement  The statement to execute
+     * @param parameters The statement parameters
+     * @param receiver   Receives the result set, or null on failure. Always runs on the worker thread, the result set
+     *                   is closed once the receiver returns
+     */
+    public void executeQueryAsync(Object key, String statement, List<Object> parameters, Consumer<ResultSet> receiver) {
+        executeQueryAsync(key, TaskPriority.NORMAL, statement, parameters, receiver);
+    }
+
+    /**
+     * Queue a query
+     *
+     * @param key        The routing key, see {@link DatabaseWorker#submitQuery(Object, String, List, ResultHandler)}
+     * @param priority   How urgently the query should run
+     * @param statement  The statement to execute
+     * @param parameters The statement parameters
+     * @param receiver   Receives the result set, or null on failure. Always runs on the worker thread, the result set
+     *                   is closed once the receiver returns. May be null if the results aren't needed
+     */
+    public void executeQueryAsync(Object key, TaskPriority priority, String statement, List<Object> parameters, Consumer<ResultSet> receiver) {
+        if (receiver == null) {
+            submitQuery(key, priority, statement, parameters, (session, rs) -> null);
+            return;
+        }
+
+        submitQuery(key, priority, statement, parameters, (session, rs) -> {
+            receiver.accept(rs);
+            return null;
+        }).exceptionally(e -> {
+            // Only report statement failures, if the receiver itself threw it has already seen the results
+            if (e instanceof SQLException) receiver.accept(null);
+            return null;
+        });
     }
 }
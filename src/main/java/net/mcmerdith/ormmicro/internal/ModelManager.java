@@ -1,9 +1,13 @@
 package net.mcmerdith.ormmicro.internal;
 
+import net.mcmerdith.ormmicro.modeling.GeneratedModel;
 import net.mcmerdith.ormmicro.modeling.MappedSqlModel;
+import net.mcmerdith.ormmicro.modeling.RowMapper;
 import net.mcmerdith.ormmicro.modeling.SqlModel;
 import net.mcmerdith.ormmicro.typing.SqlDialect;
 
+import java.util.Collection;
+import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 
@@ -22,8 +26,24 @@ public class ModelManager {
 
     private SqlDialect dialect;
 
+    /**
+     * The registered models, read without locking
+     * <p>A plain map rather than a {@link ClassValue}: values cached on a class live as long as the class, and would
+     * keep this manager, its factory and its pools reachable after the factory is closed</p>
+     */
     private final Map<Class<?>, SqlModel<?>> modelMappings = new ConcurrentHashMap<>();
 
+    private final Map<Class<?>, RowMapper<?>> rowMappers = new ConcurrentHashMap<>();
+
+    /**
+     * Metadata of models reflected over in a previous run, null if it isn't kept
+     */
+    private ModelMetadataCache metadataCache = null;
+
+    void setMetadataCache(ModelMetadataCache metadataCache) {
+        this.metadataCache = metadataCache;
+    }
+
     public void setDialect(SqlDialect dialect) {
         // Don't change the dialect unnecessarily
         if (this.dialect == dialect) return;
@@ -32,6 +52,7 @@ public class ModelManager {
 
         // We need to rebuild the model mappings after changing dialects
         modelMappings.clear();
+        rowMappers.clear();
     }
 
     public SqlDialect getDialect() {
@@ -42,11 +63,49 @@ public class ModelManager {
      * Register a model class with this manager
      * Class and declared fields will be traversed for annotations from the
      * {@link net.mcmerdith.ormmicro.annotations} package
+     * <p>Metadata generated at compile time is used if the model has any, see {@link GeneratedModel}.
+     * If the factory keeps a metadata cache, a model whose classes haven't changed is restored from it instead</p>
      *
      * @param model The model class to be registered
      */
-    public void registerModel(Class<?> model) {
-        modelMappings.put(model, new SqlModel<>(session, model));
+    public <T> void registerModel(Class<T> model) {
+        modelMappings.put(model, createModel(model));
+        rowMappers.remove(model);
+    }
+
+    /**
+     * Register a set of model classes in parallel, skipping those already registered
+     * <p>The metadata cache is written once they are all registered</p>
+     *
+     * @param models The model classes to be registered
+     * @see ModelManager#registerModel(Class)
+     */
+    public void registerModels(Collection<Class<?>> models) {
+        models.parallelStream()
+                .distinct()
+                .filter(model -> !modelMappings.containsKey(model))
+                .forEach(this::registerModel);
+
+        saveMetadataCache();
+    }
+
+    private <T> SqlModel<T> createModel(Class<T> model) {
+        GeneratedModel<T> generated = GeneratedModel.load(model);
+        if (metadataCache == null) return new SqlModel<>(session, model, generated);
+
+        SqlModel<T> cached = metadataCache.load(session, model, generated, dialect);
+        if (cached != null) return cached;
+
+        SqlModel<T> reflected = new SqlModel<>(session, model, generated);
+        metadataCache.store(session, model, reflected, dialect);
+        return reflected;
+    }
+
+    /**
+     * Write the metadata of models reflected over since the cache was last written
+     */
+    void saveMetadataCache() {
+        if (metadataCache != null) metadataCache.save();
     }
 
     /**
@@ -58,8 +117,37 @@ public class ModelManager {
      */
     @SuppressWarnings("unchecked")
     public <T> SqlModel<T> getModel(Class<T> model) {
-        if (!modelMappings.containsKey(model)) registerModel(model);
-        return (SqlModel<T>) modelMappings.get(model);
+        SqlModel<?> registered = modelMappings.get(model);
+        if (registered != null) return (SqlModel<T>) registered;
+
+        // Not computeIfAbsent, building a model may register the models it references
+        // Models registered by two threads at once are built twice, the first one registered is kept
+        SqlModel<T> created = createModel(model);
+        registered = modelMappings.putIfAbsent(model, created);
+        return registered == null ? created : (SqlModel<T>) registered;
+    }
+
+    /**
+     * Get the mapper that reads rows of a model's table into objects
+     * <p>Built on first use and reused until the model is registered again</p>
+     *
+     * @param model The class of the model
+     */
+    @SuppressWarnings("unchecked")
+    public <T> RowMapper<T> getRowMapper(Class<T> model) {
+        RowMapper<T> mapper = (RowMapper<T>) rowMappers.get(model);
+        if (mapper != null) return mapper;
+
+        // Getting the model may register it, which can't happen while computing the mapper
+        SqlModel<T> sqlModel = getModel(model);
+        return (RowMapper<T>) rowMappers.computeIfAbsent(model, m -> new RowMapper<>(sqlModel, model));
+    }
+
+    /**
+     * Get every registered model
+     */
+    public List<SqlModel<?>> getModels() {
+        return List.copyOf(modelMappings.values());
     }
 
     @SuppressWarnings("unchecked")
@@ -0,0 +1,259 @@
+package net.mcmerdith.ormmicro.internal;
+
+import net.mcmerdith.ormmicro.OrmMicroLogger;
+import net.mcmerdith.ormmicro.modeling.GeneratedModel;
+import net.mcmerdith.ormmicro.modeling.SqlModel;
+import net.mcmerdith.ormmicro.typing.ISqlTypeMapper;
+import net.mcmerdith.ormmicro.typing.SqlDialect;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A local file of model metadata, so models whose classes haven't changed are restored without reflecting over them
+ * <p>Entries are keyed by model and dialect, and hold a hash of the bytecode of the model and of the classes its
+ * metadata depends on (converters, referenced models, element types), of the factory's type mapper and naming strategy,
+ * and of their configuration versions. An entry whose hash no longer matches is ignored and replaced once the model
+ * has been reflected over again</p>
+ * <p>File layout: a header of magic and version, followed by an int count of entries of
+ * <code>[class name][dialect][long hash][int count][dependency names...][int length][metadata]</code></p>
+ *
+ * @see SqlModel#writeMetadata(java.io.DataOutput)
+ */
+class ModelMetadataCache {
+    private static final int MAGIC = 0x4F524D43; // ORMC
+    private static final int VERSION = 2;
+
+    private static class Entry {
+        private final long hash;
+        private final List<String> dependencies;
+        private final byte[] metadata;
+
+        private Entry(long hash, List<String> dependencies, byte[] metadata) {
+            this.hash = hash;
+            this.dependencies = dependencies;
+            this.metadata = metadata;
+        }
+    }
+
+    private final Path file;
+
+    /**
+     * Mapped as: className@dialect -> entry
+     */
+    private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+
+    /**
+     * If entries changed since the file was read
+     */
+    private volatile boolean dirty = false;
+
+    ModelMetadataCache(Path file) {
+        this.file = file;
+
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                OrmMicroLogger.MODEL_MAPPER.debug("Ignoring model metadata cache '" + file + "' of another version");
+                return;
+            }
+
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                String key = in.readUTF();
+                long hash = in.readLong();
+
+                int dependencyCount = in.readInt();
+                List<String> dependencies = new ArrayList<>(dependencyCount);
+                for (int d = 0; d < dependencyCount; d++) {
+                    dependencies.add(in.readUTF());
+                }
+
+                byte[] metadata = new byte[in.readInt()];
+                in.readFully(metadata);
+
+                entries.put(key, new Entry(hash, dependencies, metadata));
+            }
+        } catch (NoSuchFileException e) {
+            // Nothing cached yet
+        } catch (IOException e) {
+            entries.clear();
+            OrmMicroLogger.MODEL_MAPPER.exception(e, "Failed to read the model metadata cache '" + file + "', reflecting over every model");
+        }
+    }
+
+    /**
+     * Restore a model from the cache
+     *
+     * @param generated The model's metadata generated at compile time, or null
+     * @return The model, or null if it isn't cached or its classes changed
+     */
+    <T> SqlModel<T> load(SessionFactory session, Class<T> model, GeneratedModel<T> generated, SqlDialect dialect) {
+        Entry entry = entries.get(key(model, dialect));
+        if (entry == null) return null;
+
+        List<Class<?>> dependencies = new ArrayList<>(entry.dependencies.size());
+        try {
+            for (String dependency : entry.dependencies) {
+                dependencies.add(Class.forName(dependency, false, model.getClassLoader()));
+            }
+        } catch (ClassNotFoundException e) {
+            return null;
+        }
+
+        Long hash = hash(session, model, dependencies);
+        if (hash == null || hash != entry.hash) return null;
+
+        try {
+            return new SqlModel<>(session, model, generated, new DataInputStream(new ByteArrayInputStream(entry.metadata)));
+        } catch (IOException | RuntimeException e) {
+            OrmMicroLogger.MODEL_MAPPER.debug("Cached metadata of '" + model.getSimpleName() + "' is out of date: " + e);
+            return null;
+        }
+    }
+
+    /**
+     * Cache a model that was reflected over
+     */
+    void store(SessionFactory session, Class<?> model, SqlModel<?> sqlModel, SqlDialect dialect) {
+        List<Class<?>> dependencies = sqlModel.getMetadataDependencies();
+
+        // Models loaded without a class file (e.g. generated at runtime) can't be hashed
+        Long hash = hash(session, model, dependencies);
+        if (hash == null) return;
+
+        List<String> dependencyNames = new ArrayList<>(dependencies.size());
+        for (Class<?> dependency : dependencies) {
+            dependencyNames.add(dependency.getName());
+        }
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            sqlModel.writeMetadata(out);
+        } catch (IOException e) {
+            OrmMicroLogger.MODEL_MAPPER.exception(e, "Failed to cache the metadata of '" + model.getSimpleName() + "'");
+            return;
+        }
+
+        entries.put(key(model, dialect), new Entry(hash, dependencyNames, bytes.toByteArray()));
+        dirty = true;
+    }
+
+    /**
+     * Write the cache to its file, if it changed
+     * <p>The file is written next to the cache and moved over it, so a crash never leaves a partial cache behind</p>
+     */
+    synchronized void save() {
+        if (!dirty) return;
+        dirty = false;
+
+        Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+
+        try {
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp)))) {
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+
+                // Entries stored while saving are written next time
+                List<Map.Entry<String, Entry>> snapshot = new ArrayList<>(entries.entrySet());
+                out.writeInt(snapshot.size());
+
+                for (Map.Entry<String, Entry> cached : snapshot) {
+                    Entry entry = cached.getValue();
+
+                    out.writeUTF(cached.getKey());
+                    out.writeLong(entry.hash);
+
+                    out.writeInt(entry.dependencies.size());
+                    for (String dependency : entry.dependencies) {
+                        out.writeUTF(dependency);
+                    }
+
+                    out.writeInt(entry.metadata.length);
+                    out.write(entry.metadata);
+                }
+            }
+
+            try {
+                Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING);
+            }
+        } catch (IOException e) {
+            dirty = true;
+            OrmMicroLogger.MODEL_MAPPER.exception(e, "Failed to write the model metadata cache '" + file + "'");
+        }
+    }
+
+    private static String key(Class<?> model, SqlDialect dialect) {
+        return model.getName() + "@" + dialect.name();
+    }
+
+    /**
+     * Hash the bytecode of a model and its dependencies, and the factory configuration every model depends on
+     *
+     * @return The first 8 bytes of the SHA-256, or null if a class file can't be read
+     */
+    private static Long hash(SessionFactory session, Class<?> model, List<Class<?>> dependencies) {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            return null;
+        }
+
+        ISqlTypeMapper typeMapper = session.getTypeMapper();
+        NamingStrategy strategy = session.getNameManager().getStrategy();
+
+        String configuration = typeMapper.getClass().getName() + "#" + typeMapper.getConfigurationVersion() + ";"
+                + strategy.getClass().getName() + "#" + strategy.getConfigurationVersion();
+        digest.update(configuration.getBytes(StandardCharsets.UTF_8));
+
+        List<Class<?>> classes = new ArrayList<>(dependencies.size() + 3);
+        classes.add(model);
+        classes.addAll(dependencies);
+        classes.add(typeMapper.getClass());
+        classes.add(strategy.getClass());
+
+        byte[] buffer = new byte[8192];
+        for (Class<?> type : classes) {
+            // Classes of the runtime only change with it
+            if (type.getClassLoader() == null) continue;
+
+            try (InputStream in = type.getResourceAsStream("/" + type.getName().replace('.', '/') + ".class")) {
+                if (in == null) return null;
+
+                int read;
+                while ((read = in.read(buffer)) != -1) {
+                    digest.update(buffer, 0, read);
+                }
+            } catch (IOException e) {
+                return null;
+            }
+        }
+
+        byte[] hash = digest.digest();
+        long value = 0;
+        for (int i = 0; i < Long.BYTES; i++) {
+            value = (value << 8) | (hash[i] & 0xFF);
+        }
+        return value;
+    }
+}
@@ -25,7 +25,7 @@ public class NameManager {
     Apply a mapping for column and table names
      */
 
-    private NamingStrategy currentStrategy;
+    private volatile NamingStrategy currentStrategy;
 
     public String applyStrategiesForColumn(String columnName) {
         return currentStrategy.applyForColumn(columnName);
@@ -35,6 +35,13 @@ public class NameManager {
         return currentStrategy.applyForTable(tableName);
     }
 
+    /**
+     * Get the strategy currently applied, names derived from it are stale once it's replaced
+     */
+    public NamingStrategy getStrategy() {
+        return currentStrategy;
+    }
+
     public void setStrategy(NamingStrategy strategy) {
         if (strategy == null) {
             currentStrategy = NO_OP;
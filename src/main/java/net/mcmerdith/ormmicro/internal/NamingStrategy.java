@@ -4,4 +4,14 @@ public interface NamingStrategy {
     String applyForColumn(String columnName);
 
     String applyForTable(String tableName);
+
+    /**
+     * Identify the names this strategy produces, cached model metadata is discarded when it changes
+     * <p>Only needed by strategies configured at runtime, changes to the strategy class are detected without it</p>
+     *
+     * @return A value that changes whenever the names do. Default: 0
+     */
+    default long getConfigurationVersion() {
+        return 0;
+    }
 }
@@ -1,15 +1,18 @@
 package net.mcmerdith.ormmicro.internal;
 
 import net.mcmerdith.ormmicro.modeling.MappedSqlModel;
+import net.mcmerdith.ormmicro.query.ModelStatements;
+import net.mcmerdith.ormmicro.query.ParameterizedStatement;
 
-import java.util.ArrayList;
-import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * Maintain a register of objects currently tracked by the database
+ * <p>Safe to use from the database worker threads</p>
  */
 public class PersistenceContext {
-    private List<MappedSqlModel<?>> tracked = new ArrayList<>();
+    private final Set<MappedSqlModel<?>> tracked = ConcurrentHashMap.newKeySet();
 
     /**
      * Check if a model is already in the database
@@ -30,4 +33,27 @@ public class PersistenceContext {
     public void untrack(MappedSqlModel<?> o) {
         tracked.remove(o);
     }
+
+    /**
+     * Build the statement that saves a model
+     *
+     * @return An update if the model is already in the database, else an insert
+     */
+    public ParameterizedStatement buildSave(MappedSqlModel<?> o) {
+        if (isTracking(o)) {
+            // We will be doing an "update" query
+            ParameterizedStatement update = ModelStatements.update(o);
+            if (update != null) return update;
+        }
+
+        return ModelStatements.insert(o);
+    }
+
+    /**
+     * Track a model after it was saved
+     * <p>Only models that can be matched by their ID can be updated later, others are not tracked</p>
+     */
+    public void trackSaved(MappedSqlModel<?> o) {
+        if (ModelStatements.update(o) != null) track(o);
+    }
 }
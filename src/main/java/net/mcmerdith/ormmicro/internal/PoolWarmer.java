@@ -0,0 +1,122 @@
+package net.mcmerdith.ormmicro.internal;
+
+import com.zaxxer.hikari.HikariDataSource;
+import net.mcmerdith.ormmicro.OrmMicroLogger;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Brings a set of pools up to their minimum idle size, in parallel
+ * <p>Each connection is checked out and validated, and held until every connection of its pool is checked out,
+ * so each one is a separate connection. Hikari may already have opened some of them in the background, the
+ * warm-up makes sure they are all open before it returns.
+ * Only the connections are warmed: statements are prepared by each session on first use, and the session's
+ * statement cache is dropped when its connection returns to the pool</p>
+ */
+class PoolWarmer {
+    private static final String THREAD_NAME = "OrmMicro Warm-up ";
+
+    /**
+     * How long a connection waits for the rest of its pool to open
+     */
+    private static final long OPEN_TIMEOUT_SECONDS = 30;
+
+    /**
+     * How long validating a connection may take
+     */
+    private static final int VALID_TIMEOUT_SECONDS = 5;
+
+    private final List<HikariDataSource> pools = new ArrayList<>();
+
+    /**
+     * Warm a pool
+     */
+    void add(HikariDataSource pool) {
+        this.pools.add(pool);
+    }
+
+    /**
+     * Warm every pool, blocking until they are warm
+     *
+     * @return The number of connections checked out and found valid, whether the warm-up or Hikari opened them
+     */
+    int warm() {
+        int connections = 0;
+        for (HikariDataSource pool : pools) {
+            connections += connectionsFor(pool);
+        }
+        if (connections == 0) return 0;
+
+        AtomicInteger threadNumber = new AtomicInteger();
+        ExecutorService executor = Executors.newFixedThreadPool(connections, r -> {
+            Thread thread = new Thread(r, THREAD_NAME + threadNumber.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        AtomicInteger valid = new AtomicInteger();
+
+        try {
+            List<Future<?>> tasks = new ArrayList<>(connections);
+
+            for (HikariDataSource pool : pools) {
+                int count = connectionsFor(pool);
+                CountDownLatch open = new CountDownLatch(count);
+
+                for (int c = 0; c < count; c++) {
+                    tasks.add(executor.submit(() -> {
+                        if (warm(pool, open)) valid.incrementAndGet();
+                        return null;
+                    }));
+                }
+            }
+
+            for (Future<?> task : tasks) {
+                task.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (Exception e) {
+            OrmMicroLogger.SESSION.exception(e, "Failed to warm up the connection pools");
+        } finally {
+            executor.shutdownNow();
+        }
+
+        return valid.get();
+    }
+
+    /**
+     * Check out and validate a connection, holding it until the rest of the pool is checked out
+     *
+     * @return If the connection is valid
+     */
+    private static boolean warm(HikariDataSource pool, CountDownLatch open) throws InterruptedException {
+        try (Connection connection = pool.getConnection()) {
+            boolean valid = connection.isValid(VALID_TIMEOUT_SECONDS);
+
+            open.countDown();
+            open.await(OPEN_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+            return valid;
+        } catch (SQLException e) {
+            open.countDown();
+            OrmMicroLogger.SESSION.exception(e, "Failed to open a connection to warm up " + pool.getPoolName());
+            return false;
+        }
+    }
+
+    /**
+     * Get the number of connections the pool keeps idle
+     */
+    private static int connectionsFor(HikariDataSource pool) {
+        return Math.max(1, Math.min(pool.getMinimumIdle(), pool.getMaximumPoolSize()));
+    }
+}
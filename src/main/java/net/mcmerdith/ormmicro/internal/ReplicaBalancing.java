@@ -0,0 +1,17 @@
+package net.mcmerdith.ormmicro.internal;
+
+/**
+ * How reads are spread over the read replicas
+ *
+ * @see SessionFactory.Builder#addReadReplica(com.zaxxer.hikari.HikariConfig)
+ */
+public enum ReplicaBalancing {
+    /**
+     * Each session reads from the next replica in turn
+     */
+    ROUND_ROBIN,
+    /**
+     * Each session reads from the replica with the fewest connections in use
+     */
+    LEAST_BUSY
+}
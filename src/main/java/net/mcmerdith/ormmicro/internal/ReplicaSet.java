@@ -0,0 +1,70 @@
+package net.mcmerdith.ormmicro.internal;
+
+import com.zaxxer.hikari.HikariDataSource;
+import com.zaxxer.hikari.HikariPoolMXBean;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The read replica pools of a {@link SessionFactory}
+ */
+class ReplicaSet implements AutoCloseable {
+    private final List<HikariDataSource> replicas;
+
+    private final ReplicaBalancing balancing;
+
+    private final AtomicInteger next = new AtomicInteger();
+
+    ReplicaSet(List<HikariDataSource> replicas, ReplicaBalancing balancing) {
+        this.replicas = List.copyOf(replicas);
+        this.balancing = balancing;
+    }
+
+    boolean isEmpty() {
+        return replicas.isEmpty();
+    }
+
+    List<HikariDataSource> getReplicas() {
+        return replicas;
+    }
+
+    /**
+     * Pick the replica to read from
+     *
+     * @return The replica, or null if there are none
+     */
+    HikariDataSource select() {
+        if (replicas.isEmpty()) return null;
+        if (replicas.size() == 1) return replicas.get(0);
+
+        if (balancing == ReplicaBalancing.LEAST_BUSY) {
+            HikariDataSource least = null;
+            int leastActive = Integer.MAX_VALUE;
+
+            for (HikariDataSource replica : replicas) {
+                int active = activeConnections(replica);
+                if (active < leastActive) {
+                    least = replica;
+                    leastActive = active;
+                }
+            }
+
+            return least;
+        }
+
+        return replicas.get(Math.floorMod(next.getAndIncrement(), replicas.size()));
+    }
+
+    private static int activeConnections(HikariDataSource replica) {
+        HikariPoolMXBean pool = replica.getHikariPoolMXBean();
+        return pool == null ? 0 : pool.getActiveConnections();
+    }
+
+    @Override
+    public void close() {
+        for (HikariDataSource replica : replicas) {
+            replica.close();
+        }
+    }
+}
@@ -0,0 +1,99 @@
+package net.mcmerdith.ormmicro.internal;
+
+import net.mcmerdith.ormmicro.OrmMicroLogger;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Delivers async results on a caller supplied executor (e.g. the server main thread)
+ * <p>Callbacks are queued and run in drains limited by a time budget, callbacks left over when the budget
+ * runs out are carried to the next drain, so a burst of results is spread over several ticks</p>
+ */
+public class ResultDispatcher implements Executor {
+    private final Queue<Runnable> pending = new ConcurrentLinkedQueue<>();
+
+    /**
+     * Runs drains, null if {@link ResultDispatcher#drain()} is called by the owner
+     */
+    private final Executor target;
+
+    private final long budgetNanos;
+
+    /**
+     * If a drain has been handed to the target and hasn't finished
+     */
+    private final AtomicBoolean scheduled = new AtomicBoolean();
+
+    /**
+     * @param target       Runs each drain, or null to call {@link ResultDispatcher#drain()} manually
+     * @param budgetMillis The most time a drain may take, 0 to run every pending callback
+     */
+    public ResultDispatcher(Executor target, long budgetMillis) {
+        this.target = target;
+        this.budgetNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(0, budgetMillis));
+    }
+
+    /**
+     * Queue a callback for the next drain
+     */
+    @Override
+    public void execute(Runnable callback) {
+        pending.add(callback);
+        schedule();
+    }
+
+    /**
+     * Run pending callbacks until the queue is empty or the time budget is used
+     * <p>At least one callback is run per drain so results always make progress</p>
+     *
+     * @return The number of callbacks run
+     */
+    public int drain() {
+        long deadline = System.nanoTime() + budgetNanos;
+        int ran = 0;
+
+        try {
+            Runnable callback;
+            while ((callback = pending.poll()) != null) {
+                try {
+                    callback.run();
+                } catch (RuntimeException e) {
+                    // One broken callback must not hold back the rest
+                    OrmMicroLogger.DATABASE_WORKER.exception(e, "Async result callback failed");
+                }
+                ran++;
+
+                if (budgetNanos > 0 && System.nanoTime() - deadline >= 0) break;
+            }
+        } finally {
+            scheduled.set(false);
+
+            // Carry leftovers (or callbacks queued while finishing) to the next drain
+            if (!pending.isEmpty()) schedule();
+        }
+
+        return ran;
+    }
+
+    /**
+     * Get the number of callbacks waiting for a drain
+     */
+    public int getPendingCount() {
+        return pending.size();
+    }
+
+    private void schedule() {
+        if (target == null || !scheduled.compareAndSet(false, true)) return;
+
+        try {
+            target.execute(this::drain);
+        } catch (RuntimeException e) {
+            scheduled.set(false);
+            OrmMicroLogger.DATABASE_WORKER.exception(e, "Failed to schedule async results, " + pending.size() + " callback(s) waiting");
+        }
+    }
+}
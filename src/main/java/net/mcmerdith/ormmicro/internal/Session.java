@@ -1,32 +1,182 @@
 package net.mcmerdith.ormmicro.internal;
 
+import net.mcmerdith.ormmicro.OrmMicroLogger;
 import net.mcmerdith.ormmicro.modeling.MappedSqlModel;
+import net.mcmerdith.ormmicro.query.ModelStatements;
+import net.mcmerdith.ormmicro.query.ParameterizedStatement;
+import net.mcmerdith.ormmicro.util.SqlUtil;
 
 import java.sql.Connection;
+import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletionStage;
 
 public class Session implements AutoCloseable {
     private final SessionFactory sessionFactory;
 
-    private final Connection connection;
+    /**
+     * The connection, null until the first statement if connections are lazy
+     */
+    private Connection connection;
 
     private final ModelManager modelManager;
 
+    /**
+     * The statements prepared on {@link Session#connection}, null while there is no connection
+     */
+    private StatementCache statements;
+
+    /**
+     * The connection to a read replica, null until the first read or if there are no replicas
+     */
+    private Connection replicaConnection;
+
+    /**
+     * The statements prepared on {@link Session#replicaConnection}
+     */
+    private StatementCache replicaStatements;
+
     private boolean transaction = false;
 
+    /**
+     * If the open transaction is read-only and runs on the replica
+     */
+    private boolean readOnly = false;
+
+    /**
+     * If the connection is acquired on the first statement and returned to the pool whenever the session is idle
+     */
+    private final boolean lazy;
+
+    /**
+     * The number of callers keeping the connection from being released
+     */
+    private int pins = 0;
+
+    /**
+     * Statements handed to the caller, the connection isn't released until they are closed
+     */
+    private final List<Statement> returnedStatements = new ArrayList<>();
+
+    /**
+     * If this session is bound to the thread that opened it
+     */
+    private final boolean bound;
+
+    /**
+     * The number of callers that haven't closed this session yet, 0 once it is closed
+     */
+    private int references = 1;
+
+    /**
+     * The shard this session connects to
+     */
+    private final int shard;
+
+    /**
+     * The session on the first shard that opened this one, null if this is that session
+     */
+    private final Session parent;
+
+    /**
+     * The sessions opened on the other shards, by shard. Null until one is needed
+     */
+    private Session[] shardSessions;
+
     public Session(SessionFactory sessionFactory) {
+        this(sessionFactory, false);
+    }
+
+    Session(SessionFactory sessionFactory, boolean bound) {
+        this(sessionFactory, bound, null, 0);
+    }
+
+    private Session(SessionFactory sessionFactory, boolean bound, Session parent, int shard) {
         this.sessionFactory = sessionFactory;
+        this.bound = bound;
+        this.parent = parent;
+        this.shard = shard;
 
         modelManager = sessionFactory.getModelManager();
+        lazy = sessionFactory.getSessionOptions().lazyConnections;
+        if (lazy) return;
+
         try {
-            connection = sessionFactory.getDataSource().getConnection();
+            connect();
         } catch (Exception e) {
             throw new RuntimeException("Could not create session, failed to connect to database!", e);
         }
     }
 
+    /**
+     * Get the connection, acquiring one from the pool if the session doesn't have one
+     */
+    private Connection connect() throws SQLException {
+        if (connection == null) {
+            if (references == 0) throw new SQLException("Session is closed");
+
+            connection = sessionFactory.getShardDataSource(shard).getConnection();
+            statements = new StatementCache(connection, sessionFactory.getSessionOptions().statementCacheSize);
+        }
+
+        return connection;
+    }
+
+    /**
+     * Get the replica connection, acquiring one from the replica the factory picks if the session doesn't have one
+     */
+    private Connection connectReplica() throws SQLException {
+        if (replicaConnection == null) {
+            if (references == 0) throw new SQLException("Session is closed");
+
+            replicaConnection = sessionFactory.getReadDataSource().getConnection();
+            replicaStatements = new StatementCache(replicaConnection, sessionFactory.getSessionOptions().statementCacheSize);
+        }
+
+        return replicaConnection;
+    }
+
+    /**
+     * Check if reads go to a read replica, reads inside a regular transaction use the primary database
+     */
+    private boolean readsFromReplica() {
+        return shard == 0 && (!transaction || readOnly) && sessionFactory.hasReadReplicas();
+    }
+
+    /**
+     * Get the session for a shard
+     * <p>Sessions for the other shards are opened when first needed and closed with this session. They have
+     * their own connections and transactions, a transaction on this session only covers its own shard</p>
+     *
+     * @param shard The shard, from 0 to {@link SessionFactory#getShardCount()} - 1
+     * @return The session connected to the shard, this session if it is the shard's session
+     * @see SessionFactory.Builder#addShard(com.zaxxer.hikari.HikariConfig)
+     */
+    public Session forShard(int shard) {
+        if (shard == this.shard) return this;
+        if (parent != null) return parent.forShard(shard);
+
+        if (shard < 0 || shard >= sessionFactory.getShardCount()) {
+            throw new IllegalArgumentException("Shard " + shard + " does not exist, there are " + sessionFactory.getShardCount());
+        }
+
+        if (shardSessions == null) shardSessions = new Session[sessionFactory.getShardCount()];
+        if (shardSessions[shard] == null) shardSessions[shard] = new Session(sessionFactory, false, this, shard);
+
+        return shardSessions[shard];
+    }
+
+    /**
+     * Get the shard this session connects to
+     */
+    public int getShard() {
+        return shard;
+    }
+
     /**
      * Direct access to the SessionFactory
      * @return The SessionFactory that built this Session
@@ -37,10 +187,92 @@ public class Session implements AutoCloseable {
 
     /**
      * Direct access to this sessions JDBC connection
+     * <p>If connections are lazy, the connection is only valid until the session releases it</p>
      * @return The connection used by this session
+     * @see SessionFactory.Builder#setLazyConnections(boolean)
      */
     public Connection getConnection() {
-        return connection;
+        try {
+            return connect();
+        } catch (SQLException e) {
+            throw new RuntimeException("Failed to connect session to database!", e);
+        }
+    }
+
+    /**
+     * Return the connection to the pool if connections are lazy and the session is idle
+     * <p>The session is idle outside a transaction, once every result set and statement it returned is closed.
+     * The next statement acquires a new connection. Prepared statements are cached with the connection, so
+     * they are closed as well</p>
+     * <p>Statements executed through the session release the connection themselves, this is only needed
+     * after closing results</p>
+     */
+    public void releaseConnection() {
+        if (!lazy || pins > 0) return;
+
+        if (shardSessions != null) {
+            for (Session shardSession : shardSessions) {
+                if (shardSession != null) shardSession.releaseConnection();
+            }
+        }
+
+        if (replicaConnection != null && !(transaction && readOnly) && !replicaStatements.hasOpenResults()) {
+            disconnectReplica();
+        }
+
+        if (connection == null || (transaction && !readOnly)) return;
+        if (statements.hasOpenResults()) return;
+
+        returnedStatements.removeIf(Session::isClosed);
+        if (!returnedStatements.isEmpty()) return;
+
+        disconnect();
+    }
+
+    /**
+     * Keep the connection until {@link Session#unpin()}, for work that spans several statements outside a transaction
+     */
+    void pin() {
+        pins++;
+    }
+
+    void unpin() {
+        if (pins > 0 && --pins == 0) releaseConnection();
+    }
+
+    private void disconnect() {
+        statements.close();
+        statements = null;
+
+        for (Statement statement : returnedStatements) {
+            try {
+                statement.close();
+            } catch (SQLException ignored) {}
+        }
+        returnedStatements.clear();
+
+        try {
+            connection.close();
+        } catch (SQLException ignored) {}
+        connection = null;
+    }
+
+    private void disconnectReplica() {
+        replicaStatements.close();
+        replicaStatements = null;
+
+        try {
+            replicaConnection.close();
+        } catch (SQLException ignored) {}
+        replicaConnection = null;
+    }
+
+    private static boolean isClosed(Statement statement) {
+        try {
+            return statement.isClosed();
+        } catch (SQLException e) {
+            return true;
+        }
     }
 
     /**
@@ -48,11 +280,26 @@ public class Session implements AutoCloseable {
      * <p>If this session is already in a transaction, the existing transaction is committed before beginning</p>
      */
     public void beginTransaction() {
+        beginTransaction(false);
+    }
+
+    /**
+     * Begin a new transaction on the database
+     * <p>If this session is already in a transaction, the existing transaction is committed before beginning</p>
+     * <p>A read-only transaction runs on the session's read replica, if there are any. Updates aren't part of it,
+     * they are executed on the primary database as usual</p>
+     *
+     * @param readOnly If the transaction only reads
+     * @see SessionFactory.Builder#addReadReplica(com.zaxxer.hikari.HikariConfig)
+     */
+    public void beginTransaction(boolean readOnly) {
         if (transaction) commitTransaction();
 
         try {
-            connection.setAutoCommit(false);
+            boolean onReplica = readOnly && sessionFactory.hasReadReplicas();
+            (onReplica ? connectReplica() : connect()).setAutoCommit(false);
             transaction = true;
+            this.readOnly = onReplica;
         } catch (Exception e) {
             throw new RuntimeException("Failed to start transaction!", e);
         }
@@ -66,12 +313,16 @@ public class Session implements AutoCloseable {
         if (!transaction) return;
 
         try {
-            connection.commit();
-            connection.setAutoCommit(true);
+            Connection transactionConnection = readOnly ? replicaConnection : connection;
+            transactionConnection.commit();
+            transactionConnection.setAutoCommit(true);
             transaction = false;
+            readOnly = false;
         } catch (Exception e) {
             throw new RuntimeException("Failed to commit transaction!", e);
         }
+
+        releaseConnection();
     }
 
     /**
@@ -82,69 +333,327 @@ public class Session implements AutoCloseable {
         if (!transaction) return;
 
         try {
-            connection.rollback();
-            connection.setAutoCommit(true);
+            Connection transactionConnection = readOnly ? replicaConnection : connection;
+            transactionConnection.rollback();
+            transactionConnection.setAutoCommit(true);
             transaction = false;
+            readOnly = false;
         } catch (Exception e) {
             throw new RuntimeException("Failed to rollback transaction!", e);
         }
+
+        releaseConnection();
     }
 
     public void executeSql(String sql) throws SQLException {
-        connection.createStatement().execute(sql);
+        try (Statement statement = connect().createStatement()) {
+            statement.execute(sql);
+        } finally {
+            releaseConnection();
+        }
     }
 
     public ResultSet executeSqlQuery(String sql) throws SQLException {
-        return connection.createStatement().executeQuery(sql);
+        return executeQuery(sql, null);
     }
 
     public int executeSqlUpdate(String sql) throws SQLException {
-        return connection.createStatement().executeUpdate(sql);
+        return executeUpdate(sql, null);
+    }
+
+    /**
+     * Execute a query with a prepared statement cached by this session
+     * <p>The results stay valid until they are closed, or the session is closed. If connections are lazy,
+     * call {@link Session#releaseConnection()} after closing them</p>
+     *
+     * @param sql        The query
+     * @param parameters The query parameters, may be null
+     */
+    public ResultSet executeQuery(String sql, List<Object> parameters) throws SQLException {
+        ResultSet results;
+        PreparedStatement statement = null;
+        try {
+            statement = prepareStatement(sql);
+            SqlUtil.insertParametersInto(statement, parameters);
+
+            results = statement.executeQuery();
+            statements.opened(sql, statement, results);
+        } catch (SQLException e) {
+            if (statement != null) releaseStatement(statement);
+            releaseConnection();
+            throw e;
+        }
+
+        return results;
+    }
+
+    /**
+     * Execute a query on the session's read replica, with a prepared statement cached by this session
+     * <p>Uses the primary database if there are no replicas, or inside a transaction that isn't read-only.
+     * The results stay valid until they are closed, or the session is closed</p>
+     *
+     * @param sql        The query
+     * @param parameters The query parameters, may be null
+     * @see SessionFactory.Builder#addReadReplica(com.zaxxer.hikari.HikariConfig)
+     */
+    public ResultSet executeReadQuery(String sql, List<Object> parameters) throws SQLException {
+        if (!readsFromReplica()) return executeQuery(sql, parameters);
+
+        ResultSet results;
+        PreparedStatement statement = null;
+        try {
+            statement = prepareReadStatement(sql);
+            SqlUtil.insertParametersInto(statement, parameters);
+
+            results = statement.executeQuery();
+            replicaStatements.opened(sql, statement, results);
+        } catch (SQLException e) {
+            if (statement != null) releaseStatement(statement);
+            releaseConnection();
+            throw e;
+        }
+
+        return results;
+    }
+
+    /**
+     * Execute an update with a prepared statement cached by this session
+     *
+     * @param sql        The update
+     * @param parameters The update parameters, may be null
+     * @return The update count
+     */
+    public int executeUpdate(String sql, List<Object> parameters) throws SQLException {
+        PreparedStatement statement = null;
+        try {
+            statement = prepareStatement(sql);
+            SqlUtil.insertParametersInto(statement, parameters);
+
+            return statement.executeUpdate();
+        } finally {
+            if (statement != null) releaseStatement(statement);
+            releaseConnection();
+        }
+    }
+
+    /**
+     * Get a prepared statement from this session's cache
+     * <p>The statement belongs to the session and must not be closed. Results read from it must be registered
+     * with {@link Session#resultsOpened(String, PreparedStatement, ResultSet)}, otherwise pass it to
+     * {@link Session#releaseStatement(PreparedStatement)} once it has been executed</p>
+     */
+    PreparedStatement prepareStatement(String sql) throws SQLException {
+        connect();
+        return statements.prepare(sql);
+    }
+
+    /**
+     * Get a prepared statement for a query from this session's cache, on the read replica if reads go to one
+     *
+     * @see Session#prepareStatement(String)
+     */
+    PreparedStatement prepareReadStatement(String sql) throws SQLException {
+        if (!readsFromReplica()) return prepareStatement(sql);
+
+        connectReplica();
+        return replicaStatements.prepare(sql);
+    }
+
+    /**
+     * Let go of a statement from {@link Session#prepareStatement(String)} that was executed without reading results
+     * <p>Statements that didn't fit in the cache are closed</p>
+     */
+    void releaseStatement(PreparedStatement statement) {
+        if (statements != null) statements.release(statement);
+        if (replicaStatements != null) replicaStatements.release(statement);
+    }
+
+    /**
+     * Get the number of prepared statements this session holds open
+     */
+    int openStatements() {
+        return (statements == null ? 0 : statements.size()) + (replicaStatements == null ? 0 : replicaStatements.size());
+    }
+
+    /**
+     * Keep a cached statement from being reused while its results are open
+     */
+    void resultsOpened(String sql, PreparedStatement statement, ResultSet results) {
+        boolean replica = false;
+        try {
+            replica = replicaConnection != null && statement.getConnection() == replicaConnection;
+        } catch (SQLException ignored) {}
+
+        (replica ? replicaStatements : statements).opened(sql, statement, results);
     }
 
     public Statement executeSqlUpdate(String sql, String[] autoGeneratedNames) throws SQLException {
-        Statement s = connection.createStatement();
+        Statement s = connect().createStatement();
+        returnedStatements.add(s);
         s.executeUpdate(sql, autoGeneratedNames);
         return s;
     }
 
     public Statement executeSqlUpdate(String sql, int[] autoGeneratedIndexes) throws SQLException {
-        Statement s = connection.createStatement();
+        Statement s = connect().createStatement();
+        returnedStatements.add(s);
         s.executeUpdate(sql, autoGeneratedIndexes);
         return s;
     }
 
     public Statement executeSqlUpdate(String sql, boolean autoGenerated) throws SQLException {
-        Statement s = connection.createStatement();
+        Statement s = connect().createStatement();
+        returnedStatements.add(s);
         s.executeUpdate(sql, autoGenerated ? Statement.RETURN_GENERATED_KEYS : Statement.NO_GENERATED_KEYS);
         return s;
     }
 
-    public void save(Object o) {
-        MappedSqlModel<?> mappedModel = sessionFactory.getModelManager().mapObject(o);
+    private int executeUpdate(ParameterizedStatement statement) throws SQLException {
+        return executeUpdate(statement.getStatement(), statement.getParameters());
+    }
+
+    /**
+     * Execute an insert, reading the identifier the database generated back into the model
+     * <p>Not cached, the statement is prepared to return generated keys</p>
+     *
+     * @return The update count
+     */
+    int executeInsert(ParameterizedStatement statement, MappedSqlModel<?> model) throws SQLException {
+        try (PreparedStatement prepared = connect().prepareStatement(statement.getStatement(), Statement.RETURN_GENERATED_KEYS)) {
+            SqlUtil.insertParametersInto(prepared, statement.getParameters());
 
-        if (sessionFactory.getPersistenceContext().isTracking(mappedModel)) {
-            // We will be doing an "update" query
-            update(mappedModel);
-            return;
+            int inserted = prepared.executeUpdate();
+            try (ResultSet keys = prepared.getGeneratedKeys()) {
+                model.readGeneratedId(keys);
+            }
+
+            return inserted;
+        } finally {
+            releaseConnection();
         }
+    }
 
+    /**
+     * Execute a save built by {@link PersistenceContext#buildSave(MappedSqlModel)}
+     */
+    private int executeSave(ParameterizedStatement statement, MappedSqlModel<?> model) throws SQLException {
+        // A model without an identifier is always inserted
+        return model.needsGeneratedId() ? executeInsert(statement, model) : executeUpdate(statement);
+    }
 
+    /**
+     * Insert an object, or update it if it is already tracked by the database
+     *
+     * @param o The object to save
+     * @return The number of rows affected, or -1 if the save failed
+     */
+    public int save(Object o) {
+        MappedSqlModel<?> mappedModel = modelManager.mapObject(o);
+        ParameterizedStatement statement = sessionFactory.getPersistenceContext().buildSave(mappedModel);
+
+        try {
+            int updated = forShard(sessionFactory.getShard(mappedModel)).executeSave(statement, mappedModel);
+            sessionFactory.getPersistenceContext().trackSaved(mappedModel);
+            return updated;
+        } catch (SQLException e) {
+            OrmMicroLogger.SESSION.exception(e, "Failed to save `" + statement.getStatement() + "`");
+            return -1;
+        }
     }
 
-    private void update(MappedSqlModel<?> model) {
+    /**
+     * Save an object on the database worker
+     * <p>The object's current state is captured now. Saves of the same object are executed in the order
+     * they were requested, or merged if write-behind is enabled</p>
+     *
+     * @param o The object to save
+     * @return A stage completed with the number of rows affected, or completed exceptionally with the
+     * {@link SQLException} that caused the save to fail
+     */
+    public CompletionStage<Integer> saveAsync(Object o) {
+        return sessionFactory.getWorker().submitSave(modelManager.mapObject(o));
+    }
+
+    /**
+     * Delete an object from the database
+     *
+     * @param o The object to remove
+     * @return The number of rows affected, or -1 if the delete failed
+     */
+    public int remove(Object o) {
+        MappedSqlModel<?> mappedModel = modelManager.mapObject(o);
+        ParameterizedStatement statement = ModelStatements.delete(mappedModel);
 
+        try {
+            int removed = forShard(sessionFactory.getShard(mappedModel)).executeUpdate(statement);
+            sessionFactory.getPersistenceContext().untrack(mappedModel);
+            return removed;
+        } catch (SQLException e) {
+            OrmMicroLogger.SESSION.exception(e, "Failed to remove `" + statement.getStatement() + "`");
+            return -1;
+        }
+    }
+
+    /**
+     * Delete an object from the database on the database worker
+     * <p>Ordered with any pending saves of the same object</p>
+     *
+     * @param o The object to remove
+     * @return A stage completed with the number of rows affected, or completed exceptionally with the
+     * {@link SQLException} that caused the delete to fail
+     */
+    public CompletionStage<Integer> removeAsync(Object o) {
+        return sessionFactory.getWorker().submitRemove(modelManager.mapObject(o));
+    }
+
+    /**
+     * Check if this session is bound to the thread that opened it
+     *
+     * @see SessionFactory.Builder#setThreadBoundSessions(boolean)
+     */
+    public boolean isBound() {
+        return bound;
+    }
+
+    /**
+     * Check if this session has been closed by every caller
+     */
+    public boolean isClosed() {
+        return references == 0;
     }
 
-    public void remove(Object o) {
-        modelManager.getModel(o.getClass());
+    /**
+     * Hand this session to another caller, it stays open until they close it too
+     *
+     * @return false if the session is already closed
+     */
+    boolean retain() {
+        if (references == 0) return false;
+
+        references++;
+        return true;
     }
 
+    /**
+     * Close this session
+     * <p>A bound session is only closed once every caller that got it has closed it. Closing a session
+     * commits any open transaction and returns its connection to the pool</p>
+     */
     @Override
     public void close() {
+        if (references == 0 || --references > 0) return;
+
+        if (bound) sessionFactory.unbind(this);
+
         if (transaction) commitTransaction();
-        try {
-            connection.close();
-        } catch (SQLException ignored) {}
+        if (connection != null) disconnect();
+        if (replicaConnection != null) disconnectReplica();
+
+        if (shardSessions != null) {
+            for (Session shardSession : shardSessions) {
+                if (shardSession != null) shardSession.close();
+            }
+            shardSessions = null;
+        }
     }
 }
@@ -3,13 +3,21 @@ package net.mcmerdith.ormmicro.internal;
 import com.zaxxer.hikari.HikariConfig;
 import com.zaxxer.hikari.HikariDataSource;
 import net.mcmerdith.ormmicro.OrmMicroLogger;
+import net.mcmerdith.ormmicro.modeling.ColumnDefinition;
+import net.mcmerdith.ormmicro.modeling.MappedSqlModel;
+import net.mcmerdith.ormmicro.modeling.SqlModel;
 import net.mcmerdith.ormmicro.typing.GenericTypeMapper;
 import net.mcmerdith.ormmicro.typing.ISqlTypeMapper;
 import net.mcmerdith.ormmicro.typing.SqlDialect;
 
 import javax.annotation.Nonnull;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 import java.util.Properties;
-import java.util.Timer;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
 import java.util.logging.Level;
 
 public class SessionFactory implements AutoCloseable {
@@ -43,13 +51,78 @@ public class SessionFactory implements AutoCloseable {
         return dataSource;
     }
 
+    /**
+     * Every shard, the first is {@link SessionFactory#dataSource}
+     */
+    private final List<HikariDataSource> shards;
+
+    private final ShardStrategy shardStrategy;
+
+    /**
+     * Get the number of shards, including the primary database
+     *
+     * @see Builder#addShard(HikariConfig)
+     */
+    public int getShardCount() {
+        return shards.size();
+    }
+
+    protected HikariDataSource getShardDataSource(int shard) {
+        return shards.get(shard);
+    }
+
+    /**
+     * Get the shard storing models with a shard key value
+     *
+     * @param model    The model
+     * @param keyValue The value of the model's shard key, as it is stored in the database
+     * @return The shard, 0 if the model isn't sharded
+     */
+    public int getShard(SqlModel<?> model, Object keyValue) {
+        if (shards.size() == 1 || model.getShardKey() == null) return 0;
+
+        int shard = shardStrategy.shardFor(keyValue, shards.size());
+        if (shard < 0 || shard >= shards.size()) {
+            throw new IllegalStateException("Shard strategy picked shard " + shard + " of " + shards.size() + " for key " + keyValue);
+        }
+
+        return shard;
+    }
+
+    /**
+     * Get the shard storing a model
+     *
+     * @return The shard, 0 if the model isn't sharded
+     */
+    public int getShard(MappedSqlModel<?> model) {
+        ColumnDefinition shardKey = model.getModel().getShardKey();
+        if (shards.size() == 1 || shardKey == null) return 0;
+
+        return getShard(model.getModel(), model.getColumnValues().get(shardKey));
+    }
+
+    private final ReplicaSet replicas;
+
+    /**
+     * Pick the data source a session should read from
+     *
+     * @return A read replica, or null if there are none
+     * @see Builder#addReadReplica(HikariConfig)
+     */
+    protected HikariDataSource getReadDataSource() {
+        return replicas.select();
+    }
+
+    boolean hasReadReplicas() {
+        return !replicas.isEmpty();
+    }
+
     private final PersistenceContext persistenceContext = new PersistenceContext();
 
     public PersistenceContext getPersistenceContext() {
         return persistenceContext;
     }
 
-    private final Timer workerThread = new Timer();
     public final DatabaseWorker worker;
 
     /**
@@ -59,13 +132,43 @@ public class SessionFactory implements AutoCloseable {
         return worker;
     }
 
-    private SessionFactory(NameManager nameManager, SqlDialect dialect, ISqlTypeMapper typeMapper, HikariDataSource dataSource) {
+    /**
+     * Get the queue depth, wait time, execution time and callback time metrics of the database worker
+     *
+     * @see Builder#setJmxName(String)
+     */
+    public WorkerMetrics getWorkerMetrics() {
+        return worker.getMetrics();
+    }
+
+    /**
+     * Get the dispatcher delivering async callbacks
+     *
+     * @return The dispatcher, or null if callbacks run on the worker thread
+     * @see Builder#setResultExecutor(Executor, long)
+     */
+    public ResultDispatcher getResultDispatcher() {
+        return worker.getResultDispatcher();
+    }
+
+    private final SessionOptions sessionOptions;
+
+    SessionOptions getSessionOptions() {
+        return sessionOptions;
+    }
+
+    private SessionFactory(NameManager nameManager, SqlDialect dialect, ISqlTypeMapper typeMapper, List<HikariDataSource> shards, ShardStrategy shardStrategy, ReplicaSet replicas, Path metadataCache, SessionOptions sessionOptions, WorkerOptions workerOptions) {
         this.nameManager = nameManager;
+        this.sessionOptions = sessionOptions;
         this.modelManager = new ModelManager(this, dialect);
+        if (metadataCache != null) modelManager.setMetadataCache(new ModelMetadataCache(metadataCache));
         this.typeMapper = typeMapper;
-        this.dataSource = dataSource;
-        this.worker = new DatabaseWorker(this);
-        workerThread.scheduleAtFixedRate(this.worker, 2000, 250);
+        this.dataSource = shards.get(0);
+        this.shards = List.copyOf(shards);
+        this.shardStrategy = shardStrategy;
+        this.replicas = replicas;
+        this.worker = new DatabaseWorker(this, workerOptions);
+        this.worker.start();
     }
 
     public void setLogLevel(Level level) {
@@ -76,14 +179,79 @@ public class SessionFactory implements AutoCloseable {
         }
     }
 
+    /**
+     * The open session bound to each thread, only used if sessions are thread bound
+     */
+    private final ThreadLocal<Session> boundSession = new ThreadLocal<>();
+
+    /**
+     * Get a session for the calling thread
+     * <p>If sessions are thread bound, the thread's open session is returned and stays open until every caller
+     * that got it has closed it. The outermost caller defines the scope the connection is held for.
+     * Otherwise this is the same as {@link SessionFactory#openSession()}</p>
+     *
+     * @see Builder#setThreadBoundSessions(boolean)
+     */
     public Session getCurrentSession() {
-        return new Session(this);
+        if (!sessionOptions.threadBound) return openSession();
+
+        Session session = boundSession.get();
+        if (session != null && session.retain()) return session;
+
+        session = new Session(this, true);
+        boundSession.set(session);
+        return session;
+    }
+
+    /**
+     * Open a new session with its own connection, regardless of the session bound to the calling thread
+     */
+    public Session openSession() {
+        return new Session(this, false);
+    }
+
+    /**
+     * Forget the calling thread's session once it is closed
+     */
+    void unbind(Session session) {
+        if (boundSession.get() == session) boundSession.remove();
+    }
+
+    /**
+     * Fill every pool to its minimum idle size
+     * <p>Connections are checked out in parallel, blocking until every pool is warm. Hikari may have opened some
+     * of them already, the rest are opened by the warm-up. Statements aren't prepared, each session prepares them
+     * on first use and caches them until its connection returns to the pool</p>
+     *
+     * @return The number of idle connections checked and found valid, not only the ones the warm-up opened
+     * @see Builder#setWarmUp(boolean, Class[])
+     */
+    public int warmUp() {
+        PoolWarmer warmer = new PoolWarmer();
+        for (HikariDataSource shard : shards) {
+            warmer.add(shard);
+        }
+        for (HikariDataSource replica : replicas.getReplicas()) {
+            warmer.add(replica);
+        }
+
+        long start = System.nanoTime();
+        int valid = warmer.warm();
+        OrmMicroLogger.SESSION.debug(String.format("Checked %d connections in %dms", valid, (System.nanoTime() - start) / 1_000_000));
+
+        return valid;
     }
 
     @Override
     public void close() {
-        worker.cancel();
-        workerThread.cancel();
+        worker.shutdown();
+        modelManager.saveMetadataCache();
+        replicas.close();
+
+        // The primary database is left open, as before sharding
+        for (HikariDataSource shard : shards.subList(1, shards.size())) {
+            shard.close();
+        }
     }
 
     public static class Builder {
@@ -91,6 +259,15 @@ public class SessionFactory implements AutoCloseable {
         private SqlDialect sqlDialect;
         private ISqlTypeMapper typeMapper;
         private HikariConfig hikariConfig;
+        private final List<HikariConfig> replicaConfigs = new ArrayList<>();
+        private ReplicaBalancing replicaBalancing = ReplicaBalancing.ROUND_ROBIN;
+        private final List<HikariConfig> shardConfigs = new ArrayList<>();
+        private ShardStrategy shardStrategy = ShardStrategy.hash();
+        private boolean warmUp = false;
+        private final List<Class<?>> warmUpModels = new ArrayList<>();
+        private Path metadataCache = null;
+        private final SessionOptions sessionOptions = new SessionOptions();
+        private final WorkerOptions workerOptions = new WorkerOptions();
 
         public Builder(@Nonnull HikariConfig hikariConfig) {
             this.hikariConfig = hikariConfig;
@@ -121,11 +298,298 @@ public class SessionFactory implements AutoCloseable {
             this.typeMapper = typeMapper;
         }
 
+        /**
+         * How many prepared statements each session keeps open for reuse
+         * <p>Statements are cached by SQL text and closed when they are evicted or the session is closed</p>
+         * <p>Default: 64</p>
+         *
+         * @param size The most statements to cache per session, 0 to not cache statements
+         */
+        public void setStatementCacheSize(int size) {
+            sessionOptions.statementCacheSize = size;
+        }
+
+        /**
+         * Bind sessions to the thread that opened them
+         * <p>While a thread has a session open, {@link SessionFactory#getCurrentSession()} returns the same session
+         * instead of checking out another connection. The session is closed when every caller has closed it,
+         * so nested calls share one connection, statement cache and transaction. Bound sessions must be closed
+         * on the thread that opened them</p>
+         * <p>Database worker lanes also keep their session between drains while they have work queued</p>
+         * <p>Default: false (every call opens a new session)</p>
+         *
+         * @param threadBound If sessions should be bound to the calling thread
+         */
+        public void setThreadBoundSessions(boolean threadBound) {
+            sessionOptions.threadBound = threadBound;
+        }
+
+        /**
+         * Acquire each session's connection on its first statement, and return it to the pool whenever the session is idle
+         * <p>A session is idle outside a transaction, once the results and statements it returned are closed.
+         * Auto-commit statements release the connection as soon as they finish, so a small pool can serve many
+         * more sessions than it has connections. Transactions keep their connection until they end</p>
+         * <p>Prepared statements are cached with the connection, so they are only reused while the session holds it</p>
+         * <p>Default: false (each session holds its connection until it is closed)</p>
+         *
+         * @param lazy If connections should be acquired lazily and released early
+         */
+        public void setLazyConnections(boolean lazy) {
+            sessionOptions.lazyConnections = lazy;
+        }
+
+        /**
+         * How long the database worker should wait for more tasks after it wakes up
+         * <p>Default: 0 (tasks are started as soon as they are queued)</p>
+         *
+         * @param lingerMillis The linger time in milliseconds
+         */
+        public void setWorkerLinger(long lingerMillis) {
+            workerOptions.lingerMillis = lingerMillis;
+        }
+
+        /**
+         * How many statements the database worker may execute in parallel
+         * <p>Each lane holds its own connection while it drains, so this should not exceed the pool size</p>
+         * <p>Default: 1</p>
+         *
+         * @param lanes The number of worker lanes
+         */
+        public void setWorkerLanes(int lanes) {
+            workerOptions.lanes = lanes;
+        }
+
+        /**
+         * Run the database worker on a caller supplied executor
+         * <p>Each lane occupies one executor thread for the lifetime of the factory, so the executor must be able
+         * to run at least as many tasks concurrently as there are lanes. Building the factory fails if the executor
+         * doesn't start every lane</p>
+         * <p>The executor is not shut down when the factory is closed</p>
+         *
+         * @param executor The executor, or null to let the worker manage its own threads
+         */
+        public void setWorkerExecutor(ExecutorService executor) {
+            workerOptions.executor = executor;
+        }
+
+        /**
+         * Run the database worker lanes on virtual threads
+         * <p>Only takes effect on Java 21+, older runtimes fall back to platform threads.
+         * Ignored if an executor was supplied with {@link Builder#setWorkerExecutor(ExecutorService)}</p>
+         * <p>Only the type of the lane threads changes, not how much runs at once: there is still one thread per lane
+         * ({@link Builder#setWorkerLanes(int)}), and each drain still needs a pooled connection. Virtual threads make
+         * many lanes cheap, blocked lanes wait on the pool instead of holding a platform thread</p>
+         *
+         * @param virtualThreads If virtual threads should be used
+         */
+        public void setUseVirtualThreads(boolean virtualThreads) {
+            workerOptions.virtualThreads = virtualThreads;
+        }
+
+        /**
+         * Merge async saves of the same entity while they wait in the worker queue
+         * <p>Entities are matched by table and ID ({@link net.mcmerdith.ormmicro.modeling.MappedSqlModel#equals(Object)}),
+         * only the state from the latest save is written. Entities without an ID are never merged</p>
+         * <p>Default: false</p>
+         *
+         * @param writeBehind If saves should be merged
+         */
+        public void setWriteBehind(boolean writeBehind) {
+            workerOptions.writeBehind = writeBehind;
+        }
+
+        /**
+         * Execute the tasks of each worker drain in one transaction instead of committing every statement
+         * <p>Each task runs in its own savepoint, so a failing task is rolled back alone.
+         * Tasks complete after the transaction commits, if the commit fails every task in it fails</p>
+         * <p>Default: disabled</p>
+         *
+         * @param maxTasks  The most tasks to include in one transaction, 0 for the whole drain
+         * @param maxMillis The longest to keep a transaction open before committing, 0 for no limit
+         */
+        public void setGroupCommit(int maxTasks, long maxMillis) {
+            workerOptions.groupCommit = true;
+            workerOptions.groupCommitMaxTasks = maxTasks;
+            workerOptions.groupCommitMaxMillis = maxMillis;
+        }
+
+        /**
+         * Limit how many tasks the worker runs in one drain
+         * <p>Higher priority tasks queued during a drain wait for it to finish, smaller drains let them in sooner.
+         * Larger drains share more work between commits and batches</p>
+         * <p>Default: 256</p>
+         *
+         * @param drainLimit The most tasks in one drain, 0 for no limit
+         * @see TaskPriority
+         */
+        public void setWorkerDrainLimit(int drainLimit) {
+            workerOptions.drainLimit = drainLimit;
+        }
+
+        /**
+         * Set how long a lower priority task may be held back by higher priority work
+         * <p>Tasks that have waited longer are given up to a quarter of each drain, oldest first</p>
+         * <p>Default: 1000ms</p>
+         *
+         * @param starvationMillis The threshold in milliseconds
+         * @see TaskPriority
+         */
+        public void setStarvationThreshold(long starvationMillis) {
+            workerOptions.starvationMillis = starvationMillis;
+        }
+
+        /**
+         * Journal async writes to a local file until they are committed
+         * <p>Writes still queued when the JVM dies are replayed the next time a factory is built with the same journal.
+         * Delivery is at least once: a write is marked done only after its transaction commits, so a crash between the
+         * two replays a write that was already committed. Saves are replayed as an update, falling back to an insert,
+         * so they are written again harmlessly. Other updates are replayed as is, and must be idempotent to be
+         * journaled safely, e.g. <code>SET x = ?</code> rather than <code>SET x = x + 1</code></p>
+         * <p>Default: not journaled</p>
+         *
+         * @param file The journal file, it must not be shared with another factory
+         * @param sync Flush the journal to disk on every write so it also survives a crash of the operating system.
+         *             Without it the journal only survives the JVM dying
+         */
+        public void setWriteJournal(Path file, boolean sync) {
+            workerOptions.journalFile = file;
+            workerOptions.journalSync = sync;
+        }
+
+        /**
+         * Keep the metadata of registered models in a local file
+         * <p>The next factory built with the same file restores models whose class (and converters) haven't changed
+         * from it instead of reflecting over them. The file is written after {@link ModelManager#registerModels(java.util.Collection)}
+         * and when the factory is closed</p>
+         * <p>Default: not kept</p>
+         *
+         * @param file The cache file, it must not be shared with another running factory
+         */
+        public void setMetadataCache(Path file) {
+            this.metadataCache = file;
+        }
+
+        /**
+         * Expose the database worker metrics over JMX
+         * <p>Registered as <code>net.mcmerdith.ormmicro:type=DatabaseWorker,name="[name]"</code> until the factory is closed</p>
+         * <p>Default: not registered</p>
+         *
+         * @param name A name unique to this factory within the JVM
+         * @see SessionFactory#getWorkerMetrics()
+         */
+        public void setJmxName(String name) {
+            workerOptions.jmxName = name;
+        }
+
+        /**
+         * Deliver async callbacks on an executor instead of the worker thread
+         * <p>Callbacks are run in drains limited to <code>budgetMillis</code>, leftovers are carried to the next drain.
+         * The executor should run drains later (e.g. on the next server tick), not inline</p>
+         * <p>Default: callbacks run on the worker thread</p>
+         *
+         * @param executor     Runs each drain, or null to drain manually with {@link ResultDispatcher#drain()}
+         * @param budgetMillis The most time a drain may take, 0 for no limit
+         * @see SessionFactory#getResultDispatcher()
+         */
+        public void setResultExecutor(Executor executor, long budgetMillis) {
+            workerOptions.resultDispatch = true;
+            workerOptions.resultExecutor = executor;
+            workerOptions.resultBudgetMillis = budgetMillis;
+        }
+
+        /**
+         * Read from a replica of the database
+         * <p>{@link net.mcmerdith.ormmicro.query.SqlQuery} executions (on the session or the database worker)
+         * and read-only transactions are sent to the replicas. Saves, removes, and everything inside a regular
+         * transaction use the primary database. Replicas may lag behind the primary, so a read straight after
+         * a write may not see it unless it runs in a transaction</p>
+         * <p>Each session reads from one replica, picked by {@link Builder#setReplicaBalancing(ReplicaBalancing)}</p>
+         * <p>Default: no replicas (everything uses the primary database)</p>
+         *
+         * @param replicaConfig The connection pool configuration of the replica
+         */
+        public void addReadReplica(@Nonnull HikariConfig replicaConfig) {
+            replicaConfigs.add(replicaConfig);
+        }
+
+        /**
+         * How sessions pick the replica they read from
+         * <p>Default: {@link ReplicaBalancing#ROUND_ROBIN}</p>
+         *
+         * @param balancing The balancing strategy
+         * @see Builder#addReadReplica(HikariConfig)
+         */
+        public void setReplicaBalancing(@Nonnull ReplicaBalancing balancing) {
+            this.replicaBalancing = balancing;
+        }
+
+        /**
+         * Add a shard, a database storing part of the sharded models
+         * <p>The database from the builder's configuration is the first shard, added shards follow in order.
+         * Models with a {@link net.mcmerdith.ormmicro.annotations.ShardKey} are saved to and removed from the
+         * shard picked by {@link Builder#setShardStrategy(ShardStrategy)}. Other models stay on the first shard</p>
+         * <p>{@link net.mcmerdith.ormmicro.query.SqlQuery} executions that require the shard key to equal a value
+         * only query that shard, other queries are sent to every shard and their results merged, honouring the
+         * query's ordering and limit. Transactions don't span shards, see {@link Session#forShard(int)}</p>
+         * <p>Shards don't have read replicas</p>
+         * <p>Default: one shard</p>
+         *
+         * @param shardConfig The connection pool configuration of the shard
+         */
+        public void addShard(@Nonnull HikariConfig shardConfig) {
+            shardConfigs.add(shardConfig);
+        }
+
+        /**
+         * How shard key values are mapped to shards
+         * <p>Changing the strategy (or the number of shards) moves keys between shards, existing rows are not migrated</p>
+         * <p>Default: {@link ShardStrategy#hash()}</p>
+         *
+         * @param strategy The sharding strategy
+         */
+        public void setShardStrategy(@Nonnull ShardStrategy strategy) {
+            this.shardStrategy = strategy;
+        }
+
+        /**
+         * Warm up the connection pools when the factory is built
+         * <p>The models are registered, then {@link SessionFactory#warmUp()} fills every pool to its minimum idle
+         * size, opening the connections in parallel. {@link Builder#build()} blocks until the pools are warm</p>
+         * <p>Only models and connections are warmed, statements are still prepared on first use</p>
+         * <p>Default: false (models are registered and connections opened on first use)</p>
+         *
+         * @param warmUp If the pools should be warmed up
+         * @param models Models to register before warming up
+         */
+        public void setWarmUp(boolean warmUp, Class<?>... models) {
+            this.warmUp = warmUp;
+            warmUpModels.addAll(Arrays.asList(models));
+        }
+
         public SessionFactory build() {
             if (nameManager == null) nameManager = new NameManager();
             if (sqlDialect == null) sqlDialect = SqlDialect.GENERIC;
             if (typeMapper == null) typeMapper = new GenericTypeMapper();
-            return new SessionFactory(nameManager, sqlDialect, typeMapper, new HikariDataSource(hikariConfig));
+
+            List<HikariDataSource> replicaSources = new ArrayList<>();
+            for (HikariConfig replicaConfig : replicaConfigs) {
+                replicaSources.add(new HikariDataSource(replicaConfig));
+            }
+
+            List<HikariDataSource> shards = new ArrayList<>();
+            shards.add(new HikariDataSource(hikariConfig));
+            for (HikariConfig shardConfig : shardConfigs) {
+                shards.add(new HikariDataSource(shardConfig));
+            }
+
+            SessionFactory factory = new SessionFactory(nameManager, sqlDialect, typeMapper, shards, shardStrategy, new ReplicaSet(replicaSources, replicaBalancing), metadataCache, sessionOptions, workerOptions);
+
+            if (warmUp) {
+                factory.getModelManager().registerModels(warmUpModels);
+                factory.warmUp();
+            }
+
+            return factory;
         }
     }
 }
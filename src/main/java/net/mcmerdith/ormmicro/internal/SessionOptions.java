@@ -0,0 +1,21 @@
+package net.mcmerdith.ormmicro.internal;
+
+/**
+ * Settings for each {@link Session}, collected by {@link SessionFactory.Builder}
+ */
+class SessionOptions {
+    /**
+     * The most prepared statements each session keeps open, 0 to not cache statements
+     */
+    int statementCacheSize = 64;
+
+    /**
+     * If {@link SessionFactory#getCurrentSession()} reuses the calling thread's open session
+     */
+    boolean threadBound = false;
+
+    /**
+     * If sessions acquire their connection on the first statement and release it whenever they are idle
+     */
+    boolean lazyConnections = false;
+}
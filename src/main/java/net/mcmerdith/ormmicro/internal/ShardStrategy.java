@@ -0,0 +1,61 @@
+package net.mcmerdith.ormmicro.internal;
+
+import java.util.Arrays;
+
+/**
+ * Decides which shard stores a model, from the value of its {@link net.mcmerdith.ormmicro.annotations.ShardKey}
+ * <p>The same key must always map to the same shard, or models written earlier can't be found</p>
+ *
+ * @see SessionFactory.Builder#setShardStrategy(ShardStrategy)
+ */
+@FunctionalInterface
+public interface ShardStrategy {
+    /**
+     * @param key    The value of the shard key as it is stored in the database, may be null
+     * @param shards The number of shards
+     * @return The shard, from 0 to <code>shards - 1</code>
+     */
+    int shardFor(Object key, int shards);
+
+    /**
+     * Spread keys evenly by their hash code
+     * <p>The key's hash code must not change between runs, which holds for strings, numbers and UUIDs.
+     * Numbers are hashed by their <code>long</code> value, so a key routes the same whether the driver or the model
+     * provides it as an <code>Integer</code> or a <code>Long</code></p>
+     */
+    static ShardStrategy hash() {
+        return (key, shards) -> {
+            if (key == null) return 0;
+
+            int hash = key instanceof Number ? Long.hashCode(((Number) key).longValue()) : key.hashCode();
+            // Spread the high bits, sequential keys tend to differ only in the low bits
+            hash ^= (hash >>> 16);
+
+            return Math.floorMod(hash, shards);
+        };
+    }
+
+    /**
+     * Split numeric keys into ranges
+     * <p>Shard 0 stores keys below the first bound, shard <code>n</code> stores keys from bound <code>n - 1</code>
+     * up to bound <code>n</code>, the last shard stores the rest. Null keys go to shard 0</p>
+     *
+     * @param bounds The lower bound of each shard after the first, ascending
+     */
+    static ShardStrategy range(long... bounds) {
+        long[] sorted = bounds.clone();
+        Arrays.sort(sorted);
+
+        return (key, shards) -> {
+            if (key == null) return 0;
+            if (!(key instanceof Number)) throw new IllegalArgumentException("Range sharding needs a numeric key, got " + key.getClass().getName());
+
+            long value = ((Number) key).longValue();
+
+            int shard = 0;
+            while (shard < sorted.length && value >= sorted[shard]) shard++;
+
+            return Math.min(shard, shards - 1);
+        };
+    }
+}
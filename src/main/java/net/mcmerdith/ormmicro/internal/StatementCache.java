@@ -0,0 +1,191 @@
+package net.mcmerdith.ormmicro.internal;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A bounded LRU cache of prepared statements for one connection, keyed by SQL text
+ * <p>A statement whose last result set is still open is busy, preparing the same SQL again returns a new
+ * statement instead so the open results stay valid. Statements that aren't cached are only used once, they are
+ * closed when {@link StatementCache#release(PreparedStatement)} is called after an update, or when their results
+ * are closed. Every other statement is closed with the cache</p>
+ */
+class StatementCache implements AutoCloseable {
+    private static class CachedStatement {
+        private final PreparedStatement statement;
+
+        /**
+         * The last results read from the statement, null if none are open
+         */
+        private ResultSet results;
+
+        private CachedStatement(PreparedStatement statement) {
+            this.statement = statement;
+        }
+
+        private boolean isBusy() {
+            return results != null && !isClosed(results);
+        }
+    }
+
+    private final Connection connection;
+
+    private final int capacity;
+
+    private final Map<String, CachedStatement> cache;
+
+    /**
+     * Statements that aren't cached and are still in use
+     */
+    private final List<CachedStatement> uncached = new ArrayList<>();
+
+    /**
+     * Every result set recorded with {@link StatementCache#opened(String, PreparedStatement, ResultSet)} that may still be open
+     */
+    private final List<ResultSet> openResults = new ArrayList<>();
+
+    /**
+     * @param capacity The most statements to cache, 0 to not cache statements
+     */
+    StatementCache(Connection connection, int capacity) {
+        this.connection = connection;
+        this.capacity = capacity;
+        this.cache = new LinkedHashMap<String, CachedStatement>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, CachedStatement> eldest) {
+                if (size() <= capacity) return false;
+
+                // Don't pull open results out from under the caller, close the statement with them instead
+                if (eldest.getValue().isBusy()) uncached.add(eldest.getValue());
+                else closeQuietly(eldest.getValue().statement);
+
+                return true;
+            }
+        };
+    }
+
+    /**
+     * Get a prepared statement for the SQL, with its parameters cleared
+     * <p>The statement belongs to the cache and must not be closed. If it isn't used for a query,
+     * call {@link StatementCache#release(PreparedStatement)} once it has been executed</p>
+     */
+    PreparedStatement prepare(String sql) throws SQLException {
+        closeFinished();
+
+        CachedStatement entry = cache.get(sql);
+
+        if (entry != null && !entry.isBusy()) {
+            entry.results = null;
+            entry.statement.clearParameters();
+            return entry.statement;
+        }
+
+        PreparedStatement statement = connection.prepareStatement(sql);
+
+        // Busy statements keep their place, the new one is only used once
+        if (entry == null && capacity > 0) cache.put(sql, new CachedStatement(statement));
+        else uncached.add(new CachedStatement(statement));
+
+        return statement;
+    }
+
+    /**
+     * Let go of a statement that was executed without reading results, closing it if it isn't cached
+     */
+    void release(PreparedStatement statement) {
+        for (int i = 0; i < uncached.size(); i++) {
+            CachedStatement entry = uncached.get(i);
+            if (entry.statement != statement) continue;
+
+            // Results read from it are closed with them
+            if (!entry.isBusy()) {
+                uncached.remove(i);
+                closeQuietly(statement);
+            }
+            return;
+        }
+    }
+
+    /**
+     * Record the results read from a prepared statement, so the statement isn't reused while they are open
+     */
+    void opened(String sql, PreparedStatement statement, ResultSet results) {
+        closeFinished();
+
+        CachedStatement entry = cache.get(sql);
+        if (entry != null && entry.statement == statement) {
+            entry.results = results;
+        } else {
+            for (CachedStatement uncachedEntry : uncached) {
+                if (uncachedEntry.statement == statement) uncachedEntry.results = results;
+            }
+        }
+
+        openResults.removeIf(StatementCache::isClosed);
+        openResults.add(results);
+    }
+
+    /**
+     * Check if any results recorded with {@link StatementCache#opened(String, PreparedStatement, ResultSet)} are still open
+     */
+    boolean hasOpenResults() {
+        openResults.removeIf(StatementCache::isClosed);
+        return !openResults.isEmpty();
+    }
+
+    /**
+     * Get the number of statements that are still open, cached or not
+     */
+    int size() {
+        closeFinished();
+        return cache.size() + uncached.size();
+    }
+
+    /**
+     * Close the statements that aren't cached once their results are closed
+     */
+    private void closeFinished() {
+        uncached.removeIf(entry -> {
+            if (entry.results == null || !isClosed(entry.results)) return false;
+
+            closeQuietly(entry.statement);
+            return true;
+        });
+    }
+
+    @Override
+    public void close() {
+        for (CachedStatement entry : cache.values()) {
+            closeQuietly(entry.statement);
+        }
+        cache.clear();
+
+        for (CachedStatement entry : uncached) {
+            closeQuietly(entry.statement);
+        }
+        uncached.clear();
+        openResults.clear();
+    }
+
+    private static boolean isClosed(ResultSet results) {
+        try {
+            return results.isClosed();
+        } catch (SQLException e) {
+            return true;
+        }
+    }
+
+    private static void closeQuietly(Statement statement) {
+        try {
+            statement.close();
+        } catch (SQLException ignored) {
+        }
+    }
+}
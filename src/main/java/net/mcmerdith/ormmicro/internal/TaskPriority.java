@@ -0,0 +1,23 @@
+package net.mcmerdith.ormmicro.internal;
+
+/**
+ * How urgently the database worker should run a task
+ * <p>Each drain is filled from the highest priority down. Tasks of a lower priority that have waited longer than
+ * the starvation threshold ({@link SessionFactory.Builder#setStarvationThreshold(long)}) are given a share of
+ * every drain, so a steady stream of high priority work can't hold them back forever</p>
+ * <p>Tasks sharing a routing key are only run in order if they also share a priority</p>
+ */
+public enum TaskPriority {
+    /**
+     * Someone is waiting for the result, ex. a lookup for a player
+     */
+    INTERACTIVE,
+    /**
+     * The default
+     */
+    NORMAL,
+    /**
+     * Background work that can wait, ex. statistics writes
+     */
+    BULK
+}
@@ -0,0 +1,31 @@
+package net.mcmerdith.ormmicro.internal;
+
+import java.util.concurrent.ExecutorService;
+
+/**
+ * Virtual thread support
+ * <p>Virtual threads require Java 21. This is the implementation for older runtimes, the Java 21
+ * implementation is packaged in <code>META-INF/versions/21</code></p>
+ */
+public class VirtualThreads {
+    private VirtualThreads() {
+        // Don't instantiate this class
+    }
+
+    /**
+     * Check if the runtime supports virtual threads
+     */
+    public static boolean isSupported() {
+        return false;
+    }
+
+    /**
+     * Create an executor that starts a new virtual thread for each task
+     *
+     * @param namePrefix The prefix of the thread names, followed by a counter
+     * @throws UnsupportedOperationException If the runtime does not support virtual threads
+     */
+    public static ExecutorService newThreadPerTaskExecutor(String namePrefix) {
+        throw new UnsupportedOperationException("Virtual threads require Java 21");
+    }
+}
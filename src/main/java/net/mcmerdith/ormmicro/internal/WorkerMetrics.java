@@ -0,0 +1,171 @@
+package net.mcmerdith.ormmicro.internal;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Instrumentation of the database worker
+ * <p>Every task records how long it waited in the queue, how long its statement took to execute, and how long
+ * its callbacks (the result handler and any stages completed on the worker thread) took. Times are recorded in
+ * nanoseconds</p>
+ */
+public class WorkerMetrics implements WorkerMetricsMXBean {
+    private final AtomicInteger queueDepth = new AtomicInteger();
+    private final Histogram queueDepthHistogram = new Histogram();
+    private final Histogram waitTime = new Histogram();
+    private final Histogram executionTime = new Histogram();
+    private final Histogram callbackTime = new Histogram();
+    private final AtomicLong completed = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+
+    WorkerMetrics() {
+    }
+
+    void queued() {
+        queueDepthHistogram.record(queueDepth.incrementAndGet());
+    }
+
+    void started(long waitNanos) {
+        queueDepth.decrementAndGet();
+        waitTime.record(waitNanos);
+    }
+
+    void executed(long executionNanos) {
+        executionTime.record(executionNanos);
+    }
+
+    void completed(boolean success) {
+        (success ? completed : failed).incrementAndGet();
+    }
+
+    void calledBack(long callbackNanos) {
+        callbackTime.record(callbackNanos);
+    }
+
+    /**
+     * Get the queue depth sampled each time a task is queued
+     */
+    public Histogram getQueueDepthHistogram() {
+        return queueDepthHistogram;
+    }
+
+    /**
+     * Get the time from queueing a task to starting it
+     */
+    public Histogram getWaitTime() {
+        return waitTime;
+    }
+
+    /**
+     * Get the time spent executing statements
+     * <p>Batched tasks record an equal share of the batch</p>
+     */
+    public Histogram getExecutionTime() {
+        return executionTime;
+    }
+
+    /**
+     * Get the time spent processing results on the worker thread
+     */
+    public Histogram getCallbackTime() {
+        return callbackTime;
+    }
+
+    /**
+     * Get the number of tasks queued and not yet started
+     */
+    @Override
+    public int getQueueDepth() {
+        return queueDepth.get();
+    }
+
+    @Override
+    public long getMaxQueueDepth() {
+        return queueDepthHistogram.getMax();
+    }
+
+    @Override
+    public long getCompletedTasks() {
+        return completed.get();
+    }
+
+    @Override
+    public long getFailedTasks() {
+        return failed.get();
+    }
+
+    @Override
+    public double getWaitTimeMean() {
+        return millis(waitTime.getMean());
+    }
+
+    @Override
+    public double getWaitTime50thPercentile() {
+        return millis(waitTime.getPercentile(50));
+    }
+
+    @Override
+    public double getWaitTime99thPercentile() {
+        return millis(waitTime.getPercentile(99));
+    }
+
+    @Override
+    public double getWaitTimeMax() {
+        return millis(waitTime.getMax());
+    }
+
+    @Override
+    public double getExecutionTimeMean() {
+        return millis(executionTime.getMean());
+    }
+
+    @Override
+    public double getExecutionTime50thPercentile() {
+        return millis(executionTime.getPercentile(50));
+    }
+
+    @Override
+    public double getExecutionTime99thPercentile() {
+        return millis(executionTime.getPercentile(99));
+    }
+
+    @Override
+    public double getExecutionTimeMax() {
+        return millis(executionTime.getMax());
+    }
+
+    @Override
+    public double getCallbackTimeMean() {
+        return millis(callbackTime.getMean());
+    }
+
+    @Override
+    public double getCallbackTime50thPercentile() {
+        return millis(callbackTime.getPercentile(50));
+    }
+
+    @Override
+    public double getCallbackTime99thPercentile() {
+        return millis(callbackTime.getPercentile(99));
+    }
+
+    @Override
+    public double getCallbackTimeMax() {
+        return millis(callbackTime.getMax());
+    }
+
+    @Override
+    public void reset() {
+        queueDepthHistogram.reset();
+        waitTime.reset();
+        executionTime.reset();
+        callbackTime.reset();
+        completed.set(0);
+        failed.set(0);
+    }
+
+    private static double millis(double nanos) {
+        return nanos / TimeUnit.MILLISECONDS.toNanos(1);
+    }
+}
@@ -0,0 +1,46 @@
+package net.mcmerdith.ormmicro.internal;
+
+/**
+ * The database worker metrics exposed over JMX
+ * <p>Times are in milliseconds</p>
+ *
+ * @see SessionFactory.Builder#setJmxName(String)
+ */
+public interface WorkerMetricsMXBean {
+    int getQueueDepth();
+
+    long getMaxQueueDepth();
+
+    long getCompletedTasks();
+
+    long getFailedTasks();
+
+    double getWaitTimeMean();
+
+    double getWaitTime50thPercentile();
+
+    double getWaitTime99thPercentile();
+
+    double getWaitTimeMax();
+
+    double getExecutionTimeMean();
+
+    double getExecutionTime50thPercentile();
+
+    double getExecutionTime99thPercentile();
+
+    double getExecutionTimeMax();
+
+    double getCallbackTimeMean();
+
+    double getCallbackTime50thPercentile();
+
+    double getCallbackTime99thPercentile();
+
+    double getCallbackTimeMax();
+
+    /**
+     * Forget all recorded values, the current queue depth is kept
+     */
+    void reset();
+}
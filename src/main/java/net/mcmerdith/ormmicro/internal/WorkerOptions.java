@@ -0,0 +1,90 @@
+package net.mcmerdith.ormmicro.internal;
+
+import java.nio.file.Path;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+
+/**
+ * Settings for the {@link DatabaseWorker}, collected by {@link SessionFactory.Builder}
+ */
+class WorkerOptions {
+    /**
+     * How long a lane waits for more tasks after waking before it starts draining
+     */
+    long lingerMillis = 0;
+
+    /**
+     * The number of lanes tasks are distributed across
+     */
+    int lanes = 1;
+
+    /**
+     * A caller supplied executor to run the lanes on, not shut down by the worker
+     */
+    ExecutorService executor = null;
+
+    /**
+     * Run the lanes on virtual threads if the runtime supports them
+     */
+    boolean virtualThreads = false;
+
+    /**
+     * Merge queued saves of the same entity
+     */
+    boolean writeBehind = false;
+
+    /**
+     * Share one commit between the tasks of a drain
+     */
+    boolean groupCommit = false;
+
+    /**
+     * The most tasks in one transaction, 0 for no limit
+     */
+    int groupCommitMaxTasks = 0;
+
+    /**
+     * The longest a transaction is kept open before committing, 0 for no limit
+     */
+    long groupCommitMaxMillis = 0;
+
+    /**
+     * The most tasks run in one drain, 0 for no limit
+     */
+    int drainLimit = 256;
+
+    /**
+     * How long a lower priority task waits before it is guaranteed a place in a drain
+     */
+    long starvationMillis = 1000;
+
+    /**
+     * Journal queued writes to this file, null to not journal them
+     */
+    Path journalFile = null;
+
+    /**
+     * Flush the journal to disk on every write
+     */
+    boolean journalSync = false;
+
+    /**
+     * Register the metrics with JMX under this name, null to not register them
+     */
+    String jmxName = null;
+
+    /**
+     * Deliver callbacks through a {@link ResultDispatcher}
+     */
+    boolean resultDispatch = false;
+
+    /**
+     * Runs result drains, null if they're drained manually
+     */
+    Executor resultExecutor = null;
+
+    /**
+     * The most time a result drain may take, 0 for no limit
+     */
+    long resultBudgetMillis = 0;
+}
@@ -0,0 +1,109 @@
+package net.mcmerdith.ormmicro.internal;
+
+import net.mcmerdith.ormmicro.modeling.MappedSqlModel;
+
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Merge async saves of the same entity
+ * <p>While a save is waiting in the worker queue, later saves of the same entity replace the state it will write
+ * instead of queueing another statement</p>
+ * <p>Only entities with an assigned identifier are merged. Entities without one can't be told apart from other new
+ * entities of the same model, each of their saves is queued on its own</p>
+ */
+class WriteBehindBuffer {
+    private static class PendingSave {
+        /**
+         * The most recent state, written when the save is executed
+         */
+        private volatile MappedSqlModel<?> latest;
+
+        /**
+         * The write journal record of the latest state
+         */
+        private volatile long journalId;
+
+        /**
+         * Shared by every save merged into this one
+         */
+        private final CompletableFuture<Integer> future = new CompletableFuture<>();
+
+        private PendingSave(MappedSqlModel<?> latest, long journalId) {
+            this.latest = latest;
+            this.journalId = journalId;
+        }
+    }
+
+    private final DatabaseWorker worker;
+    private final PersistenceContext persistenceContext;
+
+    /**
+     * Saves that have been queued but not started, keyed by entity identity
+     */
+    private final Map<MappedSqlModel<?>, PendingSave> pending = new ConcurrentHashMap<>();
+
+    WriteBehindBuffer(DatabaseWorker worker, PersistenceContext persistenceContext) {
+        this.worker = worker;
+        this.persistenceContext = persistenceContext;
+    }
+
+    /**
+     * Queue a save, or merge it into a save of the same entity that hasn't started yet
+     */
+    CompletionStage<Integer> save(MappedSqlModel<?> model) {
+        if (!model.hasAssignedId()) {
+            PendingSave save = new PendingSave(model, worker.journalSave(model));
+            queue(model, save);
+            return save.future;
+        }
+
+        PendingSave[] created = new PendingSave[1];
+
+        PendingSave save = pending.compute(model, (key, existing) -> {
+            // The journaled state is replaced like the pending one, the old record won't be written
+            long journalId = worker.journalSave(model);
+
+            if (existing != null) {
+                worker.journalDone(existing.journalId);
+                existing.journalId = journalId;
+                existing.latest = model;
+                return existing;
+            }
+
+            return created[0] = new PendingSave(model, journalId);
+        });
+
+        if (created[0] != null) queue(model, save);
+
+        return save.future;
+    }
+
+    /**
+     * Stop merging into the pending save of an entity
+     * <p>Used before a delete is queued, so later saves are ordered after the delete instead of being merged into an earlier save</p>
+     */
+    void seal(MappedSqlModel<?> model) {
+        pending.remove(model);
+    }
+
+    private void queue(MappedSqlModel<?> key, PendingSave save) {
+        worker.submitSave(key, () -> {
+            // Once the statement is built nothing else can be merged, later saves queue a new write
+            pending.remove(key, save);
+            return save.latest;
+        }, -1).whenComplete((updated, e) -> {
+            worker.journalDone(save.journalId);
+
+            if (e != null) {
+                save.future.completeExceptionally(e);
+                return;
+            }
+
+            persistenceContext.trackSaved(save.latest);
+            save.future.complete(updated);
+        });
+    }
+}
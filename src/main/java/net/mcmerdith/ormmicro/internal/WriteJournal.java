@@ -0,0 +1,486 @@
+package net.mcmerdith.ormmicro.internal;
+
+import net.mcmerdith.ormmicro.OrmMicroLogger;
+import net.mcmerdith.ormmicro.query.ParameterizedStatement;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * An append-only, memory-mapped log of queued writes
+ * <p>Writes are recorded before they are queued and marked done once the worker has committed (or failed) them.
+ * Writes still pending when the JVM dies are replayed the next time the journal is opened.
+ * Once every recorded write is done the journal is truncated</p>
+ * <p>Replay is at least once. A write committed right before the JVM died, but not yet marked done, is replayed
+ * as well, so only idempotent writes are safe to journal</p>
+ * <p>The file survives the JVM dying without any extra cost. Surviving a crash of the operating system requires
+ * every append to be flushed to disk ({@link SessionFactory.Builder#setWriteJournal(Path, boolean)})</p>
+ * <p>File layout: a header of magic, version and epoch, followed by records of
+ * <code>[int length][int crc][byte state][payload]</code>. The payload starts with the epoch it was written in,
+ * so records left over from before a truncation are not replayed, followed by the type, the shard and the statements</p>
+ * <p>Only parameters of the JDBC value types the worker binds are journaled. Nothing is deserialized through
+ * {@link java.io.ObjectInputStream}, a tampered journal can't instantiate arbitrary classes when it is replayed.
+ * Writes with other parameters are executed, but not journaled</p>
+ */
+class WriteJournal implements AutoCloseable {
+    private static final int MAGIC = 0x4F524D4A; // ORMJ
+    private static final int VERSION = 2;
+
+    private static final int EPOCH_OFFSET = 8;
+    private static final int HEADER_SIZE = 16;
+
+    /**
+     * Length, crc and state
+     */
+    private static final int RECORD_HEADER_SIZE = 9;
+    private static final int STATE_OFFSET = 8;
+
+    private static final byte STATE_PENDING = 0;
+    private static final byte STATE_DONE = 1;
+
+    /**
+     * The statement is executed as is
+     */
+    private static final byte TYPE_UPDATE = 0;
+    /**
+     * The update is executed, and the insert if the update didn't change anything
+     */
+    private static final byte TYPE_SAVE = 1;
+
+    private static final int INITIAL_CAPACITY = 1 << 20;
+
+    /**
+     * A write read back from the journal
+     */
+    private static class Entry {
+        private final long id;
+        private final int shard;
+        private final ParameterizedStatement update;
+        private final ParameterizedStatement insert;
+
+        private Entry(long id, int shard, ParameterizedStatement update, ParameterizedStatement insert) {
+            this.id = id;
+            this.shard = shard;
+            this.update = update;
+            this.insert = insert;
+        }
+    }
+
+    private final Path file;
+    private final FileChannel channel;
+    private final boolean sync;
+
+    private MappedByteBuffer buffer;
+    private long epoch;
+    private int position;
+
+    /**
+     * Recorded writes not yet marked done
+     */
+    private int outstanding;
+
+    /**
+     * Writes found pending when the journal was opened
+     */
+    private List<Entry> recovered;
+
+    WriteJournal(Path file, boolean sync) throws IOException {
+        this.file = file;
+        this.sync = sync;
+        this.channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+
+        this.buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, Math.max(channel.size(), INITIAL_CAPACITY));
+
+        this.recovered = new ArrayList<>();
+
+        if (buffer.getInt(0) == MAGIC && buffer.getInt(4) == VERSION) {
+            this.epoch = buffer.getLong(EPOCH_OFFSET);
+
+            // Recovered writes stay in the journal until they have been replayed
+            this.position = read(recovered);
+            this.outstanding = recovered.size();
+        } else {
+            // New (or unreadable) journal
+            buffer.putInt(0, MAGIC);
+            buffer.putInt(4, VERSION);
+        }
+
+        if (outstanding == 0) truncate();
+    }
+
+    /**
+     * Execute the writes that were pending when the journal was last closed
+     * <p>Failures are logged and skipped</p>
+     *
+     * @return The number of writes replayed
+     */
+    int replay(SessionFactory sessionFactory) {
+        List<Entry> entries = recovered;
+        recovered = new ArrayList<>();
+        if (entries.isEmpty()) return 0;
+
+        OrmMicroLogger.DATABASE_WORKER.info("Replaying " + entries.size() + " journaled write(s) from " + file);
+
+        int replayed = 0;
+        try (Session session = sessionFactory.getCurrentSession()) {
+            for (Entry entry : entries) {
+                try {
+                    Session shardSession = session.forShard(entry.shard);
+                    if (entry.update == null || execute(shardSession, entry.update) == 0) {
+                        if (entry.insert != null) execute(shardSession, entry.insert);
+                    }
+                    replayed++;
+                } catch (SQLException | RuntimeException e) {
+                    ParameterizedStatement failed = entry.update != null ? entry.update : entry.insert;
+                    OrmMicroLogger.DATABASE_WORKER.exception(e, "Failed to replay journaled write `" + failed.getStatement() + "`");
+                }
+
+                done(entry.id);
+            }
+        }
+
+        return replayed;
+    }
+
+    private static int execute(Session session, ParameterizedStatement statement) throws SQLException {
+        return session.executeUpdate(statement.getStatement(), statement.getParameters());
+    }
+
+    /**
+     * Record an update
+     *
+     * @param shard The shard the update runs on
+     * @return The id of the record, or -1 if it could not be recorded
+     */
+    long append(int shard, String statement, List<Object> parameters) {
+        return append(TYPE_UPDATE, shard, new ParameterizedStatement(statement, parameters == null ? List.of() : parameters), null);
+    }
+
+    /**
+     * Record a save, replayed as the update or, if the update changes nothing, the insert
+     *
+     * @param shard  The shard the save runs on
+     * @param update The update, null if the model can only be inserted
+     * @param insert The insert
+     * @return The id of the record, or -1 if it could not be recorded
+     */
+    long appendSave(int shard, ParameterizedStatement update, ParameterizedStatement insert) {
+        return append(TYPE_SAVE, shard, update, insert);
+    }
+
+    private long append(byte type, int shard, ParameterizedStatement first, ParameterizedStatement second) {
+        byte[] payload;
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+
+            // Placeholder for the epoch, filled in once the record is positioned
+            out.writeLong(0);
+            out.writeByte(type);
+            out.writeInt(shard);
+            writeStatement(out, first);
+            writeStatement(out, second);
+
+            payload = bytes.toByteArray();
+        } catch (IOException | IllegalArgumentException e) {
+            String statement = first != null ? first.getStatement() : second.getStatement();
+            OrmMicroLogger.DATABASE_WORKER.exception(e, "Failed to journal `" + statement + "`, it will not survive a crash");
+            return -1;
+        }
+
+        synchronized (this) {
+            try {
+                ensureCapacity(position + RECORD_HEADER_SIZE + payload.length);
+            } catch (IOException e) {
+                OrmMicroLogger.DATABASE_WORKER.exception(e, "Failed to grow write journal, write will not survive a crash");
+                return -1;
+            }
+
+            long id = position;
+
+            for (int i = 0; i < Long.BYTES; i++) {
+                payload[i] = (byte) (epoch >>> (56 - 8 * i));
+            }
+
+            CRC32 crc = new CRC32();
+            crc.update(payload);
+
+            buffer.putInt(position, payload.length);
+            buffer.putInt(position + 4, (int) crc.getValue());
+            buffer.put(position + STATE_OFFSET, STATE_PENDING);
+            buffer.position(position + RECORD_HEADER_SIZE);
+            buffer.put(payload);
+
+            position += RECORD_HEADER_SIZE + payload.length;
+            outstanding++;
+
+            if (sync) buffer.force();
+
+            return id;
+        }
+    }
+
+    /**
+     * Mark a recorded write as committed (or failed), it will not be replayed
+     * <p>Truncates the journal once nothing is outstanding</p>
+     *
+     * @param id The id of the record, ignored if -1
+     */
+    synchronized void done(long id) {
+        if (id < 0) return;
+
+        buffer.put((int) id + STATE_OFFSET, STATE_DONE);
+        if (--outstanding == 0) truncate();
+        else if (sync) buffer.force();
+    }
+
+    /**
+     * Get the number of recorded writes not yet marked done
+     */
+    synchronized int getOutstanding() {
+        return outstanding;
+    }
+
+    /**
+     * Start a new epoch, every record written so far is ignored from now on
+     */
+    private synchronized void truncate() {
+        buffer.putLong(EPOCH_OFFSET, ++epoch);
+        position = HEADER_SIZE;
+        outstanding = 0;
+
+        if (sync) buffer.force();
+    }
+
+    private void ensureCapacity(int required) throws IOException {
+        if (required < 0) throw new IOException("Write journal is full");
+        if (required <= buffer.capacity()) return;
+
+        long capacity = Math.min(Integer.MAX_VALUE, Math.max(2L * buffer.capacity(), required));
+        buffer.force();
+        buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+    }
+
+    /**
+     * Read the pending records of the current epoch
+     *
+     * @return The offset after the last record
+     */
+    private int read(List<Entry> entries) {
+        int offset = HEADER_SIZE;
+        while (offset + RECORD_HEADER_SIZE <= buffer.capacity()) {
+            int length = buffer.getInt(offset);
+            if (length <= 0 || length > buffer.capacity() - offset - RECORD_HEADER_SIZE) break;
+
+            byte[] payload = new byte[length];
+            buffer.position(offset + RECORD_HEADER_SIZE);
+            buffer.get(payload);
+
+            CRC32 crc = new CRC32();
+            crc.update(payload);
+
+            // A torn write, the end of the log
+            if ((int) crc.getValue() != buffer.getInt(offset + 4)) break;
+
+            try {
+                DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload));
+
+                // Left over from before the last truncation
+                if (in.readLong() != epoch) break;
+
+                byte type = in.readByte();
+                int shard = in.readInt();
+                ParameterizedStatement first = readStatement(in);
+                ParameterizedStatement second = readStatement(in);
+
+                if (buffer.get(offset + STATE_OFFSET) == STATE_PENDING) {
+                    entries.add(type == TYPE_SAVE ? new Entry(offset, shard, first, second) : new Entry(offset, shard, first, null));
+                }
+            } catch (IOException e) {
+                OrmMicroLogger.DATABASE_WORKER.exception(e, "Skipping unreadable write journal record");
+            }
+
+            offset += RECORD_HEADER_SIZE + length;
+        }
+
+        return offset;
+    }
+
+    @Override
+    public synchronized void close() {
+        buffer.force();
+
+        try {
+            channel.close();
+        } catch (IOException e) {
+            OrmMicroLogger.DATABASE_WORKER.exception(e, "Failed to close write journal");
+        }
+    }
+
+    /*
+    Serialization
+     */
+
+    private static final byte NULL = 0;
+    private static final byte STRING = 1;
+    private static final byte INTEGER = 2;
+    private static final byte LONG = 3;
+    private static final byte DOUBLE = 4;
+    private static final byte FLOAT = 5;
+    private static final byte BOOLEAN = 6;
+    private static final byte SHORT = 7;
+    private static final byte BYTE = 8;
+    private static final byte BYTES = 9;
+    private static final byte DECIMAL = 10;
+    private static final byte TIMESTAMP = 11;
+    private static final byte DATE = 12;
+    private static final byte TIME = 13;
+
+    private static void writeStatement(DataOutputStream out, ParameterizedStatement statement) throws IOException {
+        out.writeBoolean(statement != null);
+        if (statement == null) return;
+
+        writeString(out, statement.getStatement());
+
+        List<Object> parameters = statement.getParameters();
+        out.writeInt(parameters == null ? 0 : parameters.size());
+        if (parameters == null) return;
+
+        for (Object parameter : parameters) {
+            writeValue(out, parameter);
+        }
+    }
+
+    private static ParameterizedStatement readStatement(DataInputStream in) throws IOException {
+        if (!in.readBoolean()) return null;
+
+        String statement = readString(in);
+
+        int count = in.readInt();
+        List<Object> parameters = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            parameters.add(readValue(in));
+        }
+
+        return new ParameterizedStatement(statement, parameters);
+    }
+
+    /**
+     * Strings are written with an int length, {@link DataOutputStream#writeUTF(String)} is limited to 64KB
+     */
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        byte[] bytes = new byte[in.readInt()];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static void writeValue(DataOutputStream out, Object value) throws IOException {
+        if (value == null) {
+            out.writeByte(NULL);
+        } else if (value instanceof String) {
+            out.writeByte(STRING);
+            writeString(out, (String) value);
+        } else if (value instanceof Integer) {
+            out.writeByte(INTEGER);
+            out.writeInt((Integer) value);
+        } else if (value instanceof Long) {
+            out.writeByte(LONG);
+            out.writeLong((Long) value);
+        } else if (value instanceof Double) {
+            out.writeByte(DOUBLE);
+            out.writeDouble((Double) value);
+        } else if (value instanceof Float) {
+            out.writeByte(FLOAT);
+            out.writeFloat((Float) value);
+        } else if (value instanceof Boolean) {
+            out.writeByte(BOOLEAN);
+            out.writeBoolean((Boolean) value);
+        } else if (value instanceof Short) {
+            out.writeByte(SHORT);
+            out.writeShort((Short) value);
+        } else if (value instanceof Byte) {
+            out.writeByte(BYTE);
+            out.writeByte((Byte) value);
+        } else if (value instanceof byte[]) {
+            out.writeByte(BYTES);
+            out.writeInt(((byte[]) value).length);
+            out.write((byte[]) value);
+        } else if (value instanceof BigDecimal) {
+            out.writeByte(DECIMAL);
+            out.writeUTF(value.toString());
+        } else if (value instanceof java.sql.Timestamp) {
+            out.writeByte(TIMESTAMP);
+            out.writeLong(((java.sql.Timestamp) value).getTime());
+            out.writeInt(((java.sql.Timestamp) value).getNanos());
+        } else if (value instanceof java.sql.Date) {
+            out.writeByte(DATE);
+            out.writeLong(((java.sql.Date) value).getTime());
+        } else if (value instanceof java.sql.Time) {
+            out.writeByte(TIME);
+            out.writeLong(((java.sql.Time) value).getTime());
+        } else {
+            throw new IllegalArgumentException("Can't journal parameter of type " + value.getClass().getName());
+        }
+    }
+
+    private static Object readValue(DataInputStream in) throws IOException {
+        byte type = in.readByte();
+        switch (type) {
+            case NULL:
+                return null;
+            case STRING:
+                return readString(in);
+            case INTEGER:
+                return in.readInt();
+            case LONG:
+                return in.readLong();
+            case DOUBLE:
+                return in.readDouble();
+            case FLOAT:
+                return in.readFloat();
+            case BOOLEAN:
+                return in.readBoolean();
+            case SHORT:
+                return in.readShort();
+            case BYTE:
+                return in.readByte();
+            case BYTES: {
+                byte[] bytes = new byte[in.readInt()];
+                in.readFully(bytes);
+                return bytes;
+            }
+            case DECIMAL:
+                return new BigDecimal(in.readUTF());
+            case TIMESTAMP: {
+                java.sql.Timestamp timestamp = new java.sql.Timestamp(in.readLong());
+                timestamp.setNanos(in.readInt());
+                return timestamp;
+            }
+            case DATE:
+                return new java.sql.Date(in.readLong());
+            case TIME:
+                return new java.sql.Time(in.readLong());
+            default:
+                throw new IOException("Unknown parameter type " + type);
+        }
+    }
+}
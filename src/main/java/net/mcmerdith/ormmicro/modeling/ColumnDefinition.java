@@ -1,5 +1,6 @@
 package net.mcmerdith.ormmicro.modeling;
 
+import com.google.common.primitives.Primitives;
 import net.mcmerdith.ormmicro.OrmMicroLogger;
 import net.mcmerdith.ormmicro.internal.SessionFactory;
 import net.mcmerdith.ormmicro.annotations.*;
@@ -9,9 +10,17 @@ import net.mcmerdith.ormmicro.typing.SqlType;
 import net.mcmerdith.ormmicro.util.StringUtils;
 
 import javax.annotation.Nullable;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
 import java.lang.annotation.Annotation;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
 import java.lang.reflect.*;
 import java.util.*;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
 import java.util.function.Supplier;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
@@ -51,6 +60,22 @@ public class ColumnDefinition {
         return annotatedField.getType();
     }
 
+    /**
+     * Get the type this column is read from the database as
+     * <p>Enums are read as their storage type, primitives as their wrapper</p>
+     *
+     * @return The type to request from the JDBC driver
+     */
+    public Class<?> getStorageType() {
+        Class<?> fieldType = getFieldType();
+
+        if (fieldType.isEnum()) {
+            return enumStorageMode == EnumStorage.Mode.ORDINAL ? Integer.class : String.class;
+        }
+
+        return Primitives.wrap(fieldType);
+    }
+
     /**
      * Get the final column type.
      *
@@ -99,12 +124,30 @@ public class ColumnDefinition {
 
     private Supplier<ElementCollectionTable<?>> collectionTable = null;
 
+    /**
+     * The table, reference column and value column of the associated table
+     */
+    private String[] collectionTableNames = null;
+
     /*
     Data converters
      */
 
     private final List<AttributeConverter<?, ?>> converters = new ArrayList<>();
 
+    /**
+     * The converter chain in each direction, fixed once the column is built
+     */
+    private AttributeConverter<?, ?>[] javaToSqlConverters = new AttributeConverter<?, ?>[0];
+    private AttributeConverter<?, ?>[] sqlToJavaConverters = new AttributeConverter<?, ?>[0];
+
+    /*
+    Enum lookup tables, null if the field isn't an enum
+     */
+
+    private Object[] enumConstants = null;
+    private Map<String, Object> enumConstantsByName = null;
+
     /*
     Objects used to build this column
      */
@@ -113,6 +156,38 @@ public class ColumnDefinition {
     private final SqlModel<?> model;
     private final Field annotatedField;
 
+    /**
+     * The index of this column in its model, -1 until the model is built
+     */
+    private int index = -1;
+
+    /*
+    Field access
+     */
+
+    /**
+     * (Object)Object, boxing primitive values
+     */
+    private MethodHandle getter;
+
+    /**
+     * (Object, Object)void, unboxing primitive values
+     */
+    private MethodHandle setter;
+
+    /**
+     * Field accesses generated at compile time, null if the field is accessed through the handles
+     *
+     * @see GeneratedModel
+     */
+    private Function<Object, Object> generatedGetter;
+    private BiConsumer<Object, Object> generatedSetter;
+
+    /**
+     * (Object, [field type])void, for writing primitives read from a result set without boxing
+     */
+    private MethodHandle typedSetter;
+
     public ColumnDefinition(SessionFactory session, SqlModel<?> model, Field annotatedField) {
         this.session = session;
         this.model = model;
@@ -125,6 +200,7 @@ public class ColumnDefinition {
         if (isTransient) return;
 
         this.annotatedField.setAccessible(true);
+        createAccessors();
 
         Column column = annotatedField.getDeclaredAnnotation(Column.class);
 
@@ -156,6 +232,180 @@ public class ColumnDefinition {
 
         // Get the enum storage mode
         processEnumTypeAnnotation(annotatedField.getDeclaredAnnotation(EnumStorage.class));
+
+        // The field type is final, build the conversion tables
+        buildConversionTables();
+    }
+
+    /**
+     * Restore a column from metadata written by {@link ColumnDefinition#writeMetadata(DataOutput)}, without reading the field's annotations
+     * <p>Converters are instantiated and foreign references inferred again, the rest is taken as is</p>
+     *
+     * @throws IOException If the metadata can't be read or no longer matches the field
+     */
+    public ColumnDefinition(SessionFactory session, SqlModel<?> model, Field annotatedField, DataInput metadata) throws IOException {
+        this.session = session;
+        this.model = model;
+        this.annotatedField = annotatedField;
+
+        // Transient fields aren't columns, so they are never cached
+        this.isTransient = false;
+
+        this.annotatedField.setAccessible(true);
+        createAccessors();
+
+        columnName = metadata.readUTF();
+        annotationColumnType = readColumnType(metadata);
+        customColumnDefinition = metadata.readUTF();
+        defaultColumnValue = metadata.readUTF();
+        convertedType = readClass(metadata);
+        collectionType = readClass(metadata);
+
+        unique = metadata.readBoolean();
+        primary = metadata.readBoolean();
+        autoIncrement = metadata.readBoolean();
+        nullable = metadata.readBoolean();
+        foreign = metadata.readBoolean();
+        foreignReference = readNullableString(metadata);
+        checkConstraint = readNullableString(metadata);
+
+        enumStorageMode = EnumStorage.Mode.valueOf(metadata.readUTF());
+
+        array = metadata.readBoolean();
+        collection = metadata.readBoolean();
+        if (array || collection) setCollectionTable(metadata.readUTF(), metadata.readUTF(), metadata.readUTF());
+
+        int converterCount = metadata.readInt();
+        for (int i = 0; i < converterCount; i++) {
+            Class<?> converterClass = readClass(metadata);
+
+            try {
+                Constructor<?> constructor = converterClass.getConstructor();
+                constructor.setAccessible(true);
+                converters.add((AttributeConverter<?, ?>) constructor.newInstance());
+            } catch (ReflectiveOperationException | ClassCastException | NullPointerException e) {
+                throw new IOException("Failed to instantiate converter " + converterClass, e);
+            }
+        }
+
+        if (foreign && foreignReference == null) {
+            // The referenced model may have changed, infer the reference again
+            foreignReferencedColumnDefinition = session.getModelManager().getModel(getFieldType()).getUniqueIdentifier();
+            if (foreignReferencedColumnDefinition == null) throw new IOException("Foreign model " + getFieldType().getName() + " no longer has an identifier");
+        }
+
+        buildConversionTables();
+    }
+
+    /**
+     * Write everything read from the field's annotations
+     *
+     * @see ColumnDefinition#ColumnDefinition(SessionFactory, SqlModel, Field, DataInput)
+     */
+    public void writeMetadata(DataOutput out) throws IOException {
+        out.writeUTF(columnName);
+        writeColumnType(out, annotationColumnType);
+        out.writeUTF(customColumnDefinition);
+        out.writeUTF(defaultColumnValue);
+        writeClass(out, convertedType);
+        writeClass(out, collectionType);
+
+        out.writeBoolean(unique);
+        out.writeBoolean(primary);
+        out.writeBoolean(autoIncrement);
+        out.writeBoolean(nullable);
+        out.writeBoolean(foreign);
+        writeNullableString(out, foreignReference);
+        writeNullableString(out, checkConstraint);
+
+        out.writeUTF(enumStorageMode.name());
+
+        out.writeBoolean(array);
+        out.writeBoolean(collection);
+        if (array || collection) {
+            for (String name : collectionTableNames) {
+                out.writeUTF(name);
+            }
+        }
+
+        out.writeInt(converters.size());
+        for (AttributeConverter<?, ?> converter : converters) {
+            writeClass(out, converter.getClass());
+        }
+    }
+
+    /**
+     * Get the classes besides the model whose changes would change this column's metadata
+     * <p>The converters, the referenced model of an inferred foreign key and the element type of a collection.
+     * Classes of the runtime itself are left out, they only change with it</p>
+     */
+    public List<Class<?>> getMetadataDependencies() {
+        List<Class<?>> dependencies = new ArrayList<>();
+        for (AttributeConverter<?, ?> converter : converters) {
+            dependencies.add(converter.getClass());
+        }
+
+        if (foreign && foreignReference == null) dependencies.add(collectionType != null ? collectionType : annotatedField.getType());
+        if (collectionType != null) dependencies.add(collectionType);
+
+        dependencies.removeIf(type -> type.getClassLoader() == null);
+        return dependencies;
+    }
+
+    private static void writeColumnType(DataOutput out, ColumnType type) throws IOException {
+        out.writeBoolean(type != null);
+        if (type == null) return;
+
+        out.writeUTF(type.type.name());
+        writeNullableString(out, type.size == null ? null : type.size.name());
+        for (Integer value : new Integer[]{type.length, type.precision, type.digits, type.decimals}) {
+            out.writeBoolean(value != null);
+            if (value != null) out.writeInt(value);
+        }
+    }
+
+    private static ColumnType readColumnType(DataInput in) throws IOException {
+        if (!in.readBoolean()) return null;
+
+        ColumnType.Builder builder = new ColumnType.Builder(SqlType.valueOf(in.readUTF()));
+
+        String size = readNullableString(in);
+        if (size != null) builder.setSize(SqlType.Size.valueOf(size));
+
+        if (in.readBoolean()) builder.setLength(in.readInt());
+        if (in.readBoolean()) builder.setPrecision(in.readInt());
+        if (in.readBoolean()) builder.setDigits(in.readInt());
+        if (in.readBoolean()) builder.setDecimals(in.readInt());
+
+        return builder.build();
+    }
+
+    private static void writeClass(DataOutput out, Class<?> type) throws IOException {
+        writeNullableString(out, type == null ? null : type.getName());
+    }
+
+    private Class<?> readClass(DataInput in) throws IOException {
+        String name = readNullableString(in);
+        if (name == null) return null;
+
+        for (Class<?> primitive : Primitives.allPrimitiveTypes()) {
+            if (primitive.getName().equals(name)) return primitive;
+        }
+
+        try {
+            return Class.forName(name, false, annotatedField.getDeclaringClass().getClassLoader());
+        } catch (ClassNotFoundException e) {
+            throw new IOException("Class " + name + " no longer exists", e);
+        }
+    }
+
+    private static void writeNullableString(DataOutput out, String value) throws IOException {
+        out.writeBoolean(value != null);
+        if (value != null) out.writeUTF(value);
+    }
+
+    private static String readNullableString(DataInput in) throws IOException {
+        return in.readBoolean() ? in.readUTF() : null;
     }
 
     /*
@@ -252,6 +502,60 @@ public class ColumnDefinition {
         }
     }
 
+    /**
+     * Build the field's getter and setter handles, so every access skips the reflective access checks
+     */
+    private void createAccessors() {
+        Class<?> type = annotatedField.getType();
+
+        try {
+            // The field is accessible, so the handles may read and write it even if it's private or final
+            MethodHandles.Lookup lookup = MethodHandles.lookup();
+            MethodHandle get = lookup.unreflectGetter(annotatedField);
+            MethodHandle set = lookup.unreflectSetter(annotatedField);
+
+            typedSetter = set.asType(MethodType.methodType(void.class, Object.class, type));
+            getter = get.asType(MethodType.methodType(Object.class, Object.class));
+            setter = set.asType(MethodType.methodType(void.class, Object.class, Object.class));
+        } catch (IllegalAccessException e) {
+            throw logger.exception(e, String.format("Failed to access field '%s' on '%s'",
+                    annotatedField.getName(),
+                    annotatedField.getDeclaringClass().getSimpleName()), true);
+        }
+    }
+
+    /**
+     * Read and write the field with accesses generated at compile time instead of the handles
+     *
+     * @param getter The getter, or null to keep using the handle
+     * @param setter The setter, or null to keep using the handle
+     */
+    void useGeneratedAccessors(Function<Object, Object> getter, BiConsumer<Object, Object> setter) {
+        this.generatedGetter = getter;
+        this.generatedSetter = setter;
+    }
+
+    /**
+     * Fix the converter chains and index the enum constants, so conversions don't allocate or reflect
+     */
+    private void buildConversionTables() {
+        javaToSqlConverters = converters.toArray(new AttributeConverter<?, ?>[0]);
+
+        // The Java -> Sql converters, reversed
+        sqlToJavaConverters = new AttributeConverter<?, ?>[javaToSqlConverters.length];
+        for (int i = 0; i < javaToSqlConverters.length; i++) {
+            sqlToJavaConverters[i] = javaToSqlConverters[javaToSqlConverters.length - 1 - i];
+        }
+
+        if (!getFieldType().isEnum()) return;
+
+        enumConstants = getFieldType().getEnumConstants();
+        enumConstantsByName = new HashMap<>();
+        for (Object constant : enumConstants) {
+            enumConstantsByName.put(((Enum<?>) constant).name(), constant);
+        }
+    }
+
     /*
     Annotation Processing
      */
@@ -314,11 +618,12 @@ public class ColumnDefinition {
 
         // Create the supplier
 
-        final String cTN = model.getTableName(true) + "_" + cTableName;
-        final String cRCN = cRefColName;
-        final String cVCN = cValColName;
+        setCollectionTable(model.getTableName(true) + "_" + cTableName, cRefColName, cValColName);
+    }
 
-        this.collectionTable = () -> new ElementCollectionTable<>(getFieldType(), cTN, cRCN, cVCN);
+    private void setCollectionTable(String tableName, String referenceColumnName, String valueColumnName) {
+        this.collectionTableNames = new String[]{tableName, referenceColumnName, valueColumnName};
+        this.collectionTable = () -> new ElementCollectionTable<>(getFieldType(), tableName, referenceColumnName, valueColumnName);
     }
 
     private void processColumnAnnotation(@Nullable Column column) {
@@ -420,7 +725,8 @@ public class ColumnDefinition {
      * Get the name of this column
      */
     public String getName() {
-        return getName(false);
+        // Indexed columns share their model's precomputed names
+        return index < 0 ? getName(false) : model.getColumnName(index);
     }
 
     protected String getName(boolean raw) {
@@ -493,6 +799,17 @@ public class ColumnDefinition {
         return autoIncrement;
     }
 
+    /**
+     * Check if a value of this column has yet to be assigned
+     * <p>Null is never a value. Primitive fields can't hold null, so 0 is unassigned in auto-increment columns,
+     * the database generates their value on insert</p>
+     *
+     * @param value The value, as read from the field or mapped for the database
+     */
+    public boolean isUnassigned(Object value) {
+        return value == null || (autoIncrement && value instanceof Number && ((Number) value).longValue() == 0);
+    }
+
     public boolean isNullable() {
         return nullable;
     }
@@ -575,6 +892,19 @@ public class ColumnDefinition {
         return this.annotatedField;
     }
 
+    /**
+     * Get the index of this column in its model, see {@link SqlModel#getColumn(int)}
+     *
+     * @return The index, or -1 if the model is still being built
+     */
+    public int getIndex() {
+        return index;
+    }
+
+    void setIndex(int index) {
+        this.index = index;
+    }
+
     public SqlModel<?> getModel() {
         return model;
     }
@@ -589,17 +919,87 @@ public class ColumnDefinition {
 
     public Object getFieldValue(Object o) {
         try {
-            // Get the referenced field on the foreign object
-            return annotatedField.get(o);
-        } catch (Exception e) {
-            logger.exception(e,
-                    String.format("Failed to get field `%s` on type '%s'",
-                            annotatedField.getName(),
-                            o.getClass().getSimpleName()));
+            if (generatedGetter != null) return generatedGetter.apply(o);
+            return getter.invokeExact(o);
+        } catch (Throwable e) {
+            accessError(e, "get", o);
             return null;
         }
     }
 
+    public void setFieldValue(Object o, Object value) {
+        try {
+            if (generatedSetter != null) generatedSetter.accept(o, value);
+            else setter.invokeExact(o, value);
+        } catch (Throwable e) {
+            accessError(e, "set", o);
+        }
+    }
+
+    /**
+     * Check if the field holds a primitive value
+     * <p>Primitive fields can be written without boxing with the typed setters, e.g. {@link ColumnDefinition#setLongFieldValue(Object, long)}.
+     * Values are widened to the field's type like a primitive assignment, narrowing fails</p>
+     */
+    public boolean isPrimitive() {
+        return annotatedField.getType().isPrimitive();
+    }
+
+    /**
+     * Set an int, long, float or double field
+     */
+    public void setIntFieldValue(Object o, int value) {
+        try {
+            typedSetter.invoke(o, value);
+        } catch (Throwable e) {
+            accessError(e, "set", o);
+        }
+    }
+
+    /**
+     * Set a long, float or double field
+     */
+    public void setLongFieldValue(Object o, long value) {
+        try {
+            typedSetter.invoke(o, value);
+        } catch (Throwable e) {
+            accessError(e, "set", o);
+        }
+    }
+
+    /**
+     * Set a double field
+     */
+    public void setDoubleFieldValue(Object o, double value) {
+        try {
+            typedSetter.invoke(o, value);
+        } catch (Throwable e) {
+            accessError(e, "set", o);
+        }
+    }
+
+    /**
+     * Set a boolean field
+     */
+    public void setBooleanFieldValue(Object o, boolean value) {
+        try {
+            typedSetter.invoke(o, value);
+        } catch (Throwable e) {
+            accessError(e, "set", o);
+        }
+    }
+
+    private void accessError(Throwable e, String access, Object o) {
+        // Errors are too serious to log and carry on
+        if (e instanceof Error) throw (Error) e;
+
+        logger.exception((Exception) e,
+                String.format("Failed to %s field `%s` on type '%s'",
+                        access,
+                        annotatedField.getName(),
+                        o == null ? "null" : o.getClass().getSimpleName()));
+    }
+
     /**
      * Convert an object of this field's inherent type to this column's Sql type
      * using the Data Converters applied to this column
@@ -611,12 +1011,12 @@ public class ColumnDefinition {
     public Object convertJavaToSql(Object o) {
         if (o == null) return null;
 
-        Object convert = applyConverterChain(o, converters);
+        Object convert = applyConverterChain(o, javaToSqlConverters, true);
 
         if (convert == null) return null;
 
-        if (convert.getClass().isEnum()) {
-            Enum<?> enumValue = (Enum<?>) o;
+        if (convert instanceof Enum) {
+            Enum<?> enumValue = (Enum<?>) convert;
 
             switch (getEnumStorageMode()) {
                 case ORDINAL:
@@ -641,26 +1041,22 @@ public class ColumnDefinition {
      * else the object after being passed through the converter chain
      */
     public Object convertSqlToJava(Object o) {
-        if (converters.isEmpty() || o == null) return o;
-
-        // The Java -> Sql converters, reversed
-        List<AttributeConverter<?, ?>> sqlConverters = new ArrayList<>(converters);
-        Collections.reverse(sqlConverters);
+        if (o == null) return null;
 
         // Run it through the converter chain
-        Object result = applyConverterChain(o, sqlConverters);
+        Object result = applyConverterChain(o, sqlToJavaConverters, false);
 
         // If the converters returned nothing, return null and let the caller figure it out
         if (result == null) return null;
 
         // If it's not an enum no further conversion is necessary
-        if (!getFieldType().isEnum()) return result;
+        if (enumConstants == null) return result;
 
-        Object[] constants = getFieldType().getEnumConstants();
         switch (getEnumStorageMode()) {
             case ORDINAL:
                 try {
-                    return constants[Integer.parseInt(result.toString())];
+                    int ordinal = result instanceof Number ? ((Number) result).intValue() : Integer.parseInt(result.toString());
+                    return enumConstants[ordinal];
                 } catch (IndexOutOfBoundsException e) {
                     logger.error(
                             String.format("Enum '%s' does not contain ordinal %s",
@@ -677,34 +1073,17 @@ public class ColumnDefinition {
                 }
             case VALUE:
             default:
-                for (Object constant : constants) {
-                    try {
-                        Method nameMethod = constant.getClass().getMethod("name");
-                        String name = (String) nameMethod.invoke(constant);
-                        if (name.equals(result)) return constant;
-                    } catch (NoSuchMethodException e) {
-                        logger.error(
-                                String.format("Enum constant for '%s' does not provide a name() method",
-                                        constant.getClass().getTypeName())
-                        );
-                    } catch (IllegalAccessException | InvocationTargetException e) {
-                        logger.exception(e,
-                                String.format("Error getting name of Enum '%s'",
-                                        constant.getClass().getTypeName())
-                        );
-                    }
-                }
-                return null;
+                return enumConstantsByName.get(result);
         }
     }
 
     @SuppressWarnings({"unchecked", "rawtypes"}) // Generic types were checked when the converter list was built
-    private Object applyConverterChain(Object o, List<AttributeConverter<?, ?>> converters) {
+    private Object applyConverterChain(Object o, AttributeConverter<?, ?>[] converters, boolean toDatabase) {
         Object current = o;
 
         for (AttributeConverter converter : converters) {
             try {
-                current = converter.convertToDatabaseColumn(current);
+                current = toDatabase ? converter.convertToDatabaseColumn(current) : converter.convertToModelAttribute(current);
             } catch (Exception e) {
                 Type[] generics = AttributeConverter.getConversionTypes(converter.getClass());
 
@@ -0,0 +1,85 @@
+package net.mcmerdith.ormmicro.modeling;
+
+import net.mcmerdith.ormmicro.OrmMicroLogger;
+
+import java.util.List;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+/**
+ * Metadata of a model, generated at compile time by the OrmMicro annotation processor (the <code>OrmMicro-processor</code> artifact)
+ * <p>If a model has a generated class, its fields are found without scanning the class and are read and written
+ * through plain field accesses, and rows are mapped with a direct constructor call. Annotations are still read
+ * from the fields when the model is registered. Models without a generated class are reflected over at runtime</p>
+ * <p>The generated class is in the model's package, named after the model (see {@link GeneratedModel#classNameFor(Class)}),
+ * and must have a public no-argument constructor</p>
+ *
+ * @param <T> The model
+ */
+public interface GeneratedModel<T> {
+    /**
+     * Appended to the name of the model to name its generated class
+     */
+    String SUFFIX = "_OrmMicro";
+
+    /**
+     * Get the names of the model's fields that aren't {@link net.mcmerdith.ormmicro.annotations.Transient}, in declaration order
+     */
+    List<String> getFieldNames();
+
+    /**
+     * Get a call to the model's no-argument constructor
+     *
+     * @return The constructor, or null if the generated class can't call it (e.g. it is private)
+     */
+    Supplier<T> getConstructor();
+
+    /**
+     * Get a getter of a field
+     *
+     * @return The getter, or null if the generated class can't read the field (e.g. it is private)
+     */
+    Function<Object, Object> getGetter(String field);
+
+    /**
+     * Get a setter of a field
+     *
+     * @return The setter, or null if the generated class can't write the field (e.g. it is private or final)
+     */
+    BiConsumer<Object, Object> getSetter(String field);
+
+    /**
+     * Get the name of the class generated for a model
+     * <p>The binary name of the model with nested class separators replaced by underscores, followed by {@link GeneratedModel#SUFFIX}.
+     * e.g. <code>com.example.Outer$Player</code> is generated as <code>com.example.Outer_Player_OrmMicro</code></p>
+     */
+    static String classNameFor(Class<?> model) {
+        String packageName = model.getPackageName();
+        String simpleName = model.getName().substring(packageName.isEmpty() ? 0 : packageName.length() + 1);
+
+        return (packageName.isEmpty() ? "" : packageName + ".") + simpleName.replace('$', '_') + SUFFIX;
+    }
+
+    /**
+     * Load the metadata generated for a model
+     *
+     * @return The metadata, or null if none was generated
+     */
+    @SuppressWarnings("unchecked")
+    static <T> GeneratedModel<T> load(Class<T> model) {
+        Class<?> generated;
+        try {
+            generated = Class.forName(classNameFor(model), true, model.getClassLoader());
+        } catch (ClassNotFoundException e) {
+            return null;
+        }
+
+        try {
+            return (GeneratedModel<T>) generated.getDeclaredConstructor().newInstance();
+        } catch (ReflectiveOperationException | ClassCastException e) {
+            OrmMicroLogger.MODEL_MAPPER.exception(e, "Failed to load generated metadata '" + generated.getName() + "', reflecting instead");
+            return null;
+        }
+    }
+}
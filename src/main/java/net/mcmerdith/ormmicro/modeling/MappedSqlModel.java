@@ -3,7 +3,10 @@ package net.mcmerdith.ormmicro.modeling;
 import net.mcmerdith.ormmicro.OrmMicroLogger;
 import net.mcmerdith.ormmicro.internal.SessionFactory;
 import net.mcmerdith.ormmicro.exceptions.SqlConstraintViolation;
+import net.mcmerdith.ormmicro.util.SqlUtil;
 
+import java.sql.ResultSet;
+import java.sql.SQLException;
 import java.util.*;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
@@ -13,12 +16,23 @@ public class MappedSqlModel<T> {
     private final T object;
     private final Map<String, Object> columns = new LinkedHashMap<>();
 
+    /**
+     * The values of the model's own table, built on first use
+     */
+    private Map<ColumnDefinition, Object> columnValues = null;
+
     public MappedSqlModel(SessionFactory session, SqlModel<T> model, T object) {
         this.model = model;
         this.object = object;
 
         model.getColumnDefinitions().forEach((field, column) -> {
             try {
+                if (!column.isArray() && !column.isCollection() && !column.isForeignKey()) {
+                    // Single values don't need the list below
+                    columns.put(field, mapValue(field, column));
+                    return;
+                }
+
                 // Move any values from this column into a list for processing
                 List<Object> values = new ArrayList<>();
 
@@ -53,19 +67,10 @@ public class MappedSqlModel<T> {
                     }
                 } else {
                     // Non-foreign keys must be converted first
-                    nonNullValues = valueStream.map(v -> {
-                        Object converted = column.convertJavaToSql(v);
-                        if (converted == null) {
-                            OrmMicroLogger.MODEL_MAPPER.error("Conversion error on field " + field);
-                            return null;
-                        }
-                        return converted;
-                    }).filter(Objects::nonNull).collect(Collectors.toList());
+                    nonNullValues = valueStream.map(v -> convert(field, column, v)).filter(Objects::nonNull).collect(Collectors.toList());
                 }
 
-                // If NOT NULl and value there are no non-null values, the NOT NULL constraint has been violated
-                if (!column.isNullable() && nonNullValues.isEmpty())
-                    throw new SqlConstraintViolation("Column `%s` was declared NOT NULL and `null` was provided");
+                checkNullable(field, column, !nonNullValues.isEmpty());
 
                 if (column.isArray() || column.isCollection()) {
                     // Arrays and collections are stored in an associated table
@@ -97,6 +102,40 @@ public class MappedSqlModel<T> {
         });
     }
 
+    /**
+     * Read and convert the value of a column holding a single value
+     */
+    private Object mapValue(String field, ColumnDefinition column) {
+        Object value = convert(field, column, column.getFieldValue(object));
+        checkNullable(field, column, value != null);
+        return value;
+    }
+
+    /**
+     * Convert a value to the type stored in the database
+     *
+     * @return The converted value, or null if the value was null or couldn't be converted
+     */
+    private static Object convert(String field, ColumnDefinition column, Object value) {
+        if (value == null) return null;
+
+        Object converted = column.convertJavaToSql(value);
+        if (converted == null) OrmMicroLogger.MODEL_MAPPER.error("Conversion error on field " + field);
+
+        return converted;
+    }
+
+    /**
+     * Enforce a NOT NULL constraint
+     *
+     * @param hasValue If the column has a non-null value after conversion
+     * @throws SqlConstraintViolation If the column is NOT NULL and has no value
+     */
+    private static void checkNullable(String field, ColumnDefinition column, boolean hasValue) {
+        if (!column.isNullable() && !hasValue)
+            throw new SqlConstraintViolation(String.format("Column `%s` was declared NOT NULL and `null` was provided", field));
+    }
+
     /**
      * Get a map of column values, mapped by their field name on the model
      * <p>Returned object may be an {@link ElementCollectionTable}, containing the columns values</p>
@@ -108,6 +147,70 @@ public class MappedSqlModel<T> {
         return new LinkedHashMap<>(columns);
     }
 
+    /**
+     * Get the values stored in this model's own table, mapped by their column definition
+     * <p>{@link ElementCollectionTable}s are excluded and {@link ForeignObject}s are resolved to their reference value</p>
+     *
+     * @return An unmodifiable map of column -> value, in column order
+     */
+    public Map<ColumnDefinition, Object> getColumnValues() {
+        // The mapped values don't change, so every statement built for the model can share them
+        if (columnValues != null) return columnValues;
+
+        Map<ColumnDefinition, Object> values = new LinkedHashMap<>();
+
+        columns.forEach((field, value) -> {
+            if (value instanceof ElementCollectionTable) return;
+            if (value instanceof ForeignObject) value = ((ForeignObject<?>) value).getReferenceValue();
+
+            values.put(model.getColumnDefinition(field), value);
+        });
+
+        columnValues = Collections.unmodifiableMap(values);
+        return columnValues;
+    }
+
+    /**
+     * Check if the object has a value for its unique identifier, and so is equal only to objects of the same row
+     *
+     * @return false if the model has no identifier or the object's identifier is unassigned
+     * @see ColumnDefinition#isUnassigned(Object)
+     */
+    public boolean hasAssignedId() {
+        ColumnDefinition id = model.getUniqueIdentifier();
+        return id != null && !id.isUnassigned(id.getFieldValue(object));
+    }
+
+    /**
+     * Check if the database generates the unique identifier when the model is inserted
+     *
+     * @return true if the identifier is auto-incremented and was unassigned when the model was mapped
+     * @see ColumnDefinition#isUnassigned(Object)
+     */
+    public boolean needsGeneratedId() {
+        ColumnDefinition id = model.getUniqueIdentifier();
+        return id != null && id.isAutoIncrement() && id.isUnassigned(getColumnValues().get(id));
+    }
+
+    /**
+     * Read the identifier generated by an insert into the object, and into the mapped values
+     *
+     * @param generatedKeys The generated keys of the insert, positioned before the first row
+     */
+    public void readGeneratedId(ResultSet generatedKeys) throws SQLException {
+        if (generatedKeys == null || !generatedKeys.next()) return;
+
+        ColumnDefinition id = model.getUniqueIdentifier();
+        Object value = id.convertSqlToJava(SqlUtil.getObject(generatedKeys, 1, id.getStorageType()));
+        if (value == null) return;
+
+        id.setFieldValue(object, value);
+
+        // Statements built from now on use the generated identifier
+        columns.put(id.getField().getName(), value);
+        columnValues = null;
+    }
+
     public SqlModel<T> getModel() {
         return model;
     }
@@ -121,7 +224,7 @@ public class MappedSqlModel<T> {
         ColumnDefinition id = model.getUniqueIdentifier();
         if (id != null) {
             Object idValue = id.getFieldValue(object);
-            if (idValue != null) return Objects.hash(model.getTableName(), id.getName(), idValue);
+            if (!id.isUnassigned(idValue)) return Objects.hash(model.getTableName(), id.getName(), idValue);
         }
 
         return super.hashCode();
@@ -163,7 +266,8 @@ public class MappedSqlModel<T> {
             Object otherIdValue = otherId.getFieldValue(otherModel.object);
 
             // Models are equal if both have the same ID value
-            return idValue.equals(otherIdValue);
+            // Models without an ID value have not been stored yet, so they can't be equal
+            return !id.isUnassigned(idValue) && idValue.equals(otherIdValue);
         }
     }
 }
@@ -0,0 +1,216 @@
+package net.mcmerdith.ormmicro.modeling;
+
+import net.mcmerdith.ormmicro.OrmMicroLogger;
+import net.mcmerdith.ormmicro.util.SqlUtil;
+
+import java.lang.invoke.CallSite;
+import java.lang.invoke.LambdaMetafactory;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Constructor;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.BiFunction;
+import java.util.function.Supplier;
+
+/**
+ * Maps result set rows to objects of a model
+ * <p>Everything that doesn't depend on the result set is decided once, when the mapper is built: the constructor,
+ * and for each column the typed getter it is read with and how its value reaches the field. Columns are looked up
+ * by name once per result set and read by index. Primitive fields without converters are read and assigned
+ * without boxing</p>
+ * <p>Array and collection columns are skipped with a warning, their elements live in an
+ * {@link ElementCollectionTable} that isn't read yet</p>
+ *
+ * @see net.mcmerdith.ormmicro.internal.ModelManager#getRowMapper(Class)
+ */
+public class RowMapper<T> {
+    /**
+     * Reads one column of the current row into an object
+     */
+    @FunctionalInterface
+    private interface ColumnReader {
+        void read(ResultSet rs, int index, Object target, BiFunction<ColumnDefinition, Object, Object> foreignLoader) throws SQLException;
+    }
+
+    private final Class<T> modelClass;
+    private final Supplier<T> constructor;
+
+    /**
+     * The columns of the model, in definition order
+     */
+    private final ColumnDefinition[] columns;
+
+    /**
+     * The reader of each column
+     */
+    private final ColumnReader[] readers;
+
+    public RowMapper(SqlModel<T> model, Class<T> modelClass) {
+        this.modelClass = modelClass;
+        Supplier<T> generated = model.getGenerated() == null ? null : model.getGenerated().getConstructor();
+        this.constructor = generated == null ? createConstructor(modelClass) : generated;
+
+        List<ColumnDefinition> columns = new ArrayList<>();
+        List<ColumnReader> readers = new ArrayList<>();
+
+        for (ColumnDefinition column : model.getColumnDefinitions().values()) {
+            // TODO load the elements from the associated table
+            if (column.isArray() || column.isCollection()) {
+                OrmMicroLogger.MODEL_MAPPER.error(String.format(
+                        "Column `%s` of model '%s' won't be read, its elements are stored in table `%s` which isn't supported yet",
+                        column.getName(), modelClass.getSimpleName(), column.getCollectionTable().name
+                ));
+                continue;
+            }
+
+            columns.add(column);
+            readers.add(createReader(column));
+        }
+
+        this.columns = columns.toArray(new ColumnDefinition[0]);
+        this.readers = readers.toArray(new ColumnReader[0]);
+    }
+
+    /**
+     * Map every remaining row of a result set
+     *
+     * @param rs            The result set
+     * @param foreignLoader Loads the object referenced by a foreign key column's value
+     * @return An object for each row
+     */
+    public List<T> map(ResultSet rs, BiFunction<ColumnDefinition, Object, Object> foreignLoader) throws SQLException {
+        List<T> results = new ArrayList<>();
+
+        int[] indexes = null;
+
+        while (rs.next()) {
+            // Resolve the column names once, not on every row. Some drivers close empty result sets, so wait for a row
+            if (indexes == null) {
+                indexes = new int[columns.length];
+                for (int i = 0; i < columns.length; i++) {
+                    indexes[i] = rs.findColumn(columns[i].getName());
+                }
+            }
+
+            T next = newInstance();
+
+            for (int i = 0; i < readers.length; i++) {
+                readers[i].read(rs, indexes[i], next, foreignLoader);
+            }
+
+            results.add(next);
+        }
+
+        return results;
+    }
+
+    private T newInstance() {
+        try {
+            return constructor.get();
+        } catch (RuntimeException e) {
+            throw OrmMicroLogger.MODEL_MAPPER.exception(e, "Failed to instantiate model '" + modelClass.getSimpleName() + "'", true);
+        }
+    }
+
+    /**
+     * Build a constructor call for the model's no-argument constructor
+     * <p>A lambda is spun for the constructor so it is called directly, falling back to invoking a method handle
+     * if the lambda can't be created</p>
+     */
+    @SuppressWarnings("unchecked")
+    private static <T> Supplier<T> createConstructor(Class<T> modelClass) {
+        MethodHandle handle;
+        try {
+            Constructor<T> constructor = modelClass.getDeclaredConstructor();
+            constructor.setAccessible(true);
+            handle = MethodHandles.lookup().unreflectConstructor(constructor);
+        } catch (NoSuchMethodException | IllegalAccessException e) {
+            throw OrmMicroLogger.MODEL_MAPPER.exception(e, "Model '" + modelClass.getSimpleName() + "' does not declare a no-argument constructor", true);
+        }
+
+        try {
+            MethodHandles.Lookup lookup = MethodHandles.privateLookupIn(modelClass, MethodHandles.lookup());
+            CallSite site = LambdaMetafactory.metafactory(
+                    lookup,
+                    "get",
+                    MethodType.methodType(Supplier.class),
+                    MethodType.methodType(Object.class),
+                    handle,
+                    MethodType.methodType(modelClass)
+            );
+
+            return (Supplier<T>) site.getTarget().invokeExact();
+        } catch (Throwable e) {
+            OrmMicroLogger.MODEL_MAPPER.debug("Constructing '" + modelClass.getSimpleName() + "' through a method handle: " + e);
+        }
+
+        MethodHandle generic = handle.asType(MethodType.methodType(Object.class));
+        return () -> {
+            try {
+                return (T) generic.invokeExact();
+            } catch (RuntimeException | Error e) {
+                throw e;
+            } catch (Throwable e) {
+                throw new RuntimeException(e);
+            }
+        };
+    }
+
+    private static ColumnReader createReader(ColumnDefinition column) {
+        if (column.getForeignReferencedColumnDefinition() != null) {
+            Class<?> type = column.getStorageType();
+
+            return (rs, index, target, foreignLoader) -> {
+                Object value = foreignLoader.apply(column, SqlUtil.getObject(rs, index, type));
+
+                if (value != null || !column.isPrimitive()) column.setFieldValue(target, value);
+            };
+        }
+
+        if (column.needsConversion() || column.getFieldType().isEnum()) {
+            Class<?> type = column.getStorageType();
+
+            return (rs, index, target, foreignLoader) -> {
+                Object value = column.convertSqlToJava(SqlUtil.getObject(rs, index, type));
+
+                // Primitive fields can't hold null, leave them at their default
+                if (value != null || !column.isPrimitive()) column.setFieldValue(target, value);
+            };
+        }
+
+        // NULL leaves primitive fields at their default
+        Class<?> fieldType = column.getField().getType();
+        if (fieldType == int.class) {
+            return (rs, index, target, foreignLoader) -> {
+                int value = rs.getInt(index);
+                if (!rs.wasNull()) column.setIntFieldValue(target, value);
+            };
+        } else if (fieldType == long.class) {
+            return (rs, index, target, foreignLoader) -> {
+                long value = rs.getLong(index);
+                if (!rs.wasNull()) column.setLongFieldValue(target, value);
+            };
+        } else if (fieldType == double.class) {
+            return (rs, index, target, foreignLoader) -> {
+                double value = rs.getDouble(index);
+                if (!rs.wasNull()) column.setDoubleFieldValue(target, value);
+            };
+        } else if (fieldType == boolean.class) {
+            return (rs, index, target, foreignLoader) -> {
+                boolean value = rs.getBoolean(index);
+                if (!rs.wasNull()) column.setBooleanFieldValue(target, value);
+            };
+        }
+
+        Class<?> type = column.getStorageType();
+        return (rs, index, target, foreignLoader) -> {
+            Object value = SqlUtil.getObject(rs, index, type);
+
+            if (value != null || !column.isPrimitive()) column.setFieldValue(target, value);
+        };
+    }
+}
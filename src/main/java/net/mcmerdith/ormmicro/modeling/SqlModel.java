@@ -2,13 +2,25 @@ package net.mcmerdith.ormmicro.modeling;
 
 import net.mcmerdith.ormmicro.OrmMicroLogger;
 import net.mcmerdith.ormmicro.annotations.Model;
+import net.mcmerdith.ormmicro.annotations.ShardKey;
+import net.mcmerdith.ormmicro.internal.NamingStrategy;
 import net.mcmerdith.ormmicro.internal.SessionFactory;
 import net.mcmerdith.ormmicro.util.StringUtils;
 
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
 import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Comparator;
+import java.util.HashMap;
 import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 public class SqlModel<T> {
     private final SessionFactory session;
@@ -19,12 +31,73 @@ public class SqlModel<T> {
 
     /**
      * The SQL definitions for the columns
-     * Mapped as: columnName -> columnDefinition
+     * Mapped as: fieldName -> columnDefinition
+     * <p>Unmodifiable once the model is built</p>
      */
-    private final Map<String, ColumnDefinition> columnDefinitions = new LinkedHashMap<>();
+    private Map<String, ColumnDefinition> columnDefinitions = new LinkedHashMap<>();
+
+    /**
+     * The columns in definition order, each column's {@link ColumnDefinition#getIndex()} is its index.
+     * Null until the model is built
+     */
+    private ColumnDefinition[] columns = null;
+
+    /**
+     * The column that uniquely identifies the model, null if it has none
+     */
+    private ColumnDefinition uniqueIdentifier = null;
+
+    /**
+     * The column annotated with {@link ShardKey}, null if the model isn't sharded
+     */
+    private ColumnDefinition shardKey = null;
+
+    /**
+     * The table and column names after the naming strategy
+     */
+    private static final class Names {
+        private final NamingStrategy strategy;
+        private final String tableName;
+        private final String[] columnNames;
+
+        /**
+         * Mapped as: columnName -> index
+         */
+        private final Map<String, Integer> columnIndexes;
+
+        private Names(NamingStrategy strategy, SqlModel<?> model) {
+            this.strategy = strategy;
+            this.tableName = model.getTableName(false);
+            this.columnNames = new String[model.columns.length];
+            this.columnIndexes = new HashMap<>();
+
+            for (int i = 0; i < columnNames.length; i++) {
+                columnNames[i] = model.columns[i].getName(false);
+                columnIndexes.put(columnNames[i], i);
+            }
+        }
+    }
+
+    /**
+     * Built on first use, and again if the naming strategy is replaced
+     */
+    private volatile Names names = null;
+
+    /**
+     * The metadata generated at compile time, null if the model is reflected over
+     */
+    private final GeneratedModel<T> generated;
 
     public SqlModel(SessionFactory session, Class<T> modelClass) {
+        this(session, modelClass, null);
+    }
+
+    /**
+     * @param generated The model's metadata generated at compile time, or null to reflect over the model
+     */
+    public SqlModel(SessionFactory session, Class<T> modelClass, GeneratedModel<T> generated) {
         this.session = session;
+        this.generated = generated;
 
         // Check for a @Model annotation. Not required, but does change the table name
         Model modelMeta = modelClass.getDeclaredAnnotation(Model.class);
@@ -41,9 +114,14 @@ public class SqlModel<T> {
 
         Map<String, ColumnDefinition> tempColumns = new LinkedHashMap<>();
 
-        for (Field field : modelClass.getDeclaredFields()) {
+        for (Field field : getFields(modelClass)) {
             ColumnDefinition tempColumn = processAnnotatedField(field);
-            if (tempColumn != null) tempColumns.put(field.getName(), tempColumn);
+            if (tempColumn == null) continue;
+
+            if (generated != null) {
+                tempColumn.useGeneratedAccessors(generated.getGetter(field.getName()), generated.getSetter(field.getName()));
+            }
+            tempColumns.put(field.getName(), tempColumn);
         }
 
         // Sort the columns, putting primary and unique keys first
@@ -66,6 +144,155 @@ public class SqlModel<T> {
         if (columnDefinitions.values().stream().filter(ColumnDefinition::isPrimary).count() > 1) {
             throw OrmMicroLogger.MODEL_MAPPER.exception(null, "Model " + tableName + " has more than 1 primary key!", true);
         }
+
+        for (ColumnDefinition column : columnDefinitions.values()) {
+            if (!column.getField().isAnnotationPresent(ShardKey.class)) continue;
+
+            if (shardKey != null) {
+                throw OrmMicroLogger.MODEL_MAPPER.exception(null, "Model " + tableName + " has more than 1 shard key!", true);
+            }
+            if (column.isArray() || column.isCollection() || !hasValueEquality(column.getStorageType())) {
+                throw OrmMicroLogger.MODEL_MAPPER.exception(null, String.format(
+                        "Model %s can't be sharded by column `%s`, equal values of type '%s' don't route to the same shard",
+                        tableName, column.getName(), column.getStorageType().getSimpleName()
+                ), true);
+            }
+            shardKey = column;
+        }
+
+        freeze();
+    }
+
+    /**
+     * Restore a model from metadata written by {@link SqlModel#writeMetadata(DataOutput)}, without reading the class' annotations
+     *
+     * @param generated The model's metadata generated at compile time, or null to reflect over the model
+     * @throws IOException If the metadata can't be read or no longer matches the class
+     */
+    public SqlModel(SessionFactory session, Class<T> modelClass, GeneratedModel<T> generated, DataInput metadata) throws IOException {
+        this.session = session;
+        this.generated = generated;
+
+        tableName = metadata.readUTF();
+
+        // Columns were written in their sorted order
+        int columnCount = metadata.readInt();
+        for (int i = 0; i < columnCount; i++) {
+            String fieldName = metadata.readUTF();
+
+            Field field;
+            try {
+                field = modelClass.getDeclaredField(fieldName);
+            } catch (NoSuchFieldException e) {
+                throw new IOException("Field " + fieldName + " no longer exists", e);
+            }
+
+            ColumnDefinition column = new ColumnDefinition(session, this, field, metadata);
+
+            if (generated != null) {
+                column.useGeneratedAccessors(generated.getGetter(fieldName), generated.getSetter(fieldName));
+            }
+            columnDefinitions.put(fieldName, column);
+        }
+
+        if (metadata.readBoolean()) {
+            String shardKeyField = metadata.readUTF();
+            shardKey = columnDefinitions.get(shardKeyField);
+            if (shardKey == null) throw new IOException("Shard key " + shardKeyField + " is not a column");
+        }
+
+        freeze();
+    }
+
+    /**
+     * Check if equal values of a type are equal objects with equal hash codes, so they can be used as a shard key
+     */
+    private static boolean hasValueEquality(Class<?> type) {
+        if (type.isArray() || type.isInterface()) return false;
+
+        try {
+            return type.getMethod("equals", Object.class).getDeclaringClass() != Object.class;
+        } catch (NoSuchMethodException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Fix the columns and index them, nothing about them changes after this
+     */
+    private void freeze() {
+        columnDefinitions = Collections.unmodifiableMap(columnDefinitions);
+
+        columns = columnDefinitions.values().toArray(new ColumnDefinition[0]);
+        for (int i = 0; i < columns.length; i++) {
+            columns[i].setIndex(i);
+        }
+
+        for (ColumnDefinition column : columns) {
+            if (column.isPrimary()) {
+                uniqueIdentifier = column;
+                break;
+            }
+            if (column.isUnique() && uniqueIdentifier == null) uniqueIdentifier = column;
+        }
+    }
+
+    private Names names() {
+        NamingStrategy strategy = session.getNameManager().getStrategy();
+
+        Names current = names;
+        if (current == null || current.strategy != strategy) names = current = new Names(strategy, this);
+        return current;
+    }
+
+    /**
+     * Write everything read from the class' annotations, to restore the model without reflecting over it again
+     *
+     * @see SqlModel#SqlModel(SessionFactory, Class, GeneratedModel, DataInput)
+     */
+    public void writeMetadata(DataOutput out) throws IOException {
+        out.writeUTF(tableName);
+
+        out.writeInt(columnDefinitions.size());
+        for (Map.Entry<String, ColumnDefinition> entry : columnDefinitions.entrySet()) {
+            out.writeUTF(entry.getKey());
+            entry.getValue().writeMetadata(out);
+        }
+
+        out.writeBoolean(shardKey != null);
+        if (shardKey != null) out.writeUTF(shardKey.getField().getName());
+    }
+
+    /**
+     * Get the classes besides the model whose changes would change its metadata
+     */
+    public List<Class<?>> getMetadataDependencies() {
+        Set<Class<?>> dependencies = new LinkedHashSet<>();
+        for (ColumnDefinition column : columnDefinitions.values()) {
+            dependencies.addAll(column.getMetadataDependencies());
+        }
+        return new ArrayList<>(dependencies);
+    }
+
+    /**
+     * Get the fields that may be columns, listed by the generated metadata if there is any
+     */
+    private Field[] getFields(Class<T> modelClass) {
+        if (generated == null) return modelClass.getDeclaredFields();
+
+        List<String> names = generated.getFieldNames();
+        Field[] fields = new Field[names.size()];
+
+        try {
+            for (int i = 0; i < fields.length; i++) {
+                fields[i] = modelClass.getDeclaredField(names.get(i));
+            }
+        } catch (NoSuchFieldException e) {
+            OrmMicroLogger.MODEL_MAPPER.error("Generated metadata of '" + modelClass.getSimpleName() + "' is out of date (" + e.getMessage() + " is missing), reflecting instead");
+            return modelClass.getDeclaredFields();
+        }
+
+        return fields;
     }
 
     /*
@@ -78,6 +305,9 @@ public class SqlModel<T> {
      * @param annotated The annotated field
      */
     private ColumnDefinition processAnnotatedField(Field annotated) {
+        // Static fields belong to the class, not to a row
+        if (Modifier.isStatic(annotated.getModifiers())) return null;
+
         ColumnDefinition column = new ColumnDefinition(session, this, annotated);
 
         // Don't track transient columns
@@ -87,7 +317,8 @@ public class SqlModel<T> {
     }
 
     public String getTableName() {
-        return getTableName(false);
+        // Names can't be indexed before the columns are
+        return columns == null ? getTableName(false) : names().tableName;
     }
 
     protected String getTableName(boolean raw) {
@@ -100,19 +331,68 @@ public class SqlModel<T> {
      * @return The Primary Key (if present) or the most suitable Unique Key, else null
      */
     public ColumnDefinition getUniqueIdentifier() {
-        return columnDefinitions.values().stream().filter(ColumnDefinition::isPrimary).findFirst().orElseGet(
-                () -> columnDefinitions.values().stream().filter(ColumnDefinition::isUnique).findFirst().orElse(null)
-        );
+        return uniqueIdentifier;
     }
 
+    /**
+     * Get the column that decides which shard stores the model
+     *
+     * @return The column annotated with {@link ShardKey}, or null if the model isn't sharded
+     */
+    public ColumnDefinition getShardKey() {
+        return shardKey;
+    }
+
+    /**
+     * Get the metadata generated for the model at compile time
+     *
+     * @return The metadata, or null if the model is reflected over
+     */
+    public GeneratedModel<T> getGenerated() {
+        return generated;
+    }
+
+    /**
+     * Get the columns, mapped as: fieldName -> columnDefinition
+     *
+     * @return An unmodifiable view of the columns, in definition order
+     */
     public Map<String, ColumnDefinition> getColumnDefinitions() {
-        return new LinkedHashMap<>(columnDefinitions);
+        return columnDefinitions;
     }
 
     public ColumnDefinition getColumnDefinition(String fieldName) {
         return columnDefinitions.get(fieldName);
     }
 
+    public int getColumnCount() {
+        return columns.length;
+    }
+
+    /**
+     * Get a column by its index, see {@link ColumnDefinition#getIndex()}
+     */
+    public ColumnDefinition getColumn(int index) {
+        return columns[index];
+    }
+
+    /**
+     * Get the name of a column, see {@link ColumnDefinition#getName()}
+     */
+    public String getColumnName(int index) {
+        return names().columnNames[index];
+    }
+
+    /**
+     * Get a column by its name (after the naming strategy)
+     *
+     * @return The column, or null if the model doesn't have the column
+     */
+    public ColumnDefinition getColumnByName(String columnName) {
+        Integer index = names().columnIndexes.get(columnName);
+        return index == null ? null : columns[index];
+    }
+
     /*
     Data Management
      */
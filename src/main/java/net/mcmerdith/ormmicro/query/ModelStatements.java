@@ -0,0 +1,114 @@
+package net.mcmerdith.ormmicro.query;
+
+import net.mcmerdith.ormmicro.modeling.ColumnDefinition;
+import net.mcmerdith.ormmicro.modeling.MappedSqlModel;
+import net.mcmerdith.ormmicro.query.comparison.ComparisonLogic;
+import net.mcmerdith.ormmicro.query.comparison.ParameterizedComparison;
+import net.mcmerdith.ormmicro.query.comparison.SqlComparisonBuilder;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Build the statements used to persist a {@link MappedSqlModel}
+ * <p>Only the model's own table is written, {@link net.mcmerdith.ormmicro.modeling.ElementCollectionTable}s are not included</p>
+ */
+public class ModelStatements {
+    private ModelStatements() {
+        // Don't instantiate this class
+    }
+
+    /**
+     * Format: Table, Columns, Values
+     */
+    private static final String insertFormat = "INSERT INTO %s (%s) VALUES (%s)";
+
+    /**
+     * Format: Table, Assignments, Where
+     */
+    private static final String updateFormat = "UPDATE %s SET %s WHERE %s";
+
+    /**
+     * Format: Table, Where
+     */
+    private static final String deleteFormat = "DELETE FROM %s WHERE %s";
+
+    /**
+     * Insert a new row for the model
+     * <p>Auto-increment columns without a value are left for the database to fill</p>
+     */
+    public static ParameterizedStatement insert(MappedSqlModel<?> model) {
+        List<String> columns = new ArrayList<>();
+        List<Object> parameters = new ArrayList<>();
+
+        for (Map.Entry<ColumnDefinition, Object> value : model.getColumnValues().entrySet()) {
+            ColumnDefinition column = value.getKey();
+            if (column.isAutoIncrement() && column.isUnassigned(value.getValue())) continue;
+
+            columns.add(column.getName());
+            parameters.add(value.getValue());
+        }
+
+        return new ParameterizedStatement(
+                String.format(insertFormat,
+                        model.getModel().getTableName(),
+                        String.join(", ", columns),
+                        String.join(", ", Collections.nCopies(columns.size(), "?"))),
+                parameters
+        );
+    }
+
+    /**
+     * Update the existing row for the model, matched by its unique identifier
+     *
+     * @return The statement, or null if the model does not have an identifier to match on
+     */
+    public static ParameterizedStatement update(MappedSqlModel<?> model) {
+        ColumnDefinition id = model.getModel().getUniqueIdentifier();
+        if (id == null) return null;
+
+        Map<ColumnDefinition, Object> values = model.getColumnValues();
+        if (id.isUnassigned(values.get(id))) return null;
+
+        List<String> assignments = new ArrayList<>();
+        List<Object> parameters = new ArrayList<>();
+
+        for (Map.Entry<ColumnDefinition, Object> value : values.entrySet()) {
+            if (value.getKey() == id) continue;
+
+            assignments.add(value.getKey().getName() + " = ?");
+            parameters.add(value.getValue());
+        }
+
+        // Nothing to update besides the ID, keep the statement valid
+        if (assignments.isEmpty()) {
+            assignments.add(id.getName() + " = ?");
+            parameters.add(values.get(id));
+        }
+
+        parameters.add(values.get(id));
+
+        return new ParameterizedStatement(
+                String.format(updateFormat,
+                        model.getModel().getTableName(),
+                        String.join(", ", assignments),
+                        id.getName() + " = ?"),
+                parameters
+        );
+    }
+
+    /**
+     * Delete the row(s) matching the model
+     * <p>Matched by the unique identifier if present, else by every column</p>
+     */
+    public static ParameterizedStatement delete(MappedSqlModel<?> model) {
+        ParameterizedComparison where = new SqlComparisonBuilder(ComparisonLogic.AND).whereMatches(model).build();
+
+        return new ParameterizedStatement(
+                String.format(deleteFormat, model.getModel().getTableName(), where.getComparison()),
+                where.getParameters()
+        );
+    }
+}
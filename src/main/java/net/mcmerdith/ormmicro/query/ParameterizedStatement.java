@@ -0,0 +1,22 @@
+package net.mcmerdith.ormmicro.query;
+
+import java.util.ArrayList;
+import java.util.List;
+
+public class ParameterizedStatement {
+    private final String statement;
+    private final List<Object> parameters = new ArrayList<>();
+
+    public ParameterizedStatement(String statement, List<Object> parameters) {
+        this.statement = statement;
+        this.parameters.addAll(parameters);
+    }
+
+    public String getStatement() {
+        return this.statement;
+    }
+
+    public List<Object> getParameters() {
+        return this.parameters;
+    }
+}
@@ -2,6 +2,7 @@ package net.mcmerdith.ormmicro.query;
 
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.List;
 
 public class QueryResult<T> {
@@ -13,4 +14,34 @@ public class QueryResult<T> {
         this.results.addAll(results);
     }
 
+    public Class<T> getModelClass() {
+        return modelClass;
+    }
+
+    /**
+     * Get the objects returned by the query
+     *
+     * @return An unmodifiable view of the results, in the order they were returned by the database
+     */
+    public List<T> getResults() {
+        return Collections.unmodifiableList(results);
+    }
+
+    /**
+     * Get the first result
+     *
+     * @return The first result, or null if the query did not return anything
+     */
+    public T getFirst() {
+        return results.isEmpty() ? null : results.get(0);
+    }
+
+    public int size() {
+        return results.size();
+    }
+
+    public boolean isEmpty() {
+        return results.isEmpty();
+    }
+
 }
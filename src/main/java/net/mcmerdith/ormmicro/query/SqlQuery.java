@@ -2,22 +2,22 @@ package net.mcmerdith.ormmicro.query;
 
 import net.mcmerdith.ormmicro.OrmMicroLogger;
 import net.mcmerdith.ormmicro.internal.Session;
+import net.mcmerdith.ormmicro.internal.SessionFactory;
+import net.mcmerdith.ormmicro.internal.TaskPriority;
 import net.mcmerdith.ormmicro.modeling.ColumnDefinition;
-import net.mcmerdith.ormmicro.modeling.ElementCollectionTable;
 import net.mcmerdith.ormmicro.modeling.SqlModel;
 import net.mcmerdith.ormmicro.query.comparison.ComparisonLogic;
-import net.mcmerdith.ormmicro.query.comparison.ComparisonOperator;
 import net.mcmerdith.ormmicro.query.comparison.ParameterizedComparison;
 import net.mcmerdith.ormmicro.query.comparison.SqlComparisonBuilder;
 import net.mcmerdith.ormmicro.util.SqlUtil;
 
-import java.lang.reflect.Constructor;
-import java.lang.reflect.InvocationTargetException;
-import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
 import java.util.function.Consumer;
+import java.util.function.Supplier;
 import java.util.stream.Collectors;
 
 public class SqlQuery {
@@ -37,6 +37,8 @@ public class SqlQuery {
     private boolean average = false;
     private boolean sum = false;
 
+    private TaskPriority priority = TaskPriority.NORMAL;
+
     /**
      * Construct a SQL query
      * <p>Base Query: `SELECT * FROM [modelClassTable]`</p>
@@ -117,6 +119,16 @@ public class SqlQuery {
         return this;
     }
 
+    /**
+     * Set how urgently async executions of this query should run
+     *
+     * @param priority The priority on the database worker
+     */
+    public SqlQuery priority(TaskPriority priority) {
+        this.priority = priority;
+        return this;
+    }
+
     /**
      * Format: Columns, Table, Where, Order, (Limit)
      */
@@ -127,16 +139,150 @@ public class SqlQuery {
      */
     private static final String functionFormat = "%s(%s)";
 
-    private String buildSql(SqlModel<?> model) {
-        return buildSql(
+    /**
+     * Identifies the SQL a query renders to, everything except the parameter values
+     * <p>A shape read from a query shares its lists, so looking one up doesn't copy anything.
+     * Only the shapes stored in the cache are copied, see {@link QueryShape#freeze()}</p>
+     */
+    private static final class QueryShape {
+        /**
+         * The model, or the name of the table
+         */
+        private final Object source;
+        private final List<String> columns;
+        private final String where;
+        private final Map<String, ColumnOrder> orderBy;
+        private final int limit;
+        private final int function;
+        private final int hash;
+
+        /**
+         * The shape of a query, valid until the query is changed
+         */
+        private QueryShape(SqlQuery query, Object source) {
+            this.source = source;
+            this.columns = query.columns;
+            this.where = query.where == null ? null : query.where.getComparison();
+            this.orderBy = query.orderBy;
+            this.limit = query.limit;
+            this.function = (query.distinct ? 1 : 0) | (query.min ? 2 : 0) | (query.max ? 4 : 0)
+                    | (query.count ? 8 : 0) | (query.average ? 16 : 0) | (query.sum ? 32 : 0);
+
+            int hash = source.hashCode();
+            hash = 31 * hash + columns.hashCode();
+            hash = 31 * hash + (where == null ? 0 : where.hashCode());
+            // Entries are combined in order, the order of the columns changes the SQL
+            for (Map.Entry<String, ColumnOrder> order : orderBy.entrySet()) {
+                hash = 31 * hash + order.hashCode();
+            }
+            hash = 31 * hash + limit;
+            this.hash = 31 * hash + function;
+        }
+
+        private QueryShape(QueryShape shape) {
+            this.source = shape.source;
+            this.columns = List.copyOf(shape.columns);
+            this.where = shape.where;
+            this.orderBy = new LinkedHashMap<>(shape.orderBy);
+            this.limit = shape.limit;
+            this.function = shape.function;
+            this.hash = shape.hash;
+        }
+
+        /**
+         * Copy this shape, so it stays the same when its query is changed
+         */
+        private QueryShape freeze() {
+            return new QueryShape(this);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof QueryShape)) return false;
+
+            QueryShape other = (QueryShape) o;
+            return hash == other.hash
+                    && limit == other.limit
+                    && function == other.function
+                    && source.equals(other.source)
+                    && columns.equals(other.columns)
+                    && Objects.equals(where, other.where)
+                    && sameOrder(orderBy, other.orderBy);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        private static boolean sameOrder(Map<String, ColumnOrder> a, Map<String, ColumnOrder> b) {
+            if (a.size() != b.size()) return false;
+
+            Iterator<Map.Entry<String, ColumnOrder>> other = b.entrySet().iterator();
+            for (Map.Entry<String, ColumnOrder> order : a.entrySet()) {
+                if (!order.equals(other.next())) return false;
+            }
+
+            return true;
+        }
+    }
+
+    /**
+     * The most shapes to remember, the least recently used shape is dropped past this
+     */
+    private static final int SQL_CACHE_SIZE = 1024;
+
+    /**
+     * Rendered SQL by query shape, so repeated queries skip rendering and produce the same string
+     */
+    private static final Map<QueryShape, String> sqlCache = Collections.synchronizedMap(
+            new LinkedHashMap<QueryShape, String>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<QueryShape, String> eldest) {
+                    // Shapes built from user input could grow without bound
+                    return size() > SQL_CACHE_SIZE;
+                }
+            }
+    );
+
+    /**
+     * Render this query for a model, queries of the same shape share the rendered SQL
+     */
+    String buildSql(SqlModel<?> model) {
+        return cachedSql(model, () -> renderSql(
                 model.getTableName(),
                 model.getColumnDefinitions().values().stream()
+                        // Arrays and collections are stored in their associated table
+                        .filter(column -> !column.isArray() && !column.isCollection())
                         .map(ColumnDefinition::getName)
                         .toArray(String[]::new)
-        );
+        ));
+    }
+
+    /**
+     * Render this query for a table, queries of the same shape share the rendered SQL
+     */
+    String buildSql(String table) {
+        return cachedSql(table, () -> renderSql(table));
+    }
+
+    private String cachedSql(Object source, Supplier<String> render) {
+        QueryShape shape = new QueryShape(this, source);
+
+        String sql = sqlCache.get(shape);
+        if (sql != null) return sql;
+
+        sql = render.get();
+        // Queries that can't be rendered aren't cached
+        if (sql == null) return null;
+
+        sqlCache.put(shape.freeze(), sql);
+
+        return sql;
     }
 
-    private String buildSql(String table, String... defaultColumns) {
+    private String renderSql(String table, String... defaultColumns) {
         // Sql functions need at least one column
         String where = (this.where == null) ? "" : " WHERE " + this.where.getComparison();
         String order = (orderBy.isEmpty()) ? "" : " ORDER BY " + orderBy.entrySet().stream().map(
@@ -161,25 +307,31 @@ public class SqlQuery {
                 selector = String.format(functionFormat, "SUM", column);
             }
         } else {
-            if (columns.isEmpty())
+            // Don't store the defaults, this query may be executed against another table later
+            List<String> selected = columns;
+            if (selected.isEmpty())
                 if (defaultColumns.length == 0) {
-                    columns.add("*");
+                    selected = List.of("*");
                 } else {
-                    columns.addAll(Arrays.asList(defaultColumns));
+                    selected = Arrays.asList(defaultColumns);
                 }
             if (distinct) selector = "DISTINCT ";
             // TODO Sql Server puts "limit" here
-            selector += String.join(", ", columns);
+            selector += String.join(", ", selected);
         }
 
         return String.format(selectFormat, selector, table, where, order, limit);
     }
 
+    private List<Object> getParameters() {
+        return (where == null) ? Collections.emptyList() : where.getParameters();
+    }
+
     public ResultSet execute(String table) {
         String statement = buildSql(table);
 
         try {
-            return executeStatement(statement, where.getParameters());
+            return executeStatement(statement, getParameters());
         } catch (SQLException e) {
             OrmMicroLogger.QUERY_BUILDER.exception(e, "Failed to execute query `" + statement + "`");
         }
@@ -189,100 +341,211 @@ public class SqlQuery {
 
     public void executeAsync(String table, Consumer<ResultSet> consumer) {
         session.getFactory().getWorker().executeQueryAsync(
+                table,
+                priority,
                 buildSql(table),
-                where.getParameters(),
+                getParameters(),
                 consumer
         );
     }
 
+    /**
+     * Execute this query
+     * <p>Queries of a sharded model only run on the model's shard if they require the shard key to equal a value,
+     * otherwise they run on every shard, one after another, and the results are merged</p>
+     *
+     * @param modelClass The model to retrieve
+     * @return The results, or null if the query failed
+     * @throws RuntimeException If the query is distinct or an aggregate and has to run on every shard
+     */
     public <T> QueryResult<T> execute(Class<T> modelClass) {
         // TODO dialect
         SqlModel<T> model = session.getFactory().getModelManager().getModel(modelClass);
         String statement = buildSql(model);
+
+        int shard = shardFor(model);
+        if (shard >= 0) return execute(modelClass, model, statement, session.forShard(shard));
+
+        // Any shard could have matching rows
+        checkMergeable(model);
+        List<T> results = new ArrayList<>();
+        for (int i = 0; i < session.getFactory().getShardCount(); i++) {
+            QueryResult<T> shardResults = execute(modelClass, model, statement, session.forShard(i));
+            if (shardResults == null) return null;
+
+            results.addAll(shardResults.getResults());
+        }
+
+        return merge(modelClass, model, results);
+    }
+
+    private <T> QueryResult<T> execute(Class<T> modelClass, SqlModel<T> model, String statement, Session shardSession) {
         try {
-            return processResults(
-                    modelClass,
-                    model,
-                    session,
-                    executeStatement(statement, where.getParameters())
-            );
+            try (ResultSet rs = shardSession.executeReadQuery(statement, getParameters())) {
+                return processResults(modelClass, shardSession, rs);
+            }
         } catch (SQLException e) {
             OrmMicroLogger.QUERY_BUILDER.exception(e, "Failed to execute query `" + statement + "`");
+        } finally {
+            shardSession.releaseConnection();
         }
 
         return null;
     }
 
-    public <T> void executeAsync(Class<T> modelClass, Consumer<QueryResult<T>> consumer) {
+    /**
+     * Execute this query on the database worker
+     * <p>Results are mapped on the worker thread, the returned stage completes on that thread as well</p>
+     *
+     * @param modelClass The model to retrieve
+     * @return A stage completed with the results, or completed exceptionally with the {@link SQLException}
+     * that caused the query to fail
+     * @throws RuntimeException If the query is distinct or an aggregate and has to run on every shard
+     */
+    public <T> CompletionStage<QueryResult<T>> executeAsync(Class<T> modelClass) {
         SqlModel<T> model = session.getFactory().getModelManager().getModel(modelClass);
-        session.getFactory().getWorker().executeQueryAsync(
-                buildSql(model),
-                where.getParameters(),
-                rs -> {
-                    try (Session newSession = session.getFactory().getCurrentSession()) {
-                        consumer.accept(processResults(modelClass, model, newSession, rs));
-                    }
-                }
+        String statement = buildSql(model);
+
+        int shard = shardFor(model);
+        if (shard >= 0) return executeAsync(modelClass, statement, shard);
+
+        // Any shard could have matching rows, spread the queries over the worker lanes
+        checkMergeable(model);
+        List<CompletableFuture<QueryResult<T>>> shardResults = new ArrayList<>();
+        for (int i = 0; i < session.getFactory().getShardCount(); i++) {
+            shardResults.add(executeAsync(modelClass, statement, i).toCompletableFuture());
+        }
+
+        return CompletableFuture.allOf(shardResults.toArray(new CompletableFuture<?>[0])).thenApply(ignored -> {
+            List<T> results = new ArrayList<>();
+            for (CompletableFuture<QueryResult<T>> result : shardResults) {
+                results.addAll(result.join().getResults());
+            }
+
+            return merge(modelClass, model, results);
+        });
+    }
+
+    private <T> CompletionStage<QueryResult<T>> executeAsync(Class<T> modelClass, String statement, int shard) {
+        // Reads aren't ordered with writes, so they go to whichever lane is free instead of queueing behind one per table
+        return session.getFactory().getWorker().submitQuery(
+                null,
+                priority,
+                shard,
+                statement,
+                getParameters(),
+                (workerSession, rs) -> processResults(modelClass, workerSession, rs)
         );
     }
 
-    private ResultSet executeStatement(String statement, List<Object> parameters) throws SQLException {
-        PreparedStatement pStatement = session.getConnection().prepareStatement(statement);
-        SqlUtil.insertParametersInto(pStatement, parameters);
+    /**
+     * Find the shard storing every row this query can match
+     *
+     * @return The shard, or -1 if matching rows could be on any shard
+     */
+    private int shardFor(SqlModel<?> model) {
+        SessionFactory factory = session.getFactory();
 
-        return pStatement.executeQuery();
+        ColumnDefinition shardKey = model.getShardKey();
+        if (factory.getShardCount() == 1 || shardKey == null) return 0;
+
+        if (where == null || !where.getEqualities().containsKey(shardKey.getName())) return -1;
+
+        return factory.getShard(model, where.getEqualities().get(shardKey.getName()));
     }
 
-    private <T> QueryResult<T> processResults(Class<T> modelClass, SqlModel<T> model, Session session, ResultSet rs) {
-        List<T> results = new ArrayList<>();
+    /**
+     * Make sure the results of every shard can be merged into the results of one query
+     * <p>Only the order and limit are applied across shards. Rows of different shards can be duplicates of each other,
+     * and an aggregate of every shard can't be computed from the aggregate of each</p>
+     */
+    private void checkMergeable(SqlModel<?> model) {
+        if (!distinct && !min && !max && !count && !average && !sum) return;
 
-        if (rs != null) {
-            try {
-                // Process the resultset
-                Constructor<T> instanceBuilder = modelClass.getConstructor();
-                instanceBuilder.setAccessible(true);
+        throw OrmMicroLogger.QUERY_BUILDER.exception(null, String.format(
+                "Distinct and aggregate queries of `%s` must require the shard key to equal a value, they can't be merged across shards",
+                model.getTableName()
+        ), true);
+    }
 
-                while (rs.next()) {
-                    T next = instanceBuilder.newInstance();
+    /**
+     * Combine the results of several shards as if they were returned by one query, applying the order and limit
+     * <p>Columns are compared by their stored value, columns that can't be compared are ignored</p>
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"}) // Values of one column share a type
+    private <T> QueryResult<T> merge(Class<T> modelClass, SqlModel<T> model, List<T> results) {
+        Comparator<T> order = null;
+
+        for (Map.Entry<String, ColumnOrder> entry : orderBy.entrySet()) {
+            ColumnDefinition column = model.getColumnByName(entry.getKey());
+            if (column == null || column.isForeignKey() || column.isArray() || column.isCollection()) continue;
+
+            Comparator<T> columnOrder = Comparator.comparing(
+                    result -> (Comparable) storedValue(column, result),
+                    // Matches the default of most databases, nulls are the smallest value
+                    Comparator.nullsFirst(Comparator.naturalOrder())
+            );
+            if (entry.getValue() == ColumnOrder.DESC) columnOrder = columnOrder.reversed();
 
-                    Map<String, ColumnDefinition> definitions = model.getColumnDefinitions();
+            order = (order == null) ? columnOrder : order.thenComparing(columnOrder);
+        }
 
-                    Map<String, ElementCollectionTable<?>> associatedCollections = new HashMap<>();
+        if (order != null) results.sort(order);
+        if (results.size() > limit) results = results.subList(0, limit);
 
-                    for (var definition : definitions.entrySet()) {
-                        String fieldName = definition.getKey();
-                        ColumnDefinition column = definition.getValue();
+        return new QueryResult<>(modelClass, results);
+    }
 
-                        List<Object> associatedObjects = new ArrayList<>();
+    private static Object storedValue(ColumnDefinition column, Object result) {
+        Object value = column.getFieldValue(result);
+        value = (value == null) ? null : column.convertJavaToSql(value);
 
-                        if (column.isArray() || column.isCollection()) {
-                            // We'll need to get the elements from an associated table
-                            associatedCollections.put(fieldName, column.getCollectionTable());
-                            continue;
-                        }
+        return (value instanceof Comparable) ? value : null;
+    }
 
-                        if (column.isForeignKey()) {
-                            column.foreign
-                        }
+    /**
+     * Execute this query on the database worker
+     *
+     * @param modelClass The model to retrieve
+     * @param consumer   Receives the results, or null if the query failed, on the
+     *                   {@link net.mcmerdith.ormmicro.internal.DatabaseWorker#getResultExecutor() result executor}
+     */
+    public <T> void executeAsync(Class<T> modelClass, Consumer<QueryResult<T>> consumer) {
+        executeAsync(modelClass).whenCompleteAsync(
+                (results, e) -> consumer.accept(e == null ? results : null),
+                session.getFactory().getWorker().getResultExecutor()
+        );
+    }
 
-                        Object db = column.convertSqlToJava(rs.getObject(column.getName(), column.getFieldType()));
-                    }
+    private ResultSet executeStatement(String statement, List<Object> parameters) throws SQLException {
+        return session.executeReadQuery(statement, parameters);
+    }
 
-                    for (var collection : associatedCollections.entrySet()) {
-                        String fieldName = collection.getKey();
-                        ElementCollectionTable<?> collectionTable = collection.getValue();
-                        ColumnDefinition definition = definitions.get(fieldName);
-                    }
-                }
-            } catch (SQLException | NoSuchMethodException | InstantiationException | IllegalAccessException | InvocationTargetException e) {
-                OrmMicroLogger.DATABASE_WORKER.exception(e, "Failed to get next query result");
-            }
-        }
+    /**
+     * Map the rows of a result set to new instances of the model
+     *
+     * @param session The session used to load foreign objects
+     */
+    private <T> QueryResult<T> processResults(Class<T> modelClass, Session session, ResultSet rs) throws SQLException {
+        if (rs == null) return new QueryResult<>(modelClass, new ArrayList<>());
 
-        return new QueryResult<>(modelClass, results);
+        return new QueryResult<>(modelClass, session.getFactory().getModelManager().getRowMapper(modelClass).map(
+                rs,
+                (column, referenceValue) -> getForeignObject(column, referenceValue, session)
+        ));
     }
 
-    private <T> T getForeignObject(Class<T> type, ResultSet data, ) {
-        foreignColumn.get
+    private Object getForeignObject(ColumnDefinition column, Object referenceValue, Session session) {
+        if (referenceValue == null) return null;
+
+        Class<?> foreignClass = column.getField().getType();
+        SqlModel<?> foreignModel = session.getFactory().getModelManager().getModel(foreignClass);
+
+        QueryResult<?> foreign = new SqlQuery(session)
+                .where(new SqlComparisonBuilder(ComparisonLogic.AND).whereIdMatch(foreignModel, referenceValue).build())
+                .limit(1)
+                .execute(foreignClass);
+
+        return (foreign == null) ? null : foreign.getFirst();
     }
 }
@@ -5,15 +5,27 @@ import net.mcmerdith.ormmicro.OrmMicroLogger;
 import java.sql.PreparedStatement;
 import java.sql.SQLException;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 public class ParameterizedComparison {
     private final String comparison;
     private final List<Object> parameters = new ArrayList<>();
+    private final Map<String, Object> equalities = new HashMap<>();
 
     public ParameterizedComparison(String comparison, List<Object> parameters) {
+        this(comparison, parameters, Collections.emptyMap());
+    }
+
+    /**
+     * @param equalities The columns every matching row must equal a value in, see {@link ParameterizedComparison#getEqualities()}
+     */
+    public ParameterizedComparison(String comparison, List<Object> parameters, Map<String, Object> equalities) {
         this.comparison = comparison;
         this.parameters.addAll(parameters);
+        this.equalities.putAll(equalities);
     }
 
     public String getComparison() {
@@ -23,4 +35,14 @@ public class ParameterizedComparison {
     public List<Object> getParameters() {
         return this.parameters;
     }
+
+    /**
+     * Get the columns every row matching this comparison must equal a value in
+     * <p>Only includes the equalities the comparison is known to require, it may require more</p>
+     *
+     * @return A map of column name -> value
+     */
+    public Map<String, Object> getEqualities() {
+        return Collections.unmodifiableMap(equalities);
+    }
 }
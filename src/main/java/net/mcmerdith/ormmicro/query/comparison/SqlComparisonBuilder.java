@@ -13,6 +13,11 @@ public class SqlComparisonBuilder {
     private final List<String> comparisons = new ArrayList<>();
     private final List<Object> parameters = new ArrayList<>();
 
+    /**
+     * Column name -> value of every EQUAL comparison
+     */
+    private final Map<String, Object> equalities = new HashMap<>();
+
     public SqlComparisonBuilder(ComparisonLogic logic) {
         this.logic = logic;
     }
@@ -31,6 +36,8 @@ public class SqlComparisonBuilder {
 
         String comparison;
 
+        if (operator == ComparisonOperator.EQUAL) equalities.put(fieldName, value[0]);
+
         switch (operator) {
             case BETWEEN:
                 if (value.length < 2) return this;
@@ -76,6 +83,7 @@ public class SqlComparisonBuilder {
 
         comparisons.add("(" + comparison + ")");
         parameters.addAll(embeddedComparison.parameters);
+        equalities.putAll(embeddedComparison.requiredEqualities());
 
         return this;
     }
@@ -87,16 +95,18 @@ public class SqlComparisonBuilder {
      */
     public SqlComparisonBuilder whereMatches(MappedSqlModel<?> model) {
         ColumnDefinition id = model.getModel().getUniqueIdentifier();
+        Map<ColumnDefinition, Object> columnValues = model.getColumnValues();
 
         if (id != null) {
-            return where(id.getName(), ComparisonOperator.EQUAL, model.getColumns().get(id.getField().getName()));
+            return where(id.getName(), ComparisonOperator.EQUAL, columnValues.get(id));
         }
 
-        Map<String, ColumnDefinition> columnDef = model.getModel().getColumnDefinitions();
-
-        for (Map.Entry<String, Object> values : model.getColumns().entrySet()) {
-            ColumnDefinition column = columnDef.get(values.getKey());
-            where(column.getName(), ComparisonOperator.EQUAL, values.getValue());
+        for (Map.Entry<ColumnDefinition, Object> values : columnValues.entrySet()) {
+            if (values.getValue() == null) {
+                where(values.getKey().getName(), ComparisonOperator.IS_NULL);
+            } else {
+                where(values.getKey().getName(), ComparisonOperator.EQUAL, values.getValue());
+            }
         }
 
         return this;
@@ -118,7 +128,14 @@ public class SqlComparisonBuilder {
         return String.join(" " + logic.name() + " ", comparisons);
     }
 
+    /**
+     * Get the equalities every matching row must satisfy, only known if the comparisons are all required
+     */
+    private Map<String, Object> requiredEqualities() {
+        return (logic == ComparisonLogic.AND || comparisons.size() == 1) ? equalities : Collections.emptyMap();
+    }
+
     public ParameterizedComparison build() {
-        return new ParameterizedComparison(buildComparison(), parameters);
+        return new ParameterizedComparison(buildComparison(), parameters, requiredEqualities());
     }
 }
@@ -2,4 +2,14 @@ package net.mcmerdith.ormmicro.typing;
 
 public interface ISqlTypeMapper {
     ColumnType javaToSqlType(Class<?> java);
+
+    /**
+     * Identify the mappings of this mapper, cached model metadata is discarded when it changes
+     * <p>Only needed by mappers configured at runtime, changes to the mapper class are detected without it</p>
+     *
+     * @return A value that changes whenever the mappings do. Default: 0
+     */
+    default long getConfigurationVersion() {
+        return 0;
+    }
 }
@@ -2,20 +2,108 @@ package net.mcmerdith.ormmicro.util;
 
 import net.mcmerdith.ormmicro.OrmMicroLogger;
 
+import java.math.BigDecimal;
 import java.sql.PreparedStatement;
+import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.util.List;
 
 public class SqlUtil {
     public static void insertParametersInto(PreparedStatement statement, List<Object> parameters) {
-        int parameterIndex = 0;
+        if (parameters == null) return;
+
+        for (int i = 0; i < parameters.size(); i++) {
+            Object parameter = parameters.get(i);
 
-        for (Object parameter : parameters) {
             try {
-                statement.setObject(parameterIndex++, parameter);
+                // JDBC parameters are 1-indexed
+                setParameter(statement, i + 1, parameter);
             } catch (SQLException e) {
-                OrmMicroLogger.QUERY_BUILDER.exception(e, "Failed to insert '" + parameter + "' at index " + (parameterIndex - 1));
+                OrmMicroLogger.QUERY_BUILDER.exception(e, "Failed to insert '" + parameter + "' at index " + (i + 1));
             }
         }
     }
+
+    /**
+     * Bind a parameter
+     * <p>Common types are bound with their typed setter, skipping the driver's type dispatch in
+     * {@link PreparedStatement#setObject(int, Object)}. Other values, and null, are bound with setObject</p>
+     *
+     * @param statement The statement
+     * @param index     The index of the parameter, starting at 1
+     * @param parameter The value
+     */
+    public static void setParameter(PreparedStatement statement, int index, Object parameter) throws SQLException {
+        if (parameter instanceof String) {
+            statement.setString(index, (String) parameter);
+        } else if (parameter instanceof Integer) {
+            statement.setInt(index, (Integer) parameter);
+        } else if (parameter instanceof Long) {
+            statement.setLong(index, (Long) parameter);
+        } else if (parameter instanceof Double) {
+            statement.setDouble(index, (Double) parameter);
+        } else if (parameter instanceof Boolean) {
+            statement.setBoolean(index, (Boolean) parameter);
+        } else if (parameter instanceof Float) {
+            statement.setFloat(index, (Float) parameter);
+        } else if (parameter instanceof Short) {
+            statement.setShort(index, (Short) parameter);
+        } else if (parameter instanceof Byte) {
+            statement.setByte(index, (Byte) parameter);
+        } else {
+            statement.setObject(index, parameter);
+        }
+    }
+
+    /**
+     * Read a column as a specific type
+     * <p>Common types are read with their typed getter, not every driver implements
+     * {@link ResultSet#getObject(String, Class)} (SQLite does not)</p>
+     *
+     * @param rs     The result set, positioned on a row
+     * @param column The column to read
+     * @param type   The type to read the column as. Must not be primitive
+     * @return The value, or null if the column was SQL NULL
+     */
+    public static Object getObject(ResultSet rs, String column, Class<?> type) throws SQLException {
+        return getObject(rs, rs.findColumn(column), type);
+    }
+
+    /**
+     * Read a column as a specific type
+     *
+     * @param rs     The result set, positioned on a row
+     * @param column The index of the column to read, starting at 1
+     * @param type   The type to read the column as. Must not be primitive
+     * @return The value, or null if the column was SQL NULL
+     * @see SqlUtil#getObject(ResultSet, String, Class)
+     */
+    public static Object getObject(ResultSet rs, int column, Class<?> type) throws SQLException {
+        Object value;
+
+        if (type == String.class) {
+            return rs.getString(column);
+        } else if (type == BigDecimal.class) {
+            return rs.getBigDecimal(column);
+        } else if (type == Integer.class) {
+            value = rs.getInt(column);
+        } else if (type == Long.class) {
+            value = rs.getLong(column);
+        } else if (type == Double.class) {
+            value = rs.getDouble(column);
+        } else if (type == Float.class) {
+            value = rs.getFloat(column);
+        } else if (type == Boolean.class) {
+            value = rs.getBoolean(column);
+        } else if (type == Short.class) {
+            value = rs.getShort(column);
+        } else if (type == Byte.class) {
+            value = rs.getByte(column);
+        } else {
+            return rs.getObject(column, type);
+        }
+
+        // The primitive getters return 0/false for NULL
+        return rs.wasNull() ? null : value;
+    }
 }
@@ -0,0 +1,30 @@
+package net.mcmerdith.ormmicro.internal;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Virtual thread support
+ * <p>Java 21 implementation, see <code>src/main/java</code> for older runtimes</p>
+ */
+public class VirtualThreads {
+    private VirtualThreads() {
+        // Don't instantiate this class
+    }
+
+    /**
+     * Check if the runtime supports virtual threads
+     */
+    public static boolean isSupported() {
+        return true;
+    }
+
+    /**
+     * Create an executor that starts a new virtual thread for each task
+     *
+     * @param namePrefix The prefix of the thread names, followed by a counter
+     */
+    public static ExecutorService newThreadPerTaskExecutor(String namePrefix) {
+        return Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name(namePrefix, 0).factory());
+    }
+}
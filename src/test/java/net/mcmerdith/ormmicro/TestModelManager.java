@@ -1,23 +1,36 @@
 package net.mcmerdith.ormmicro;
 
 import net.mcmerdith.ormmicro.internal.ModelManager;
+import net.mcmerdith.ormmicro.internal.NamingStrategy;
 import net.mcmerdith.ormmicro.internal.SessionFactory;
 import net.mcmerdith.ormmicro.modeling.ColumnDefinition;
 import net.mcmerdith.ormmicro.modeling.MappedSqlModel;
+import net.mcmerdith.ormmicro.modeling.RowMapper;
 import net.mcmerdith.ormmicro.modeling.SqlModel;
 import net.mcmerdith.ormmicro.testdata.TestConfigurationManager;
 import net.mcmerdith.ormmicro.testdata.models.TestModel1;
 import net.mcmerdith.ormmicro.testdata.models.TestModel2;
 import net.mcmerdith.ormmicro.typing.ColumnType;
+import net.mcmerdith.ormmicro.typing.SqlDialect;
 import net.mcmerdith.ormmicro.typing.SqlType;
 import org.junit.Test;
 
+import java.io.IOException;
 import java.math.BigDecimal;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
 import java.util.Properties;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
 
 public class TestModelManager {
 
@@ -128,4 +141,147 @@ public class TestModelManager {
 //            MappedSqlModel<TestModel2> mappedModel2 = model2.mapObject((TestModel2) fObjects.get(1));
         }
     }
+
+    @Test
+    public void testConversions() {
+        for (SessionFactory sessionFactory : TestConfigurationManager.getSessionFactories()) {
+            Map<String, ColumnDefinition> model1Definitions = sessionFactory.getModelManager().getModel(TestModel1.class).getColumnDefinitions();
+            Map<String, ColumnDefinition> model2Definitions = sessionFactory.getModelManager().getModel(TestModel2.class).getColumnDefinitions();
+
+            ColumnDefinition enum1 = model1Definitions.get("enum1");
+            assertEquals(SqlDialect.GENERIC.name(), enum1.convertJavaToSql(SqlDialect.GENERIC));
+            assertEquals(SqlDialect.GENERIC, enum1.convertSqlToJava(SqlDialect.GENERIC.name()));
+            assertNull(enum1.convertSqlToJava("not a constant"));
+
+            ColumnDefinition enum2 = model1Definitions.get("enum2");
+            assertEquals(SqlDialect.GENERIC.ordinal(), enum2.convertJavaToSql(SqlDialect.GENERIC));
+            assertEquals(SqlDialect.GENERIC, enum2.convertSqlToJava(SqlDialect.GENERIC.ordinal()));
+            assertNull(enum2.convertSqlToJava(-1));
+            // Not an ordinal, matched by name
+            assertEquals(SqlDialect.GENERIC, enum2.convertSqlToJava(SqlDialect.GENERIC.name()));
+
+            // Properties -> List<String> -> String, and back in reverse
+            ColumnDefinition field4 = model2Definitions.get("field4");
+            Properties properties = new Properties();
+            properties.setProperty("key", "value");
+            assertEquals("key=value", field4.convertJavaToSql(properties));
+            assertEquals(properties, field4.convertSqlToJava("key=value"));
+        }
+    }
+
+    @Test
+    public void testElementCollectionsAreNotMapped() {
+        for (SessionFactory sessionFactory : TestConfigurationManager.getSessionFactories()) {
+            // TestModel1 stores a list, which is skipped so the rest of the model can still be read
+            RowMapper<TestModel1> mapper = sessionFactory.getModelManager().getRowMapper(TestModel1.class);
+            assertNotNull(mapper);
+        }
+    }
+
+    @Test
+    public void testIndexedMetadata() {
+        for (SessionFactory sessionFactory : TestConfigurationManager.getSessionFactories()) {
+            SqlModel<TestModel1> model1 = sessionFactory.getModelManager().getModel(TestModel1.class);
+            assertSame(model1, sessionFactory.getModelManager().getModel(TestModel1.class));
+
+            assertEquals(model1.getColumnDefinitions().size(), model1.getColumnCount());
+
+            int index = 0;
+            for (ColumnDefinition column : model1.getColumnDefinitions().values()) {
+                assertEquals(index, column.getIndex());
+                assertSame(column, model1.getColumn(index));
+                assertSame(column, model1.getColumnByName(column.getName()));
+                index++;
+            }
+            assertNull(model1.getColumnByName("not a column"));
+
+            // Names follow a replaced naming strategy
+            String tableName = model1.getTableName();
+            String columnName = model1.getColumn(0).getName();
+
+            sessionFactory.getNameManager().setStrategy(new NamingStrategy() {
+                @Override
+                public String applyForColumn(String columnName) {
+                    return "c_" + columnName;
+                }
+
+                @Override
+                public String applyForTable(String tableName) {
+                    return "t_" + tableName;
+                }
+            });
+
+            assertEquals("t_" + tableName, model1.getTableName());
+            assertNotEquals(columnName, model1.getColumn(0).getName());
+            assertSame(model1.getColumn(0), model1.getColumnByName(model1.getColumn(0).getName()));
+
+            sessionFactory.getNameManager().setStrategy(null);
+            assertEquals(columnName, model1.getColumn(0).getName());
+        }
+    }
+
+    @Test
+    public void testMetadataCache() throws IOException {
+        Path cache = Files.createTempFile("ormmicro", ".cache");
+        Files.delete(cache);
+
+        try {
+            List<Class<?>> models = List.of(TestModel1.class, TestModel2.class);
+
+            List<String> reflected = new ArrayList<>();
+            for (SessionFactory sessionFactory : TestConfigurationManager.getSessionFactories(builder -> builder.setMetadataCache(cache))) {
+                sessionFactory.getModelManager().registerModels(models);
+                reflected.addAll(describe(sessionFactory.getModelManager()));
+                sessionFactory.close();
+            }
+
+            assertTrue("Cache was not written", Files.size(cache) > 0);
+
+            // Changes to referenced models invalidate the cache too, classes of the runtime are left out
+            for (SessionFactory sessionFactory : TestConfigurationManager.getSessionFactories()) {
+                List<Class<?>> dependencies = sessionFactory.getModelManager().getModel(TestModel1.class).getMetadataDependencies();
+                assertTrue(dependencies.contains(TestModel2.class));
+                assertFalse(dependencies.contains(String.class));
+            }
+
+            List<String> restored = new ArrayList<>();
+            for (SessionFactory sessionFactory : TestConfigurationManager.getSessionFactories(builder -> builder.setMetadataCache(cache))) {
+                sessionFactory.getModelManager().registerModels(models);
+                restored.addAll(describe(sessionFactory.getModelManager()));
+
+                // Converters are instantiated again
+                ColumnDefinition field4 = sessionFactory.getModelManager().getModel(TestModel2.class).getColumnDefinition("field4");
+                Properties properties = new Properties();
+                properties.setProperty("key", "value");
+                assertEquals(properties, field4.convertSqlToJava("key=value"));
+
+                sessionFactory.close();
+            }
+
+            assertEquals(reflected, restored);
+        } finally {
+            Files.deleteIfExists(cache);
+        }
+    }
+
+    private static List<String> describe(ModelManager modelManager) {
+        List<String> columns = new ArrayList<>();
+        for (Class<?> model : List.of(TestModel1.class, TestModel2.class)) {
+            SqlModel<?> sqlModel = modelManager.getModel(model);
+            for (Map.Entry<String, ColumnDefinition> column : sqlModel.getColumnDefinitions().entrySet()) {
+                ColumnDefinition definition = column.getValue();
+                columns.add(String.join(" ",
+                        sqlModel.getTableName() + "." + column.getKey(),
+                        definition.getName(),
+                        String.valueOf(definition.getColumnType()),
+                        String.valueOf(definition.getFieldType()),
+                        String.valueOf(definition.isForeignKey()),
+                        String.valueOf(definition.isPrimary()),
+                        String.valueOf(definition.isUnique()),
+                        String.valueOf(definition.isNullable())
+                ));
+            }
+        }
+        return columns;
+    }
 }
@@ -0,0 +1,625 @@
+package net.mcmerdith.ormmicro.internal;
+
+import com.zaxxer.hikari.HikariConfig;
+import net.mcmerdith.ormmicro.annotations.Id;
+import net.mcmerdith.ormmicro.annotations.Model;
+import net.mcmerdith.ormmicro.query.ParameterizedStatement;
+import net.mcmerdith.ormmicro.query.QueryResult;
+import net.mcmerdith.ormmicro.query.SqlQuery;
+import net.mcmerdith.ormmicro.query.comparison.ComparisonLogic;
+import net.mcmerdith.ormmicro.query.comparison.ComparisonOperator;
+import net.mcmerdith.ormmicro.query.comparison.SqlComparisonBuilder;
+import net.mcmerdith.ormmicro.testdata.TestConfigurationManager;
+import org.junit.Test;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class DatabaseWorkerTest {
+    @Model(tableName = "worker_test")
+    private static class Player {
+        @Id
+        public long id;
+
+        public String name;
+
+        private Player() {}
+
+        public Player(long id, String name) {
+            this.id = id;
+            this.name = name;
+        }
+    }
+
+    @Model(tableName = "worker_generated_test")
+    private static class Entry {
+        @Id(autoIncrement = true)
+        public int id;
+
+        public String name;
+    }
+
+    private static void createTable(SessionFactory sessionFactory) throws SQLException {
+        try (Session session = sessionFactory.getCurrentSession()) {
+            session.executeSql("CREATE TABLE IF NOT EXISTS worker_test (id INTEGER PRIMARY KEY, name VARCHAR(255))");
+            session.executeSql("DELETE FROM worker_test");
+        }
+    }
+
+    /**
+     * Hold the worker until released, so tasks submitted in the meantime pile up in its queue
+     * <p>Returns once the worker is held, otherwise its drain could pick up the first few tasks. The holder
+     * uses a connection until it is released</p>
+     */
+    private static void holdWorker(DatabaseWorker worker, CountDownLatch release) throws InterruptedException {
+        CountDownLatch started = new CountDownLatch(1);
+
+        worker.submitQuery(null, "SELECT 1", List.of(), (workerSession, rs) -> {
+            started.countDown();
+            try {
+                return release.await(10, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                throw new IllegalStateException(e);
+            }
+        });
+
+        assertTrue(started.await(10, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void testAsyncRoundTrip() throws Exception {
+        for (SessionFactory sessionFactory : TestConfigurationManager.getSessionFactories()) {
+            try (sessionFactory) {
+                createTable(sessionFactory);
+
+                Player player = new Player(1, "first");
+
+                CompletionStage<Integer> insert;
+                CompletionStage<Integer> update;
+                CompletionStage<QueryResult<Player>> query;
+                try (Session session = sessionFactory.getCurrentSession()) {
+                    insert = session.saveAsync(player);
+                    // The second save must be ordered after the insert, or it would insert again
+                    player.name = "second";
+                    update = insert.thenCompose(ignored -> session.saveAsync(player));
+                    query = update.thenCompose(ignored -> new SqlQuery(session)
+                            .where(new SqlComparisonBuilder(ComparisonLogic.AND).where("id", ComparisonOperator.EQUAL, 1L).build())
+                            .executeAsync(Player.class));
+                }
+
+                assertEquals(1, (int) insert.toCompletableFuture().get(10, TimeUnit.SECONDS));
+                assertEquals(1, (int) update.toCompletableFuture().get(10, TimeUnit.SECONDS));
+
+                QueryResult<Player> result = query.toCompletableFuture().get(10, TimeUnit.SECONDS);
+                assertEquals(1, result.size());
+                assertEquals(1, result.getFirst().id);
+                assertEquals("second", result.getFirst().name);
+            }
+        }
+    }
+
+    @Test
+    public void testWakeUp() throws Exception {
+        for (SessionFactory sessionFactory : TestConfigurationManager.getSessionFactories()) {
+            try (sessionFactory) {
+                DatabaseWorker worker = sessionFactory.getWorker();
+
+                for (int i = 0; i < 5; i++) {
+                    // Let the worker go idle
+                    Thread.sleep(20);
+
+                    long queued = System.nanoTime();
+                    long started = worker.submitQuery(null, "SELECT 1", List.of(), (session, rs) -> System.nanoTime())
+                            .toCompletableFuture()
+                            .get(10, TimeUnit.SECONDS);
+
+                    // Started right away, not at the next poll of the old 250ms interval
+                    assertTrue(TimeUnit.NANOSECONDS.toMillis(started - queued) < 100);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testLanes() throws Exception {
+        Path file = Files.createTempFile("lanes", ".db");
+        // A connection for each lane
+        HikariConfig config = new HikariConfig();
+        config.setDriverClassName("org.sqlite.JDBC");
+        config.setJdbcUrl("jdbc:sqlite:" + file);
+        config.setMaximumPoolSize(2);
+        config.setPoolName("Lanes");
+
+        try {
+            for (SessionFactory sessionFactory : TestConfigurationManager.getSessionFactories(builder -> {
+                builder.setConfiguration(config);
+                builder.setWorkerLanes(2);
+            })) {
+                try (sessionFactory) {
+                    DatabaseWorker worker = sessionFactory.getWorker();
+                    CountDownLatch otherRan = new CountDownLatch(1);
+                    List<String> order = Collections.synchronizedList(new ArrayList<>());
+
+                    // Keys 0 and 1 route to different lanes
+                    CompletionStage<Boolean> first = worker.submitQuery(0, "SELECT 1", List.of(), (session, rs) -> {
+                        try {
+                            // Only finishes if the other lane runs in the meantime
+                            return otherRan.await(10, TimeUnit.SECONDS);
+                        } catch (InterruptedException e) {
+                            throw new IllegalStateException(e);
+                        } finally {
+                            order.add("first");
+                        }
+                    });
+                    CompletionStage<String> second = worker.submitQuery(0, "SELECT 1", List.of(), (session, rs) -> {
+                        order.add("second");
+                        return "done";
+                    });
+                    worker.submitQuery(1, "SELECT 1", List.of(), (session, rs) -> {
+                        otherRan.countDown();
+                        return null;
+                    });
+
+                    assertTrue(first.toCompletableFuture().get(10, TimeUnit.SECONDS));
+                    second.toCompletableFuture().get(10, TimeUnit.SECONDS);
+
+                    // The same key runs in order, behind the held task
+                    assertEquals(List.of("first", "second"), order);
+                }
+            }
+        } finally {
+            Files.deleteIfExists(file);
+        }
+    }
+
+    @Test
+    public void testWriteBehind() throws Exception {
+        for (SessionFactory sessionFactory : TestConfigurationManager.getSessionFactories(builder -> {
+            builder.setWriteBehind(true);
+            // Saving doesn't need a connection, the held worker is using it
+            builder.setLazyConnections(true);
+        })) {
+            try (sessionFactory) {
+                createTable(sessionFactory);
+
+                CountDownLatch release = new CountDownLatch(1);
+                Player player = new Player(1, "first");
+                List<CompletionStage<Integer>> saves = new ArrayList<>();
+
+                // Hold the worker so the saves pile up in the queue
+                holdWorker(sessionFactory.getWorker(), release);
+
+                try (Session session = sessionFactory.getCurrentSession()) {
+                    for (int i = 0; i < 100; i++) {
+                        player.name = "save " + i;
+                        saves.add(session.saveAsync(player));
+                    }
+                }
+
+                release.countDown();
+
+                // Every save was merged into the first
+                for (CompletionStage<Integer> save : saves) {
+                    assertSame(saves.get(0), save);
+                }
+                assertEquals(1, (int) saves.get(0).toCompletableFuture().get(10, TimeUnit.SECONDS));
+
+                try (Session session = sessionFactory.getCurrentSession()) {
+                    QueryResult<Player> result = new SqlQuery(session).execute(Player.class);
+                    assertEquals(1, result.size());
+                    assertEquals("save 99", result.getFirst().name);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testWriteBehindUnassignedIds() throws Exception {
+        for (SessionFactory sessionFactory : TestConfigurationManager.getSessionFactories(builder -> {
+            builder.setWriteBehind(true);
+            builder.setLazyConnections(true);
+        })) {
+            try (sessionFactory) {
+                try (Session session = sessionFactory.getCurrentSession()) {
+                    session.executeSql("CREATE TABLE IF NOT EXISTS worker_generated_test (id INTEGER PRIMARY KEY AUTOINCREMENT, name VARCHAR(255))");
+                    session.executeSql("DELETE FROM worker_generated_test");
+                }
+
+                CountDownLatch release = new CountDownLatch(1);
+                CompletionStage<Integer> first;
+                CompletionStage<Integer> second;
+
+                holdWorker(sessionFactory.getWorker(), release);
+
+                try (Session session = sessionFactory.getCurrentSession()) {
+                    // Both are new and look the same, but are different rows
+                    Entry a = new Entry();
+                    a.name = "new";
+                    Entry b = new Entry();
+                    b.name = "new";
+
+                    first = session.saveAsync(a);
+                    second = session.saveAsync(b);
+                }
+
+                release.countDown();
+
+                assertNotSame(first, second);
+                assertEquals(1, (int) first.toCompletableFuture().get(10, TimeUnit.SECONDS));
+                assertEquals(1, (int) second.toCompletableFuture().get(10, TimeUnit.SECONDS));
+
+                try (Session session = sessionFactory.getCurrentSession()) {
+                    assertEquals(2, new SqlQuery(session).execute(Entry.class).size());
+                    session.executeSql("DROP TABLE worker_generated_test");
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testNullReceivers() throws Exception {
+        for (SessionFactory sessionFactory : TestConfigurationManager.getSessionFactories()) {
+            try (sessionFactory) {
+                createTable(sessionFactory);
+                DatabaseWorker worker = sessionFactory.getWorker();
+
+                // Fire and forget, ordered before the query by sharing its key
+                worker.executeUpdateAsync("players", "INSERT INTO worker_test (id, name) VALUES (?, ?)", List.of(1L, "forgotten"), null);
+                worker.executeQueryAsync("players", "SELECT * FROM worker_test", List.of(), null);
+
+                int count = worker.submitQuery("players", "SELECT COUNT(*) FROM worker_test", List.of(), (session, rs) -> {
+                    rs.next();
+                    return rs.getInt(1);
+                }).toCompletableFuture().get(10, TimeUnit.SECONDS);
+                assertEquals(1, count);
+            }
+        }
+    }
+
+    @Test
+    public void testGroupCommit() throws Exception {
+        for (SessionFactory sessionFactory : TestConfigurationManager.getSessionFactories(builder -> builder.setGroupCommit(0, 0))) {
+            try (sessionFactory) {
+                createTable(sessionFactory);
+
+                CountDownLatch release = new CountDownLatch(1);
+                DatabaseWorker worker = sessionFactory.getWorker();
+                String insert = "INSERT INTO worker_test (id, name) VALUES (?, ?)";
+
+                // Hold the worker so the inserts share a drain
+                holdWorker(worker, release);
+
+                CompletableFuture<Integer> first = worker.submitUpdate(null, insert, List.of(1, "first")).toCompletableFuture();
+                CompletableFuture<Integer> duplicate = worker.submitUpdate(null, insert, List.of(1, "duplicate")).toCompletableFuture();
+                CompletableFuture<Integer> second = worker.submitUpdate(null, insert, List.of(2, "second")).toCompletableFuture();
+
+                release.countDown();
+
+                assertEquals(1, (int) first.get(10, TimeUnit.SECONDS));
+                assertEquals(1, (int) second.get(10, TimeUnit.SECONDS));
+
+                // Only the failing statement is rolled back
+                CompletionException e = assertThrows(CompletionException.class, duplicate::join);
+                assertTrue(e.getCause() instanceof SQLException);
+
+                try (Session session = sessionFactory.getCurrentSession()) {
+                    assertEquals(2, new SqlQuery(session).execute(Player.class).size());
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testBatchedUpdates() throws Exception {
+        for (SessionFactory sessionFactory : TestConfigurationManager.getSessionFactories()) {
+            try (sessionFactory) {
+                createTable(sessionFactory);
+
+                CountDownLatch release = new CountDownLatch(1);
+                DatabaseWorker worker = sessionFactory.getWorker();
+                String insert = "INSERT INTO worker_test (id, name) VALUES (?, ?)";
+
+                // Hold the worker so the inserts share a drain
+                holdWorker(worker, release);
+
+                List<CompletableFuture<Integer>> inserts = new ArrayList<>();
+
+                for (int i = 1; i <= 5; i++) {
+                    inserts.add(worker.submitUpdate(null, insert, List.of(i, "player " + i)).toCompletableFuture());
+                }
+                CompletableFuture<Integer> duplicate = worker.submitUpdate(null, insert, List.of(3, "duplicate")).toCompletableFuture();
+                for (int i = 6; i <= 10; i++) {
+                    inserts.add(worker.submitUpdate(null, insert, List.of(i, "player " + i)).toCompletableFuture());
+                }
+
+                release.countDown();
+
+                for (CompletableFuture<Integer> future : inserts) {
+                    assertEquals(1, (int) future.get(10, TimeUnit.SECONDS));
+                }
+
+                // A failing row doesn't fail the rest of its batch
+                CompletionException e = assertThrows(CompletionException.class, duplicate::join);
+                assertTrue(e.getCause() instanceof SQLException);
+
+                try (Session session = sessionFactory.getCurrentSession()) {
+                    assertEquals(10, new SqlQuery(session).execute(Player.class).size());
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testResultDispatcher() throws Exception {
+        for (SessionFactory sessionFactory : TestConfigurationManager.getSessionFactories(builder -> builder.setResultExecutor(null, 0))) {
+            try (sessionFactory) {
+                createTable(sessionFactory);
+
+                ResultDispatcher dispatcher = sessionFactory.getResultDispatcher();
+                String[] receivedOn = new String[1];
+
+                try (Session session = sessionFactory.getCurrentSession()) {
+                    new SqlQuery(session).executeAsync(Player.class, results -> receivedOn[0] = Thread.currentThread().getName());
+                }
+
+                // The callback waits for a drain instead of running on the worker
+                long deadline = System.currentTimeMillis() + 10000;
+                while (dispatcher.getPendingCount() == 0 && System.currentTimeMillis() < deadline) {
+                    Thread.sleep(5);
+                }
+                assertNull(receivedOn[0]);
+
+                assertEquals(1, dispatcher.drain());
+                assertEquals(Thread.currentThread().getName(), receivedOn[0]);
+            }
+        }
+    }
+
+    @Test
+    public void testResultDispatcherBudget() {
+        ResultDispatcher dispatcher = new ResultDispatcher(null, 1);
+
+        for (int i = 0; i < 5; i++) {
+            dispatcher.execute(() -> {
+                try {
+                    Thread.sleep(2);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            });
+        }
+
+        // Each callback uses the whole budget, the rest are carried over
+        assertEquals(1, dispatcher.drain());
+        assertEquals(4, dispatcher.getPendingCount());
+    }
+
+    @Test
+    public void testPriorities() throws Exception {
+        for (SessionFactory sessionFactory : TestConfigurationManager.getSessionFactories(builder -> builder.setWorkerDrainLimit(2))) {
+            try (sessionFactory) {
+                CountDownLatch release = new CountDownLatch(1);
+                DatabaseWorker worker = sessionFactory.getWorker();
+                List<String> order = Collections.synchronizedList(new ArrayList<>());
+
+                // Hold the worker so everything below is waiting at once
+                holdWorker(worker, release);
+
+                for (int i = 0; i < 3; i++) {
+                    worker.submitQuery(null, TaskPriority.BULK, "SELECT 1", List.of(), (workerSession, rs) -> order.add("bulk"));
+                }
+                worker.submitQuery(null, TaskPriority.NORMAL, "SELECT 1", List.of(), (workerSession, rs) -> order.add("normal"));
+                CompletionStage<String> last = worker.submitQuery(null, TaskPriority.INTERACTIVE, "SELECT 1", List.of(), (workerSession, rs) -> {
+                    order.add("interactive");
+                    return "done";
+                });
+
+                release.countDown();
+                last.toCompletableFuture().get(10, TimeUnit.SECONDS);
+
+                // Queued last, run first
+                assertEquals("interactive", order.get(0));
+
+                long deadline = System.currentTimeMillis() + 10000;
+                while (order.size() < 5 && System.currentTimeMillis() < deadline) {
+                    Thread.sleep(5);
+                }
+                assertEquals(List.of("interactive", "normal", "bulk", "bulk", "bulk"), order);
+            }
+        }
+    }
+
+    @Test
+    public void testMetrics() throws Exception {
+        for (SessionFactory sessionFactory : TestConfigurationManager.getSessionFactories(builder -> builder.setJmxName("metrics-test"))) {
+            ObjectName name = new ObjectName("net.mcmerdith.ormmicro:type=DatabaseWorker,name=\"metrics-test\"");
+
+            try (sessionFactory) {
+                WorkerMetrics metrics = sessionFactory.getWorkerMetrics();
+
+                for (int i = 0; i < 10; i++) {
+                    sessionFactory.getWorker().submitQuery(null, "SELECT 1", List.of(), (session, rs) -> null)
+                            .toCompletableFuture()
+                            .get(10, TimeUnit.SECONDS);
+                }
+                sessionFactory.getWorker().submitUpdate(null, "INSERT INTO missing_table (id) VALUES (?)", List.of(1))
+                        .exceptionally(e -> -1)
+                        .toCompletableFuture()
+                        .get(10, TimeUnit.SECONDS);
+
+                assertEquals(0, metrics.getQueueDepth());
+                assertEquals(10, metrics.getCompletedTasks());
+                assertEquals(1, metrics.getFailedTasks());
+                assertEquals(11, metrics.getWaitTime().getCount());
+
+                // Callback time is recorded after the caller is released
+                long deadline = System.currentTimeMillis() + 10000;
+                while (metrics.getCallbackTime().getCount() < 11 && System.currentTimeMillis() < deadline) {
+                    Thread.sleep(5);
+                }
+                assertEquals(11, metrics.getCallbackTime().getCount());
+                assertTrue(metrics.getExecutionTime().getPercentile(50) > 0);
+
+                MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+                assertEquals(10L, server.getAttribute(name, "CompletedTasks"));
+            }
+
+            // Unregistered with the factory
+            assertFalse(ManagementFactory.getPlatformMBeanServer().isRegistered(name));
+        }
+    }
+
+    @Test
+    public void testHistogram() {
+        Histogram histogram = new Histogram();
+        for (int i = 1; i <= 1000; i++) {
+            histogram.record(i * 1000L);
+        }
+
+        assertEquals(1000, histogram.getCount());
+        assertEquals(1_000_000, histogram.getMax());
+        assertEquals(500_500, histogram.getMean(), 0.001);
+
+        // Within the bucket precision
+        assertEquals(500_000, histogram.getPercentile(50), 500_000 / 32.0);
+        assertEquals(990_000, histogram.getPercentile(99), 990_000 / 32.0);
+        assertEquals(1_000_000, histogram.getPercentile(100));
+
+        histogram.reset();
+        assertEquals(0, histogram.getCount());
+        assertEquals(0, histogram.getPercentile(50));
+    }
+
+    @Test
+    public void testWriteJournal() throws Exception {
+        Path file = Files.createTempFile("ormmicro", ".journal");
+        String insert = "INSERT INTO worker_test (id, name) VALUES (?, ?)";
+
+        try {
+            for (SessionFactory sessionFactory : TestConfigurationManager.getSessionFactories()) {
+                try (sessionFactory) {
+                    createTable(sessionFactory);
+                }
+            }
+
+            // Writes that were still queued when the JVM died
+            WriteJournal journal = new WriteJournal(file, false);
+            journal.append(0, insert, List.of(1L, "queued"));
+            journal.appendSave(0,
+                    new ParameterizedStatement("UPDATE worker_test SET name = ? WHERE id = ?", List.of("saved", 2L)),
+                    new ParameterizedStatement(insert, List.of(2L, "saved"))
+            );
+            journal.done(journal.append(0, insert, List.of(3L, "committed")));
+
+            // Only the JDBC value types are journaled, even if a parameter is serializable
+            assertEquals(-1, journal.append(0, insert, List.of(5L, UUID.randomUUID())));
+            assertEquals(2, journal.getOutstanding());
+            journal.close();
+
+            for (SessionFactory sessionFactory : TestConfigurationManager.getSessionFactories(builder -> builder.setWriteJournal(file, false))) {
+                try (sessionFactory) {
+                    try (Session session = sessionFactory.getCurrentSession()) {
+                        List<String> names = new ArrayList<>();
+                        for (Player player : new SqlQuery(session).execute(Player.class).getResults()) {
+                            names.add(player.name);
+                        }
+
+                        Collections.sort(names);
+                        assertEquals(List.of("queued", "saved"), names);
+                    }
+
+                    assertEquals(1, (int) sessionFactory.getWorker().submitUpdate(null, insert, List.of(4L, "new"))
+                            .toCompletableFuture()
+                            .get(10, TimeUnit.SECONDS));
+                }
+            }
+
+            // Everything was replayed or committed
+            WriteJournal reopened = new WriteJournal(file, false);
+            assertEquals(0, reopened.getOutstanding());
+            reopened.close();
+        } finally {
+            Files.deleteIfExists(file);
+        }
+    }
+
+    @Test
+    public void testWorkerExecutor() throws Exception {
+        ExecutorService executor = Executors.newSingleThreadExecutor(r -> new Thread(r, "custom worker"));
+
+        try {
+            for (SessionFactory sessionFactory : TestConfigurationManager.getSessionFactories(builder -> builder.setWorkerExecutor(executor))) {
+                try (sessionFactory) {
+                    String thread = sessionFactory.getWorker()
+                            .submitQuery(null, "SELECT 1", List.of(), (session, rs) -> Thread.currentThread().getName())
+                            .toCompletableFuture()
+                            .get(10, TimeUnit.SECONDS);
+
+                    assertEquals("custom worker", thread);
+                }
+
+                // Supplied executors belong to the caller
+                assertFalse(executor.isShutdown());
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void testWorkerExecutorTooSmall() {
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+
+        try {
+            for (SessionFactory sessionFactory : TestConfigurationManager.getSessionFactories()) {
+                try (sessionFactory) {
+                    WorkerOptions options = new WorkerOptions();
+                    options.lanes = 2;
+                    options.executor = executor;
+
+                    // The second lane would never run, starting fails instead, and stops the first lane
+                    DatabaseWorker worker = new DatabaseWorker(sessionFactory, options);
+                    try {
+                        worker.start();
+                        fail("Started more lanes than the executor has threads");
+                    } catch (RuntimeException expected) {
+                        assertTrue(expected.getMessage().contains("1 of 2"));
+                    }
+                }
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testAsyncFailure() {
+        for (SessionFactory sessionFactory : TestConfigurationManager.getSessionFactories()) {
+            try (sessionFactory) {
+                CompletableFuture<Integer> failed = sessionFactory.getWorker()
+                        .submitUpdate(null, "INSERT INTO missing_table (id) VALUES (?)", List.of(1))
+                        .toCompletableFuture();
+
+                CompletionException e = assertThrows(CompletionException.class, failed::join);
+                assertTrue(e.getCause() instanceof SQLException);
+            }
+        }
+    }
+}
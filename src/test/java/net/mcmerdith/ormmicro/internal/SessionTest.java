@@ -0,0 +1,505 @@
+package net.mcmerdith.ormmicro.internal;
+
+import com.zaxxer.hikari.HikariConfig;
+import com.zaxxer.hikari.HikariPoolMXBean;
+import net.mcmerdith.ormmicro.annotations.Id;
+import net.mcmerdith.ormmicro.annotations.Model;
+import net.mcmerdith.ormmicro.annotations.ShardKey;
+import net.mcmerdith.ormmicro.query.ColumnOrder;
+import net.mcmerdith.ormmicro.query.QueryResult;
+import net.mcmerdith.ormmicro.query.SqlQuery;
+import net.mcmerdith.ormmicro.query.comparison.ComparisonLogic;
+import net.mcmerdith.ormmicro.query.comparison.ComparisonOperator;
+import net.mcmerdith.ormmicro.query.comparison.SqlComparisonBuilder;
+import net.mcmerdith.ormmicro.testdata.TestConfigurationManager;
+import org.junit.Test;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.List;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+import static org.junit.Assert.*;
+
+public class SessionTest {
+    @Model(tableName = "shard_test")
+    private static class Score {
+        @Id
+        @ShardKey
+        public long id;
+
+        public int points;
+
+        private Score() {}
+
+        private Score(long id, int points) {
+            this.id = id;
+            this.points = points;
+        }
+    }
+
+    @Model(tableName = "shard_bytes_test")
+    private static class Token {
+        @Id
+        @ShardKey
+        public byte[] key;
+
+        private Token() {}
+    }
+
+    private enum Rank {
+        LOW, HIGH
+    }
+
+    @Model(tableName = "mapper_test")
+    private static class Player {
+        @Id
+        public long id;
+
+        public int level;
+
+        public Integer bonus;
+
+        public boolean online;
+
+        public Rank rank;
+
+        public String name;
+
+        private Player() {}
+    }
+
+    @Model(tableName = "generated_test")
+    private static class Entry {
+        @Id(autoIncrement = true)
+        public int id;
+
+        public String name;
+
+        private Entry() {}
+
+        private Entry(String name) {
+            this.name = name;
+        }
+    }
+
+    @Test
+    public void testGeneratedIds() throws Exception {
+        for (SessionFactory sessionFactory : TestConfigurationManager.getSessionFactories()) {
+            try (sessionFactory) {
+                try (Session session = sessionFactory.getCurrentSession()) {
+                    session.executeSql("CREATE TABLE IF NOT EXISTS generated_test (id INTEGER PRIMARY KEY AUTOINCREMENT, name TEXT)");
+                    session.executeSql("DELETE FROM generated_test");
+
+                    Entry first = new Entry("first");
+                    Entry second = new Entry("second");
+
+                    // Both are new, neither is mistaken for the other
+                    assertEquals(1, session.save(first));
+                    assertEquals(1, session.save(second));
+                    assertNotEquals(0, first.id);
+                    assertNotEquals(0, second.id);
+                    assertNotEquals(first.id, second.id);
+
+                    // Saving again updates the row that was inserted
+                    first.name = "renamed";
+                    assertEquals(1, session.save(first));
+
+                    try (ResultSet results = session.executeQuery("SELECT COUNT(*) FROM generated_test", null)) {
+                        assertTrue(results.next());
+                        assertEquals(2, results.getInt(1));
+                    }
+                    try (ResultSet results = session.executeQuery("SELECT name FROM generated_test WHERE id = ?", List.of(first.id))) {
+                        assertTrue(results.next());
+                        assertEquals("renamed", results.getString(1));
+                    }
+                }
+
+                // The worker reads the generated id back as well
+                // The worker can only connect once the session is closed
+                Entry third = new Entry("third");
+                CompletionStage<Integer> inserted;
+                try (Session session = sessionFactory.getCurrentSession()) {
+                    inserted = session.saveAsync(third);
+                }
+                assertEquals(Integer.valueOf(1), inserted.toCompletableFuture().get(10, TimeUnit.SECONDS));
+                assertNotEquals(0, third.id);
+
+                CompletionStage<Integer> updated;
+                try (Session session = sessionFactory.getCurrentSession()) {
+                    third.name = "renamed third";
+                    updated = session.saveAsync(third);
+                }
+                assertEquals(Integer.valueOf(1), updated.toCompletableFuture().get(10, TimeUnit.SECONDS));
+
+                try (Session session = sessionFactory.getCurrentSession()) {
+                    try (ResultSet results = session.executeQuery("SELECT COUNT(*) FROM generated_test", null)) {
+                        assertTrue(results.next());
+                        assertEquals(3, results.getInt(1));
+                    }
+
+                    session.executeSql("DROP TABLE generated_test");
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testStatementCache() throws Exception {
+        for (SessionFactory sessionFactory : TestConfigurationManager.getSessionFactories(builder -> builder.setStatementCacheSize(2))) {
+            try (sessionFactory) {
+                PreparedStatement cached;
+
+                try (Session session = sessionFactory.getCurrentSession()) {
+                    cached = session.prepareStatement("SELECT ?");
+                    assertSame(cached, session.prepareStatement("SELECT ?"));
+
+                    // Open results keep their statement from being reused
+                    ResultSet outer = session.executeQuery("SELECT ?", List.of(1));
+                    try (ResultSet inner = session.executeQuery("SELECT ?", List.of(2))) {
+                        assertTrue(inner.next());
+                        assertEquals(2, inner.getInt(1));
+                    }
+                    assertTrue(outer.next());
+                    assertEquals(1, outer.getInt(1));
+                    outer.close();
+
+                    assertSame(cached, session.prepareStatement("SELECT ?"));
+
+                    // Evicted past the cache size
+                    session.prepareStatement("SELECT 1");
+                    session.prepareStatement("SELECT 2");
+                    assertTrue(cached.isClosed());
+                    assertNotSame(cached, session.prepareStatement("SELECT ?"));
+
+                    cached = session.prepareStatement("SELECT ?");
+                }
+
+                // Closed with the session
+                assertTrue(cached.isClosed());
+            }
+        }
+    }
+
+    @Test
+    public void testUncachedStatements() throws Exception {
+        for (SessionFactory sessionFactory : TestConfigurationManager.getSessionFactories(builder -> builder.setStatementCacheSize(0))) {
+            try (sessionFactory) {
+                try (Session session = sessionFactory.getCurrentSession()) {
+                    session.pin();
+
+                    for (int i = 0; i < 20; i++) {
+                        session.executeUpdate("CREATE TABLE IF NOT EXISTS uncached_test (id INTEGER)", null);
+
+                        try (ResultSet results = session.executeQuery("SELECT ?", List.of(i))) {
+                            assertTrue(results.next());
+                            assertEquals(i, results.getInt(1));
+                        }
+                    }
+
+                    // Nothing piles up until the session closes
+                    assertEquals(0, session.openStatements());
+
+                    session.unpin();
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testThreadBoundSessions() throws Exception {
+        for (SessionFactory sessionFactory : TestConfigurationManager.getSessionFactories(builder -> builder.setThreadBoundSessions(true))) {
+            try (sessionFactory) {
+                Session outer = sessionFactory.getCurrentSession();
+                assertTrue(outer.isBound());
+
+                try (Session inner = sessionFactory.getCurrentSession()) {
+                    assertSame(outer, inner);
+                }
+
+                // Still open for the outer caller
+                Connection connection = outer.getConnection();
+                assertFalse(outer.isClosed());
+                assertFalse(connection.isClosed());
+
+                outer.close();
+                assertTrue(outer.isClosed());
+                assertTrue(connection.isClosed());
+
+                try (Session next = sessionFactory.getCurrentSession()) {
+                    assertNotSame(outer, next);
+                }
+
+                // The worker lane binds its own session
+                assertEquals(Integer.valueOf(1), sessionFactory.getWorker()
+                        .submitQuery(null, "SELECT 1", List.of(), (workerSession, rs) -> {
+                            assertTrue(workerSession.isBound());
+                            rs.next();
+                            return rs.getInt(1);
+                        }).toCompletableFuture().get(10, TimeUnit.SECONDS));
+            }
+        }
+    }
+
+    @Test
+    public void testLazyConnections() throws Exception {
+        for (SessionFactory sessionFactory : TestConfigurationManager.getSessionFactories(builder -> builder.setLazyConnections(true))) {
+            try (sessionFactory) {
+                // The pool only has one connection, so each session has to give it back between statements
+                try (Session first = sessionFactory.openSession(); Session second = sessionFactory.openSession()) {
+                    first.executeSql("CREATE TABLE IF NOT EXISTS lazy_test (id INTEGER)");
+
+                    try (ResultSet results = second.executeQuery("SELECT COUNT(*) FROM lazy_test", null)) {
+                        assertTrue(results.next());
+                    }
+                    second.releaseConnection();
+
+                    // Pinned while in a transaction
+                    first.beginTransaction();
+                    Connection connection = first.getConnection();
+                    first.executeUpdate("INSERT INTO lazy_test (id) VALUES (?)", List.of(1));
+                    assertSame(connection, first.getConnection());
+                    first.rollbackTransaction();
+                    assertTrue(connection.isClosed());
+
+                    try (ResultSet results = second.executeQuery("SELECT COUNT(*) FROM lazy_test", null)) {
+                        assertTrue(results.next());
+                        assertEquals(0, results.getInt(1));
+                    }
+                    second.releaseConnection();
+
+                    second.executeSql("DROP TABLE lazy_test");
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testReadReplicas() throws Exception {
+        Path replicaFile = Files.createTempFile("replica", ".db");
+        HikariConfig replicaConfig = new HikariConfig();
+        replicaConfig.setDriverClassName("org.sqlite.JDBC");
+        replicaConfig.setJdbcUrl("jdbc:sqlite:" + replicaFile);
+        replicaConfig.setMaximumPoolSize(1);
+        replicaConfig.setPoolName("Replica");
+
+        try {
+            for (SessionFactory sessionFactory : TestConfigurationManager.getSessionFactories(builder -> builder.addReadReplica(replicaConfig))) {
+                try (sessionFactory) {
+                    try (Session session = sessionFactory.getCurrentSession()) {
+                        // Tell the databases apart
+                        session.executeSql("CREATE TABLE IF NOT EXISTS replica_test (name TEXT)");
+                        session.executeSql("DELETE FROM replica_test");
+                        session.executeUpdate("INSERT INTO replica_test (name) VALUES (?)", List.of("primary"));
+                        try (Connection replica = DriverManager.getConnection("jdbc:sqlite:" + replicaFile);
+                             Statement statement = replica.createStatement()) {
+                            statement.execute("CREATE TABLE replica_test (name TEXT)");
+                            statement.execute("INSERT INTO replica_test (name) VALUES ('replica')");
+                        }
+
+                        assertEquals("replica", readName(session));
+
+                        session.beginTransaction(true);
+                        assertEquals("replica", readName(session));
+                        session.commitTransaction();
+
+                        // Transactional reads see the primary
+                        session.beginTransaction();
+                        assertEquals("primary", readName(session));
+                        session.commitTransaction();
+                    }
+
+                    // The worker's session can only connect once the test's is closed
+                    assertEquals("replica", sessionFactory.getWorker().submitQuery(null, "SELECT name FROM replica_test", List.of(), (workerSession, rs) -> {
+                        rs.next();
+                        return rs.getString(1);
+                    }).toCompletableFuture().get(10, TimeUnit.SECONDS));
+
+                    try (Session session = sessionFactory.getCurrentSession()) {
+                        session.executeSql("DROP TABLE replica_test");
+                    }
+                }
+            }
+        } finally {
+            Files.deleteIfExists(replicaFile);
+        }
+    }
+
+    private static String readName(Session session) throws SQLException {
+        try (ResultSet results = new SqlQuery(session).select("name").execute("replica_test")) {
+            assertTrue(results.next());
+            return results.getString(1);
+        }
+    }
+
+    @Test
+    public void testHashShardingNumbers() {
+        ShardStrategy strategy = ShardStrategy.hash();
+
+        // The same number routes the same however it is boxed
+        assertEquals(strategy.shardFor(5L, 7), strategy.shardFor(5, 7));
+        assertEquals(strategy.shardFor(-5L, 7), strategy.shardFor(-5, 7));
+        assertEquals(strategy.shardFor(5L, 7), strategy.shardFor((short) 5, 7));
+    }
+
+    @Test
+    public void testSharding() throws Exception {
+        Path shardFile = Files.createTempFile("shard", ".db");
+        HikariConfig shardConfig = new HikariConfig();
+        shardConfig.setDriverClassName("org.sqlite.JDBC");
+        shardConfig.setJdbcUrl("jdbc:sqlite:" + shardFile);
+        shardConfig.setMaximumPoolSize(1);
+        shardConfig.setPoolName("Shard");
+
+        try {
+            for (SessionFactory sessionFactory : TestConfigurationManager.getSessionFactories(builder -> {
+                builder.addShard(shardConfig);
+                // Ids from 100 up are on the second shard
+                builder.setShardStrategy(ShardStrategy.range(100));
+            })) {
+                try (sessionFactory) {
+                    try (Session session = sessionFactory.getCurrentSession()) {
+                        for (int shard = 0; shard < sessionFactory.getShardCount(); shard++) {
+                            session.forShard(shard).executeSql("CREATE TABLE IF NOT EXISTS shard_test (id INTEGER PRIMARY KEY, points INTEGER)");
+                            session.forShard(shard).executeSql("DELETE FROM shard_test");
+                        }
+
+                        session.save(new Score(1, 10));
+                        session.save(new Score(2, 30));
+                        session.save(new Score(150, 20));
+                        session.save(new Score(151, 40));
+
+                        try (ResultSet results = session.forShard(1).executeQuery("SELECT COUNT(*) FROM shard_test", null)) {
+                            assertTrue(results.next());
+                            assertEquals(2, results.getInt(1));
+                        }
+
+                        // The shard key is known, only one shard is asked
+                        QueryResult<Score> single = new SqlQuery(session)
+                                .where(new SqlComparisonBuilder(ComparisonLogic.AND).where("id", ComparisonOperator.EQUAL, 150L).build())
+                                .execute(Score.class);
+                        assertEquals(1, single.size());
+                        assertEquals(20, single.getFirst().points);
+
+                        // Every shard is asked, the results are merged in order
+                        QueryResult<Score> top = new SqlQuery(session).orderBy("points", ColumnOrder.DESC).limit(3).execute(Score.class);
+                        assertEquals(List.of(40, 30, 20), top.getResults().stream().map(score -> score.points).collect(Collectors.toList()));
+
+                        // Aggregates of every shard can't be merged
+                        try {
+                            new SqlQuery(session).count().execute(Score.class);
+                            fail("Merged a count across shards");
+                        } catch (RuntimeException e) {
+                            assertTrue(e.getMessage().contains("shard_test"));
+                        }
+                    }
+
+                    CompletionStage<QueryResult<Score>> query;
+                    try (Session session = sessionFactory.getCurrentSession()) {
+                        query = new SqlQuery(session).orderBy("points", ColumnOrder.ASC).limit(2).executeAsync(Score.class);
+                    }
+
+                    // The worker's session can only connect once the test's is closed
+                    QueryResult<Score> lowest = query.toCompletableFuture().get(10, TimeUnit.SECONDS);
+                    assertEquals(List.of(10, 20), lowest.getResults().stream().map(score -> score.points).collect(Collectors.toList()));
+
+                    try (Session session = sessionFactory.getCurrentSession()) {
+                        for (int shard = 0; shard < sessionFactory.getShardCount(); shard++) {
+                            session.forShard(shard).executeSql("DROP TABLE shard_test");
+                        }
+                    }
+                }
+            }
+        } finally {
+            Files.deleteIfExists(shardFile);
+        }
+    }
+
+    @Test
+    public void testShardKeyEquality() {
+        for (SessionFactory sessionFactory : TestConfigurationManager.getSessionFactories()) {
+            try (sessionFactory) {
+                // Equal arrays hash differently, so saves and lookups would go to different shards
+                try {
+                    sessionFactory.getModelManager().getModel(Token.class);
+                    fail("Sharded a model by an array");
+                } catch (RuntimeException e) {
+                    assertTrue(e.getMessage().contains("key"));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testWarmUp() throws Exception {
+        Path shardFile = Files.createTempFile("warm", ".db");
+        HikariConfig shardConfig = new HikariConfig();
+        shardConfig.setDriverClassName("org.sqlite.JDBC");
+        shardConfig.setJdbcUrl("jdbc:sqlite:" + shardFile);
+        shardConfig.setMaximumPoolSize(3);
+        shardConfig.setMinimumIdle(3);
+        shardConfig.setPoolName("Warm");
+
+        try {
+            for (SessionFactory sessionFactory : TestConfigurationManager.getSessionFactories(builder -> builder.addShard(shardConfig))) {
+                try (sessionFactory) {
+                    // One connection in the primary pool, three in the shard
+                    assertEquals(4, sessionFactory.warmUp());
+
+                    // Every idle connection is open before anything is checked out
+                    HikariPoolMXBean shard = sessionFactory.getShardDataSource(1).getHikariPoolMXBean();
+                    assertEquals(3, shard.getTotalConnections());
+                    assertEquals(3, shard.getIdleConnections());
+                }
+            }
+        } finally {
+            Files.deleteIfExists(shardFile);
+        }
+    }
+
+    @Test
+    public void testRowMapper() throws Exception {
+        for (SessionFactory sessionFactory : TestConfigurationManager.getSessionFactories()) {
+            try (sessionFactory) {
+                ModelManager models = sessionFactory.getModelManager();
+                assertSame(models.getRowMapper(Player.class), models.getRowMapper(Player.class));
+
+                try (Session session = sessionFactory.openSession()) {
+                    session.executeSql("CREATE TABLE IF NOT EXISTS mapper_test (id INTEGER PRIMARY KEY, level INTEGER, bonus INTEGER, online INTEGER, rank TEXT, name TEXT)");
+                    session.executeUpdate("INSERT INTO mapper_test VALUES (?, ?, ?, ?, ?, ?)", List.of(1, 5, 2, 1, "HIGH", "one"));
+                    session.executeSql("INSERT INTO mapper_test (id) VALUES (2)");
+
+                    List<Player> players = new SqlQuery(session).orderBy("id", ColumnOrder.ASC).execute(Player.class).getResults();
+                    assertEquals(2, players.size());
+
+                    Player full = players.get(0);
+                    assertEquals(1, full.id);
+                    assertEquals(5, full.level);
+                    assertEquals(Integer.valueOf(2), full.bonus);
+                    assertTrue(full.online);
+                    assertEquals(Rank.HIGH, full.rank);
+                    assertEquals("one", full.name);
+
+                    // NULL leaves primitives at their default
+                    Player empty = players.get(1);
+                    assertEquals(2, empty.id);
+                    assertEquals(0, empty.level);
+                    assertNull(empty.bonus);
+                    assertFalse(empty.online);
+                    assertNull(empty.rank);
+                    assertNull(empty.name);
+
+                    session.executeSql("DROP TABLE mapper_test");
+                }
+            }
+        }
+    }
+}
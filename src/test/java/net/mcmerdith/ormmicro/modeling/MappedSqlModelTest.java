@@ -1,7 +1,9 @@
 package net.mcmerdith.ormmicro.modeling;
 
+import net.mcmerdith.ormmicro.exceptions.SqlConstraintViolation;
 import net.mcmerdith.ormmicro.internal.SessionFactory;
 import net.mcmerdith.ormmicro.testdata.TestConfigurationManager;
+import net.mcmerdith.ormmicro.annotations.Column;
 import net.mcmerdith.ormmicro.annotations.Id;
 import net.mcmerdith.ormmicro.annotations.Model;
 import org.junit.Test;
@@ -44,6 +46,57 @@ public class MappedSqlModelTest {
         }
     }
 
+    @Model(tableName = "four")
+    private static class Four {
+        @Id
+        private int id;
+
+        private final String test;
+
+        private Four(int id, String test) {
+            this.id = id;
+            this.test = test;
+        }
+    }
+
+    /**
+     * Has generated metadata, see {@link MappedSqlModelTest_Five_OrmMicro}
+     */
+    @Model(tableName = "five")
+    static class Five {
+        @Id
+        long id;
+
+        String test;
+
+        private int hidden;
+
+        Five() {}
+    }
+
+    @Model(tableName = "six")
+    private static class Six implements java.io.Serializable {
+        private static final long serialVersionUID = 1L;
+
+        static int instances;
+
+        @Id
+        public long id;
+
+        public Six(long id) {
+            this.id = id;
+        }
+    }
+
+    @Model(tableName = "seven")
+    private static class Seven {
+        @Id
+        public long id;
+
+        @Column(nullable = false)
+        public String required;
+    }
+
     private MappedSqlModel<One> mOne;
     private MappedSqlModel<One> mOneEqual;
     private MappedSqlModel<One> mOneNonEqual;
@@ -139,4 +192,80 @@ public class MappedSqlModelTest {
             assertNotEquals(mTwo, mThreeDifferent);
         }
     }
-}
\ No newline at end of file
+
+    @Test
+    public void testFieldAccess() {
+        for (SessionFactory sessionFactory : TestConfigurationManager.getSessionFactories()) {
+            SqlModel<Four> model = sessionFactory.getModelManager().getModel(Four.class);
+            ColumnDefinition id = model.getColumnDefinition("id");
+            ColumnDefinition test = model.getColumnDefinition("test");
+
+            Four four = new Four(1, "hi");
+            assertEquals(1, id.getFieldValue(four));
+            assertEquals("hi", test.getFieldValue(four));
+
+            // Private and final fields are writable
+            id.setFieldValue(four, 2);
+            test.setFieldValue(four, "bye");
+            assertEquals(2, four.id);
+            assertEquals("bye", four.test);
+
+            // Primitives are widened without boxing
+            assertTrue(id.isPrimitive());
+            id.setIntFieldValue(four, 3);
+            assertEquals(3, four.id);
+
+            // Narrowing fails without touching the field
+            id.setLongFieldValue(four, 4);
+            assertEquals(3, four.id);
+
+            assertEquals(3, sessionFactory.getModelManager().mapObject(four).getColumns().get("id"));
+        }
+    }
+
+    @Test
+    public void testGeneratedModel() {
+        for (SessionFactory sessionFactory : TestConfigurationManager.getSessionFactories()) {
+            SqlModel<Five> model = sessionFactory.getModelManager().getModel(Five.class);
+            assertNotNull(model.getGenerated());
+            assertEquals(3, model.getColumnDefinitions().size());
+            assertTrue(model.getColumnDefinition("id").isPrimary());
+
+            Five five = new Five();
+            model.getColumnDefinition("test").setFieldValue(five, "hi");
+            model.getColumnDefinition("hidden").setFieldValue(five, 2);
+            assertEquals("hi", five.test);
+            assertEquals(2, five.hidden);
+
+            assertEquals("hi", model.mapObject(five).getColumns().get("test"));
+
+            // Models without generated metadata are reflected over
+            assertNull(sessionFactory.getModelManager().getModel(One.class).getGenerated());
+        }
+    }
+
+    @Test
+    public void testStaticFields() {
+        for (SessionFactory sessionFactory : TestConfigurationManager.getSessionFactories()) {
+            SqlModel<Six> model = sessionFactory.getModelManager().getModel(Six.class);
+            assertEquals(1, model.getColumnDefinitions().size());
+            assertNull(model.getColumnDefinition("serialVersionUID"));
+            assertNull(model.getColumnDefinition("instances"));
+
+            assertEquals(1L, model.mapObject(new Six(1)).getColumns().get("id"));
+        }
+    }
+
+    @Test
+    public void testNotNull() {
+        for (SessionFactory sessionFactory : TestConfigurationManager.getSessionFactories()) {
+            try {
+                sessionFactory.getModelManager().mapObject(new Seven());
+                fail("Mapped null into a NOT NULL column");
+            } catch (RuntimeException e) {
+                assertTrue(e.getCause() instanceof SqlConstraintViolation);
+                assertTrue(e.getCause().getMessage().contains("Column `required` was declared NOT NULL"));
+            }
+        }
+    }
+}
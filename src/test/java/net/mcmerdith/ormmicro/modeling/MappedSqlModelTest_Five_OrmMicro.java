@@ -0,0 +1,36 @@
+// Generated by OrmMicro-processor, checked in so the tests don't need the processor on their path
+package net.mcmerdith.ormmicro.modeling;
+
+@javax.annotation.processing.Generated("net.mcmerdith.ormmicro.processor.ModelProcessor")
+@SuppressWarnings({"unchecked", "rawtypes"})
+public final class MappedSqlModelTest_Five_OrmMicro implements net.mcmerdith.ormmicro.modeling.GeneratedModel<net.mcmerdith.ormmicro.modeling.MappedSqlModelTest.Five> {
+    private static final java.util.List<String> FIELDS = java.util.List.of("id", "test", "hidden");
+
+    @Override
+    public java.util.List<String> getFieldNames() {
+        return FIELDS;
+    }
+
+    @Override
+    public java.util.function.Supplier<net.mcmerdith.ormmicro.modeling.MappedSqlModelTest.Five> getConstructor() {
+        return net.mcmerdith.ormmicro.modeling.MappedSqlModelTest.Five::new;
+    }
+
+    @Override
+    public java.util.function.Function<Object, Object> getGetter(String field) {
+        switch (field) {
+            case "id": return o -> ((net.mcmerdith.ormmicro.modeling.MappedSqlModelTest.Five) o).id;
+            case "test": return o -> ((net.mcmerdith.ormmicro.modeling.MappedSqlModelTest.Five) o).test;
+            default: return null;
+        }
+    }
+
+    @Override
+    public java.util.function.BiConsumer<Object, Object> getSetter(String field) {
+        switch (field) {
+            case "id": return (o, v) -> ((net.mcmerdith.ormmicro.modeling.MappedSqlModelTest.Five) o).id = (long) v;
+            case "test": return (o, v) -> ((net.mcmerdith.ormmicro.modeling.MappedSqlModelTest.Five) o).test = (java.lang.String) v;
+            default: return null;
+        }
+    }
+}
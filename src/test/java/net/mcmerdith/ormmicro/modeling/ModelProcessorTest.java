@@ -0,0 +1,91 @@
+package net.mcmerdith.ormmicro.modeling;
+
+import org.junit.Test;
+
+import javax.annotation.processing.Processor;
+import javax.tools.DiagnosticCollector;
+import javax.tools.JavaCompiler;
+import javax.tools.JavaFileObject;
+import javax.tools.StandardJavaFileManager;
+import javax.tools.ToolProvider;
+import java.io.File;
+import java.io.IOException;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static org.junit.Assert.*;
+
+/**
+ * Runs the processor module over {@link MappedSqlModelTest}, and checks its output still matches the checked-in
+ * {@link MappedSqlModelTest_Five_OrmMicro}
+ * <p>The processor isn't a dependency of this module, its source is compiled by the test</p>
+ */
+public class ModelProcessorTest {
+    private static final Path PROCESSOR_SOURCE = Paths.get("processor/src/main/java/net/mcmerdith/ormmicro/processor/ModelProcessor.java");
+    private static final Path MODEL_SOURCE = Paths.get("src/test/java/net/mcmerdith/ormmicro/modeling/MappedSqlModelTest.java");
+    private static final Path CHECKED_IN = Paths.get("src/test/java/net/mcmerdith/ormmicro/modeling/MappedSqlModelTest_Five_OrmMicro.java");
+
+    @Test
+    public void testGeneratedMatchesCheckedIn() throws Exception {
+        JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+        assertNotNull("Tests must run on a JDK", compiler);
+
+        Path work = Files.createTempDirectory("ormmicro-processor");
+        try {
+            Path processorClasses = Files.createDirectories(work.resolve("processor"));
+            Path generated = Files.createDirectories(work.resolve("generated"));
+
+            compile(compiler, List.of("-proc:none", "-d", processorClasses.toString()), PROCESSOR_SOURCE, null);
+
+            try (URLClassLoader loader = new URLClassLoader(new URL[]{processorClasses.toUri().toURL()}, getClass().getClassLoader())) {
+                Processor processor = (Processor) loader.loadClass("net.mcmerdith.ormmicro.processor.ModelProcessor")
+                        .getDeclaredConstructor()
+                        .newInstance();
+
+                compile(compiler, List.of(
+                        "-proc:only",
+                        "-classpath", System.getProperty("java.class.path"),
+                        "-s", generated.toString()
+                ), MODEL_SOURCE, processor);
+            }
+
+            Path five = generated.resolve("net/mcmerdith/ormmicro/modeling/MappedSqlModelTest_Five_OrmMicro.java");
+            assertTrue("Five was not generated", Files.exists(five));
+            assertEquals(withoutComments(CHECKED_IN), withoutComments(five));
+
+            // Private models are left to reflection
+            assertFalse(Files.exists(generated.resolve("net/mcmerdith/ormmicro/modeling/MappedSqlModelTest_One_OrmMicro.java")));
+        } finally {
+            try (Stream<Path> files = Files.walk(work)) {
+                files.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+            }
+        }
+    }
+
+    private static void compile(JavaCompiler compiler, List<String> options, Path source, Processor processor) throws IOException {
+        DiagnosticCollector<JavaFileObject> diagnostics = new DiagnosticCollector<>();
+
+        try (StandardJavaFileManager files = compiler.getStandardFileManager(diagnostics, null, null)) {
+            JavaCompiler.CompilationTask task = compiler.getTask(null, files, diagnostics, options, null, files.getJavaFileObjects(source.toFile()));
+            if (processor != null) task.setProcessors(List.of(processor));
+
+            assertTrue("Failed to compile " + source + ": " + diagnostics.getDiagnostics(), task.call());
+        }
+    }
+
+    /**
+     * Read a source file without its line comments, the checked-in copy says where it came from
+     */
+    private static String withoutComments(Path file) throws IOException {
+        return Files.readAllLines(file).stream()
+                .filter(line -> !line.startsWith("//"))
+                .collect(Collectors.joining("\n"));
+    }
+}
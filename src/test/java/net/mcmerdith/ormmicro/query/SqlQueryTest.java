@@ -0,0 +1,55 @@
+package net.mcmerdith.ormmicro.query;
+
+import net.mcmerdith.ormmicro.query.comparison.ComparisonLogic;
+import net.mcmerdith.ormmicro.query.comparison.ComparisonOperator;
+import net.mcmerdith.ormmicro.query.comparison.SqlComparisonBuilder;
+import org.junit.Test;
+
+import java.util.HashSet;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class SqlQueryTest {
+    /**
+     * A query selecting two columns where the level is greater than a value, ordered by both columns
+     */
+    private static SqlQuery query(int level, String first, ColumnOrder firstOrder, String second, ColumnOrder secondOrder) {
+        return new SqlQuery(null)
+                .select(first, second)
+                .where(new SqlComparisonBuilder(ComparisonLogic.AND).where("level", ComparisonOperator.GREATER, level).build())
+                .orderBy(first, firstOrder)
+                .orderBy(second, secondOrder);
+    }
+
+    private static SqlQuery query(int level) {
+        return query(level, "level", ColumnOrder.DESC, "name", ColumnOrder.ASC);
+    }
+
+    @Test
+    public void testSqlCache() {
+        String sql = query(1).limit(5).buildSql("sql_cache_test");
+        assertEquals("SELECT level, name FROM sql_cache_test WHERE level > ? ORDER BY level DESC, name ASC LIMIT 5", sql);
+
+        // Rendered once, parameters aren't part of the shape
+        assertSame(sql, query(10).limit(5).buildSql("sql_cache_test"));
+
+        // Changing a query after it was rendered doesn't change the cached shape
+        SqlQuery changed = query(1);
+        String unlimited = changed.buildSql("sql_cache_test");
+        changed.limit(5);
+        assertSame(sql, changed.buildSql("sql_cache_test"));
+        assertSame(unlimited, query(1).buildSql("sql_cache_test"));
+
+        // Shapes that differ in any part render differently
+        List<String> shapes = List.of(
+                sql,
+                unlimited,
+                query(1).limit(5).buildSql("sql_cache_other"),
+                query(1).distinct().limit(5).buildSql("sql_cache_test"),
+                query(1, "name", ColumnOrder.ASC, "level", ColumnOrder.DESC).limit(5).buildSql("sql_cache_test"),
+                query(1, "level", ColumnOrder.ASC, "name", ColumnOrder.ASC).limit(5).buildSql("sql_cache_test")
+        );
+        assertEquals(shapes.size(), new HashSet<>(shapes).size());
+    }
+}
@@ -5,6 +5,7 @@ import net.mcmerdith.ormmicro.internal.SessionFactory;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.function.Consumer;
 import java.util.stream.Collectors;
 
 public class TestConfigurationManager {
@@ -26,6 +27,14 @@ public class TestConfigurationManager {
     }
 
     public static List<SessionFactory> getSessionFactories() {
-        return configurations.stream().map(config -> new SessionFactory.Builder(config).build()).collect(Collectors.toList());
+        return getSessionFactories(builder -> {});
+    }
+
+    public static List<SessionFactory> getSessionFactories(Consumer<SessionFactory.Builder> configure) {
+        return configurations.stream().map(config -> {
+            SessionFactory.Builder builder = new SessionFactory.Builder(config);
+            configure.accept(builder);
+            return builder.build();
+        }).collect(Collectors.toList());
     }
 }
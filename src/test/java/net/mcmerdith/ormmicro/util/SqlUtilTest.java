@@ -0,0 +1,41 @@
+package net.mcmerdith.ormmicro.util;
+
+import org.junit.Test;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class SqlUtilTest {
+    @Test
+    public void testParameterRoundTrip() throws SQLException {
+        // Each value is bound with its typed setter and read back with the matching getter
+        List<Object> values = Arrays.asList(42, 1L << 40, 2.5d, true, 1.5f, (short) 7, (byte) -3, "text", null);
+        List<Class<?>> types = List.of(Integer.class, Long.class, Double.class, Boolean.class, Float.class, Short.class, Byte.class, String.class, Integer.class);
+
+        try (Connection connection = DriverManager.getConnection("jdbc:sqlite::memory:")) {
+            String[] placeholders = new String[values.size()];
+            Arrays.fill(placeholders, "?");
+
+            try (PreparedStatement statement = connection.prepareStatement("SELECT " + String.join(", ", placeholders))) {
+                for (int i = 0; i < values.size(); i++) {
+                    SqlUtil.setParameter(statement, i + 1, values.get(i));
+                }
+
+                try (ResultSet rs = statement.executeQuery()) {
+                    assertTrue(rs.next());
+
+                    for (int i = 0; i < values.size(); i++) {
+                        assertEquals("Parameter " + (i + 1), values.get(i), SqlUtil.getObject(rs, i + 1, types.get(i)));
+                    }
+                }
+            }
+        }
+    }
+}